@@ -449,7 +449,7 @@ public class MpmToolbox {
                     if (this.projectPane == null)
                         System.err.println("No project loaded to add the audio.");
                     else
-                        this.projectPane.addAudio(new Audio(file, this.getProjectPane().getMsm()));
+                        this.projectPane.addAudio(Audio.fromFile(file, this.getProjectPane().getMsm()));
                     break;
                 case ".jpg":
                 case ".jpeg":
@@ -497,6 +497,8 @@ public class MpmToolbox {
         this.getMidiPlayerSyncPlayer().stop();
         this.getProjectPane().getSyncPlayer().getAudioPlayer().stop();
         this.getProjectPane().getSyncPlayer().getMidiPlayer().stop();
+        if (this.getProjectPane().getAudioFrame() != null)
+            this.getProjectPane().getAudioFrame().releaseAlignmentComputations();
 
         this.frame.remove(this.projectPane);    // remove the ProjectPane component from this frame
         this.projectPane = null;
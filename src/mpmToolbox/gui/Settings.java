@@ -56,6 +56,11 @@ public class Settings {
 
     public static RecentOpened recentOpened = new RecentOpened(10);     // this is the list of the last 10 recently opened files
 
+    public static String transcriptionCache = "transcriptionCache";     // the directory where audio transcriptions (BasicPitch+LCS aligner) are cached, so they do not need to be recomputed; a relative path is relative to the directory of the settings file, see getTranscriptionCacheDirectory()
+    public static long transcriptionCacheSize = 2048;                   // the maximum size of the transcription cache in MB
+
+    public static boolean memoryMappedAudio = true;                     // memory-map the audio data instead of loading it into the heap; audio files that are not WAV (e.g. MP3) are decoded once into a file beside them (<audio file>.pcm)
+
     /**
      * read the settings file mpmToolbox.cfg
      * @throws IOException
@@ -115,6 +120,15 @@ public class Settings {
                     if ((Settings.soundbank != null) && !Settings.soundbank.exists())
                         Settings.setSoundbank(null);
                     break;
+                case "transcriptionCache":
+                    Settings.transcriptionCache = line;
+                    break;
+                case "transcriptionCacheSize":
+                    Settings.transcriptionCacheSize = Long.parseLong(line);
+                    break;
+                case "memoryMappedAudio":
+                    Settings.memoryMappedAudio = line.equals("1");
+                    break;
                 case "recentOpened":
                     File recent = new File(line);
                     if (recent.exists())
@@ -146,6 +160,9 @@ public class Settings {
                 + "\n\n# tempoCurveTesselation\n" + Settings.tempoCurveTesselation
 //                + "\n\n# symbolFont\n" + Settings.symbolFontPath
                 + "\n\n# soundbank\n" + ((Settings.soundbank == null) ? "default" : Settings.soundbank.getAbsolutePath())
+                + "\n\n# transcriptionCache\n" + Settings.transcriptionCache
+                + "\n\n# transcriptionCacheSize\n" + Settings.transcriptionCacheSize
+                + "\n\n# memoryMappedAudio\n" + (Settings.memoryMappedAudio ? "1" : "0")
                 + "\n\n# recentOpened\n" + Settings.recentOpened.toString()
                 +"\n";
 
@@ -176,6 +193,18 @@ public class Settings {
         return Settings.soundbank;
     }
 
+    /**
+     * get the directory of the transcription cache; a relative path is resolved against the directory of the settings
+     * file, where the optimized transcription model is stored as well, not against the working directory
+     * @return
+     */
+    public static File getTranscriptionCacheDirectory() {
+        File directory = new File(Settings.transcriptionCache);
+        if (directory.isAbsolute())
+            return directory;
+        return new File(new File(Settings.settingsFile).getAbsoluteFile().getParentFile(), Settings.transcriptionCache);
+    }
+
     /**
      * get the default font size
      * @return
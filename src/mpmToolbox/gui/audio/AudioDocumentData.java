@@ -16,9 +16,11 @@ import meico.supplementary.KeyValue;
 import mpmToolbox.gui.ProjectPane;
 import mpmToolbox.gui.Settings;
 import mpmToolbox.gui.audio.utilities.CursorPositions;
+import mpmToolbox.gui.audio.utilities.PerformanceRenderService;
 import mpmToolbox.gui.mpmEditingTools.MpmEditingTools;
 import mpmToolbox.projectData.alignment.AbstractAlignmentComputation;
 import mpmToolbox.projectData.alignment.Alignment;
+import mpmToolbox.projectData.alignment.AlignmentBuilder;
 import mpmToolbox.projectData.alignment.PlaceholderAligner;
 import mpmToolbox.projectData.alignment.basicPitchLcsAligner.BasicPitchLCSAligner;
 import mpmToolbox.projectData.audio.Audio;
@@ -55,6 +57,9 @@ public class AudioDocumentData extends DocumentData<WebPanel> {
     private CursorPositions mouseCursor = null;
 
     private Alignment alignment;                                    // this is the alignment with the piano roll overlay used in the sub-panels; it points either to the audio alignment or the alignment derived from the currently selected performance
+    private final AlignmentBuilder alignmentBuilder = new AlignmentBuilder();   // creates the alignments of the performances, it reuses the score data of the previous one
+    private final PerformanceRenderService renderService = new PerformanceRenderService(this.alignmentBuilder);   // creates the alignments of the performances in the background
+    private Performance alignmentPerformance = null;                // the performance that this.alignment is derived from, null if it is the audio alignment
 
     private final WebComboBox partChooser = new WebComboBox();      // with this combobox the user can select whether all musical part or only on individual part should be displayed in the piano roll overlay
     private final WebButton resetButton = new WebButton("Reset");   // this button re-initializes the alignment
@@ -269,6 +274,14 @@ public class AudioDocumentData extends DocumentData<WebPanel> {
         });
     }
 
+    /**
+     * release the resources held by the alignment computation algorithms, this is called when the project is closed
+     */
+    public void releaseAlignmentComputations() {
+        for (int i = 0; i < this.alignmentComputationChooser.getItemCount(); ++i)
+            ((AbstractAlignmentComputation) this.alignmentComputationChooser.getItemAt(i)).releaseResources();
+    }
+
     /**
      * define the button to convert a performance to an alignment and vice versa
      */
@@ -292,6 +305,8 @@ public class AudioDocumentData extends DocumentData<WebPanel> {
                 this.getParent().getMpmTree().setSelectedNode(this.getParent().getMpmTree().reloadRootNode().findChildNode(performance, false));
                 this.getParent().getSyncPlayer().addPerformance(performance, true);     // the SyncPlayer must update its performance chooser
             } else {                                                                    // if a performance is selected,
+                if (this.renderService.isPending(this.getParent().getSyncPlayer().getSelectedPerformance()))
+                    this.updateAlignment(false);                                        // do not wait for the background rendering, the alignment must reflect the latest edits
                 this.getAudio().setAlignment(this.getAlignment());                      // we transfer the current timing data to the audio alignment
                 this.getParent().getSyncPlayer().selectAlignmentPerformance();          // select the alignment in the SyncPlayer so any further interaction in the piano roll will be on the alignment and not on the performance
             }
@@ -458,24 +473,44 @@ public class AudioDocumentData extends DocumentData<WebPanel> {
 
     /**
      * update the alignment data according to the currently selected performance in the SyncPlayer
-     * @param doRepaint
+     * @param doRepaint if true, the alignment of a performance is created in the background and the frame is repainted when it is done; otherwise it is created right away
      */
     public void updateAlignment(boolean doRepaint) {
         if (this.parent.getSyncPlayer().isAudioAlignmentSelected()) {
+            this.renderService.cancelAll();
             this.alignment = this.getAudio().getAlignment();
+            this.alignmentPerformance = null;
         } else {
             Performance performance = this.parent.getSyncPlayer().getSelectedPerformance();
 
-            if (performance != null) {
-                this.alignment = new Alignment(performance.perform(this.parent.getMsm()), null);    // get the performance as an instance of Alignment
+            if (performance == null) {
+                this.renderService.cancelAll();
+                this.alignment = null;
+                this.alignmentPerformance = null;
+            } else if (!doRepaint) {
+                this.renderService.cancelAll();
+                this.alignment = this.alignmentBuilder.build(this.parent.getMsm(), performance);    // get the performance as an instance of Alignment
+                this.alignmentPerformance = performance;
+            } else {
+                if (performance != this.alignmentPerformance) {                                    // another performance was selected, the current alignment must not be used any longer
+                    this.renderService.cancel(this.alignmentPerformance);
+                    this.alignment = null;
+                    this.alignmentPerformance = performance;
+                }
+                this.renderService.submit(this.parent.getMsm(), performance, alignment -> {       // this is executed in the EDT
+                    if (this.parent.getSyncPlayer().isAudioAlignmentSelected() || (this.parent.getSyncPlayer().getSelectedPerformance() != performance))
+                        return;                                                                     // the selection has changed meanwhile
+                    this.alignment = alignment;
+                    this.updatePlaybackPosSample();
+                    this.repaintAllComponents();
+                    this.updateAudioTools();
+                });
+            }
 //                for (Part part : this.alignment.getParts()) {                                       // since the alignment is computed from a performance all notes should be marked as fixed
 //                    for (Note note : part.getNoteSequence()) {
 //                        note.setFixed(true);
 //                    }
 //                }
-            } else {
-                this.alignment = null;
-            }
         }
 
         if (doRepaint) {
@@ -486,6 +521,25 @@ public class AudioDocumentData extends DocumentData<WebPanel> {
         }
     }
 
+    /**
+     * Invoke this after the MSM has been altered in place, e.g. by resolving its sequencingMaps. The notes keep their
+     * xml:ids but not necessarily their tick dates, durations and pitches, so the score data that the alignment builder
+     * reuses is outdated. It is discarded and the alignment is created anew.
+     */
+    public void msmChanged() {
+        this.renderService.cancelAll();
+        this.alignmentBuilder.clear();
+        this.updateAlignment(true);
+    }
+
+    /**
+     * access the service that creates the alignments of the performances in the background, e.g. to read its counters
+     * @return
+     */
+    public PerformanceRenderService getPerformanceRenderService() {
+        return this.renderService;
+    }
+
     /**
      * update the information that is displayed in the tempomap panel
      */
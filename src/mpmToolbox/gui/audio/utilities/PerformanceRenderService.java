@@ -0,0 +1,221 @@
+package mpmToolbox.gui.audio.utilities;
+
+import com.alee.api.annotations.NotNull;
+import meico.mpm.elements.Performance;
+import meico.msm.Msm;
+import mpmToolbox.projectData.alignment.Alignment;
+import mpmToolbox.projectData.alignment.AlignmentBuilder;
+
+import javax.swing.*;
+import java.lang.reflect.InvocationTargetException;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Performing an MSM and creating the alignment from it can take a while for large scores. This service does it in a
+ * background thread, so the GUI does not freeze while the user edits the MPM. There is at most one job per performance;
+ * a new request for a performance replaces the previous one (latest wins), so a quick series of edits does not queue up
+ * a series of renderings. The finished alignment is handed over to the Event Dispatch Thread. The rendering does not
+ * read the XML trees of the MSM and performance while they are edited, it works on copies. These are made when the job
+ * starts, so a series of edits during a rendering is copied only once, for the job that comes next.
+ * @author Axel Berndt
+ */
+public class PerformanceRenderService {
+    private final AlignmentBuilder builder;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "performance rendering");
+        thread.setDaemon(true);                                 // do not keep the application alive
+        return thread;
+    });
+    private final HashMap<Performance, Job> jobs = new HashMap<>();    // the latest job of each performance that is not yet done
+    private final AtomicLong completed = new AtomicLong(0);    // the number of alignments that were handed over
+    private final AtomicLong dropped = new AtomicLong(0);      // the number of jobs that were replaced, cancelled or failed
+
+    /**
+     * constructor
+     * @param builder creates the alignments
+     */
+    public PerformanceRenderService(@NotNull AlignmentBuilder builder) {
+        super();
+        this.builder = builder;
+    }
+
+    /**
+     * perform the MSM and create the alignment in the background; a job of the same performance that is not yet done is cancelled
+     * @param msm
+     * @param performance
+     * @param onDone receives the alignment in the Event Dispatch Thread
+     */
+    public synchronized void submit(@NotNull Msm msm, @NotNull Performance performance, @NotNull Consumer<Alignment> onDone) {
+        Job job = new Job(performance);
+        Job previous = this.jobs.put(performance, job);
+        if (previous != null)
+            previous.drop();
+
+        job.future = this.executor.submit(() -> {
+            if (!this.isLatest(job))                            // replaced before it started
+                return;
+
+            Object[] copies = this.copy(job, msm, performance);
+            if (copies == null)                                 // replaced or failed while copying
+                return;
+
+            Alignment alignment;
+            try {
+                alignment = this.builder.build(msm, (Msm) copies[0], (Performance) copies[1]);
+            } catch (Exception e) {
+                e.printStackTrace();
+                this.remove(job);
+                job.drop();
+                return;
+            }
+
+            SwingUtilities.invokeLater(() -> {                  // it is checked in the EDT whether the alignment is still up to date, because the edits happen there
+                if (!this.remove(job)) {                        // replaced while it was computed
+                    job.drop();
+                    return;
+                }
+                if (job.complete())
+                    onDone.accept(alignment);
+            });
+        });
+    }
+
+    /**
+     * XOM is not thread-safe and the EDT goes on editing the MSM and MPM, so the worker thread renders copies of their
+     * current state. All edits happen in the EDT, so the copies are made there; no edit can interfere.
+     * @param job
+     * @param msm
+     * @param performance
+     * @return {the copy of the MSM, the copy of the performance} or null if the job was replaced or the copying failed
+     */
+    private Object[] copy(Job job, Msm msm, Performance performance) {
+        Object[] copies = new Object[2];
+        try {
+            SwingUtilities.invokeAndWait(() -> {
+                if (!this.isLatest(job))                        // replaced meanwhile, it would be copied in vain
+                    return;
+                copies[0] = msm.clone();
+                copies[1] = Performance.createPerformance(performance.getXml().copy());
+            });
+        } catch (InterruptedException | InvocationTargetException e) {
+            e.printStackTrace();
+            if (e instanceof InterruptedException)
+                Thread.currentThread().interrupt();
+            this.remove(job);
+            job.drop();
+            return null;
+        }
+        return ((copies[0] == null) || (copies[1] == null)) ? null : copies;
+    }
+
+    /**
+     * cancel the job of the performance, if there is one
+     * @param performance
+     */
+    public synchronized void cancel(Performance performance) {
+        Job job = this.jobs.remove(performance);
+        if (job != null)
+            job.drop();
+    }
+
+    /**
+     * cancel all jobs
+     */
+    public synchronized void cancelAll() {
+        for (Job job : this.jobs.values())
+            job.drop();
+        this.jobs.clear();
+    }
+
+    /**
+     * is there a job of the performance that is not yet done?
+     * @param performance
+     * @return
+     */
+    public synchronized boolean isPending(Performance performance) {
+        return this.jobs.containsKey(performance);
+    }
+
+    /**
+     * the number of alignments that were handed over so far
+     * @return
+     */
+    public long getCompletedCount() {
+        return this.completed.get();
+    }
+
+    /**
+     * the number of jobs that were replaced by newer ones, cancelled or failed so far
+     * @return
+     */
+    public long getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    /**
+     * check if the job is the latest of its performance
+     * @param job
+     * @return
+     */
+    private synchronized boolean isLatest(Job job) {
+        return this.jobs.get(job.performance) == job;
+    }
+
+    /**
+     * remove the job if it is the latest of its performance
+     * @param job
+     * @return true if it was the latest
+     */
+    private synchronized boolean remove(Job job) {
+        if (this.jobs.get(job.performance) != job)
+            return false;
+        this.jobs.remove(job.performance);
+        return true;
+    }
+
+    /**
+     * a rendering job
+     */
+    private class Job {
+        private static final int RUNNING = 0;
+        private static final int COMPLETED = 1;
+        private static final int DROPPED = 2;
+
+        private final Performance performance;
+        private final AtomicInteger state = new AtomicInteger(RUNNING);
+        private volatile Future<?> future = null;
+
+        private Job(Performance performance) {
+            this.performance = performance;
+        }
+
+        /**
+         * mark the job completed and count it
+         * @return false if it was already dropped
+         */
+        private boolean complete() {
+            if (!this.state.compareAndSet(RUNNING, COMPLETED))
+                return false;
+            PerformanceRenderService.this.completed.incrementAndGet();
+            return true;
+        }
+
+        /**
+         * cancel the job and count it, it is counted only once
+         */
+        private void drop() {
+            if (!this.state.compareAndSet(RUNNING, DROPPED))
+                return;
+            PerformanceRenderService.this.dropped.incrementAndGet();
+            Future<?> future = this.future;
+            if (future != null)
+                future.cancel(false);                           // a job that has not yet started will not start; a running one cannot be interrupted within meico, so its result is discarded
+        }
+    }
+}
@@ -163,5 +163,9 @@ import java.util.HashMap;
         msmTree.reloadNode(msmTree.getRootNode());
         mpmTree.reloadNode(mpmTree.getRootNode());
         msmTree.getProjectPane().getScore().cleanupDeadNodes();
+
+        // the alignment in the audio frame has to be created from the altered MSM
+        if (msmTree.getProjectPane().getAudioFrame() != null)
+            msmTree.getProjectPane().getAudioFrame().msmChanged();
     }
 }
@@ -1,5 +1,6 @@
 package mpmToolbox.gui.syncPlayer;
 
+import com.sun.media.sound.InvalidDataException;
 import meico.midi.Midi;
 import meico.mpm.elements.Performance;
 import mpmToolbox.gui.syncPlayer.utilities.AudioChooserItem;
@@ -45,7 +46,14 @@ public class PlaybackRunnable implements Runnable {
         Audio selectedAudio = null;
         if (this.syncPlayer.audioChooser.getSelectedItem() != null) {
             selectedAudio = ((AudioChooserItem) this.syncPlayer.audioChooser.getSelectedItem()).getValue();
-            if (this.syncPlayer.getAudioPlayer().setAudioData(selectedAudio))
+            boolean loaded;
+            try {
+                loaded = this.syncPlayer.getAudioPlayer().setAudioData(selectedAudio.getPlaybackAudio());    // if the audio data is memory-mapped, this is a copy in the heap
+            } catch (InvalidDataException e) {
+                e.printStackTrace();
+                loaded = false;
+            }
+            if (loaded)
                 this.audio = this.syncPlayer.getAudioPlayer().getAudioClip();
             else
                 this.audio = null;
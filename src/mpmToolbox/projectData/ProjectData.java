@@ -99,7 +99,7 @@ public class ProjectData {
             for (int i=0; i < audios.size(); ++i) {
                 Element projectAudioData = audios.get(i);
                 try {
-                    this.addAudio(new Audio(projectAudioData, basePath, this.getMsm()));
+                    this.addAudio(Audio.fromProject(projectAudioData, basePath, this.getMsm()));
                 } catch (UnsupportedAudioFileException | IOException ex) {
                     ex.printStackTrace();
                 }
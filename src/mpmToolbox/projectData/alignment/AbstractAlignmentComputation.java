@@ -106,6 +106,13 @@ public abstract class AbstractAlignmentComputation extends WebDialog<AbstractAli
      */
     public abstract Audio compute(@NotNull Audio audio);
 
+    /**
+     * This method is called when the project is closed. Implementations that hold on to expensive resources
+     * (native sessions, caches etc.) should override it to release them.
+     */
+    public void releaseResources() {
+    }
+
     /**
      * this opens the dialog window
      * @param audio
@@ -17,6 +17,8 @@ import nu.xom.Elements;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.UUID;
 
@@ -30,19 +32,32 @@ public class Alignment {
     private PianoRoll pianoRoll = null;
     private final Msm msm;
     private final ArrayList<double[]> timingTransformation = new ArrayList<>();   // each element provides the following values {startDate, endDate, toStartDate, toEndDate}, all in milliseconds
+    private ArrayList<double[]> renderedTimingTransformation = null;             // the timing transformation that the notes are currently placed by, null if unknown
     private Note lastNoteSounding = null;
+    private List<Note> noteSequenceInTicks = null;                               // the merged note sequences of all parts in order of their tick date, see getNoteSequenceInTicks()
+    private Part[] noteSequenceInTicksParts = null;                              // the parts that noteSequenceInTicks was merged from
+    private int[] noteSequenceInTicksVersions = null;                            // the modification counts of their tick sequences at that time
 
     /**
      * constructor
      * @param msm
      */
     private Alignment(Msm msm) {
+        this(msm, (Alignment) null);
+    }
+
+    /**
+     * constructor; the notes that are also in the template take their score data from there, see Part(Element, Part)
+     * @param msm a performed MSM
+     * @param template an alignment of another performance of the same MSM or null
+     */
+    private Alignment(Msm msm, Alignment template) {
         super();
         this.msm = msm;
 
         for (Element part : msm.getParts()) {
             try {
-                this.add(new Part(part));
+                this.add(new Part(part, (template == null) ? null : template.getPart(Integer.parseInt(Helper.getAttributeValue("number", part)))));
             } catch (InvalidDataException e) {
                 e.printStackTrace();
             }
@@ -89,6 +104,17 @@ public class Alignment {
         }
     }
 
+    /**
+     * create the alignment of a performed MSM; the notes that are also in the template take their score data from there,
+     * so only the performance data has to be parsed, see AlignmentBuilder
+     * @param performedMsm
+     * @param template an alignment of another performance of the same MSM or null
+     * @return
+     */
+    static Alignment fromPerformance(Msm performedMsm, Alignment template) {
+        return new Alignment(performedMsm, template);
+    }
+
     /**
      * add a part to the alignment data
      * @param part
@@ -159,24 +185,114 @@ public class Alignment {
 
     /**
      * Get the note sequence according to their notation, i.e. in order of their tick date.
-     * This gives an accumulated sequence with all notes of all parts.
-     * @return accumulated sequence with all notes of all parts.
-     */
-    public ArrayList<Note> getNoteSequenceInTicks() {
-        ArrayList<Note> seq = new ArrayList<>();
-
-        for (Part part : this.parts) {                      // for each part
-            int i = 0;
-            for (Note n : part.getNoteSequenceInTicks()) {  // get its note sequence in ticks and do the following for each note
-                double date = n.getDate();                  // get the tick date of the note
-                for (; i < seq.size(); ++i)                 // find the first element in seq with a tick date greater than that of the note to be inserted
-                    if (date < seq.get(i).getDate())
-                        break;
-                seq.add(i, n);
-            }
+     * This gives an accumulated sequence with all notes of all parts. Notes with the same tick date are in the order of the parts.
+     * The sequence is merged from the parts' sequences and kept until notes are added to or removed from the parts.
+     * @return accumulated sequence with all notes of all parts, read-only
+     */
+    public List<Note> getNoteSequenceInTicks() {
+        if (!this.isNoteSequenceInTicksUpToDate()) {
+            this.noteSequenceInTicksParts = this.parts.toArray(new Part[0]);
+            this.noteSequenceInTicksVersions = new int[this.noteSequenceInTicksParts.length];
+            for (int p = 0; p < this.noteSequenceInTicksParts.length; ++p)
+                this.noteSequenceInTicksVersions[p] = this.noteSequenceInTicksParts[p].getNoteSequenceInTicks().getModificationCount();
+            this.noteSequenceInTicks = Collections.unmodifiableList(Arrays.asList(mergeNoteSequences(this.noteSequenceInTicksParts)));
+        }
+        return this.noteSequenceInTicks;
+    }
+
+    /**
+     * the notes in order of their tick date as primitive columns, see getNoteSequenceInTicks();
+     * the columns are a snapshot, i.e. they do not follow later changes of the notes' milliseconds dates
+     * @return
+     */
+    public NoteColumns getNoteColumnsInTicks() {
+        return new NoteColumns(this.getNoteSequenceInTicks());
+    }
+
+    /**
+     * check whether the cached note sequence in ticks was merged from the current parts and their current notes
+     * @return
+     */
+    private boolean isNoteSequenceInTicksUpToDate() {
+        if ((this.noteSequenceInTicks == null) || (this.noteSequenceInTicksParts.length != this.parts.size()))
+            return false;
+
+        for (int p = 0; p < this.noteSequenceInTicksParts.length; ++p) {
+            Part part = this.parts.get(p);
+            if ((part != this.noteSequenceInTicksParts[p]) || (part.getNoteSequenceInTicks().getModificationCount() != this.noteSequenceInTicksVersions[p]))
+                return false;
         }
+        return true;
+    }
 
-        return seq;
+    /**
+     * merge the parts' note sequences in ticks into one sequence (k-way merge with a heap of the parts' next notes)
+     * @param parts
+     * @return the notes in order of their tick date, notes with the same date are in the order of the parts
+     */
+    private static Note[] mergeNoteSequences(Part[] parts) {
+        NoteSequence[] sequences = new NoteSequence[parts.length];
+        int[] positions = new int[parts.length];
+        int[] heap = new int[parts.length];                 // a binary min-heap of sequence indices, ordered by the date of their next note and then by their index
+        int heapSize = 0;
+        int size = 0;
+
+        for (int p = 0; p < parts.length; ++p) {
+            sequences[p] = parts[p].getNoteSequenceInTicks();
+            size += sequences[p].size();
+            if (!sequences[p].isEmpty())
+                heap[heapSize++] = p;                       // the sequence indices are in ascending order, but the dates are not, so the heap is built below
+        }
+        for (int i = (heapSize >> 1) - 1; i >= 0; --i)
+            siftDown(heap, heapSize, i, sequences, positions);
+
+        Note[] merged = new Note[size];
+        for (int i = 0; i < size; ++i) {
+            int p = heap[0];
+            merged[i] = sequences[p].get(positions[p]++);
+            if (positions[p] == sequences[p].size())        // the sequence is done, replace it by the last in the heap
+                heap[0] = heap[--heapSize];
+            siftDown(heap, heapSize, 0, sequences, positions);
+        }
+        return merged;
+    }
+
+    /**
+     * helper method for mergeNoteSequences(), move a heap element down to its place
+     * @param heap
+     * @param heapSize
+     * @param i
+     * @param sequences
+     * @param positions
+     */
+    private static void siftDown(int[] heap, int heapSize, int i, NoteSequence[] sequences, int[] positions) {
+        int p = heap[i];
+        while (true) {
+            int child = (i << 1) + 1;
+            if (child >= heapSize)
+                break;
+            if ((child + 1 < heapSize) && isBefore(heap[child + 1], heap[child], sequences, positions))
+                ++child;
+            if (!isBefore(heap[child], p, sequences, positions))
+                break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = p;
+    }
+
+    /**
+     * helper method for mergeNoteSequences(), compare the next notes of two sequences
+     * @param a
+     * @param b
+     * @param sequences
+     * @param positions
+     * @return true if the next note of sequence a comes before the next note of sequence b
+     */
+    private static boolean isBefore(int a, int b, NoteSequence[] sequences, int[] positions) {
+        double dateA = sequences[a].getDate(positions[a]);
+        double dateB = sequences[b].getDate(positions[b]);
+        return (dateA < dateB) || ((dateA == dateB) && (a < b));
     }
 
     /**
@@ -204,71 +320,93 @@ public class Alignment {
     }
 
     /**
-     * initialize the timing transformation based on the fixed notes of all the parts;
-     * invoke this method whenever up-to-date timing transformation data are to be processed
+     * This does the same as updateTiming() after a fixed note has been repositioned,
+     * but re-times only the notes in the time ranges where the timing transformation changed,
+     * i.e. usually the notes between the fixed notes before and after the repositioned note.
+     * @param repositioned the repositioned note
      */
-    private void updateTimingTransformation() {
-        // create an ordered list of all fixed notes
-        ArrayList<Note> fixedNotes = new ArrayList<>();
-        int[] indices = new int[this.getParts().size()];
-        Arrays.fill(indices, 0);                                                                // initialize the indices array with zeros
+    private void updateTimingLocally(Note repositioned) {
+        ArrayList<double[]> previous = this.renderedTimingTransformation;
+        this.updateTimingTransformation();
 
-        for (boolean done = false; !done; done = Arrays.stream(indices).allMatch(n -> n < 0)) { // we are done when all indices are < 0
-            for (int p = 0; p < this.getParts().size(); ++p) {                                  // for each part
-                Part part = this.getParts().get(p);
+        if ((previous == null) || !Part.isOrdered(previous) || !Part.isOrdered(this.timingTransformation)) {  // we do not know how the notes are placed or cannot compare the transformations
+            this.renderTiming();
+        } else {
+            ArrayList<double[]> changedRanges = getChangedRanges(previous, this.timingTransformation);
+            for (Part part : this.getParts())
+                part.transformTiming(this.timingTransformation, changedRanges, part.contains(repositioned) ? repositioned : null);
+            this.renderedTimingTransformation = new ArrayList<>(this.timingTransformation);
+        }
+        this.lastNoteSounding = null;
+    }
 
-                if (indices[p] < 0)                                                             // if we reached the end of the part's note sequence
-                    continue;
+    /**
+     * compare two ordered timing transformations and find the ranges of initial milliseconds dates where they differ
+     * @param a
+     * @param b
+     * @return a list of ranges {from, to} in ascending order
+     */
+    private static ArrayList<double[]> getChangedRanges(ArrayList<double[]> a, ArrayList<double[]> b) {
+        // all segment boundaries of both transformations; between two subsequent boundaries each transformation has one segment or none
+        double[] boundaries = new double[2 * (a.size() + b.size())];
+        int n = 0;
+        for (double[] segment : a) {
+            boundaries[n++] = segment[0];
+            boundaries[n++] = segment[1];
+        }
+        for (double[] segment : b) {
+            boundaries[n++] = segment[0];
+            boundaries[n++] = segment[1];
+        }
+        Arrays.sort(boundaries);
+
+        ArrayList<double[]> ranges = new ArrayList<>();
+        int ai = 0;
+        int bi = 0;
+        for (int i = 0; i < boundaries.length - 1; ++i) {
+            double from = boundaries[i];
+            double to = boundaries[i + 1];
+            if (from == to)
+                continue;
 
-                if (!part.getNoteSequence().isEmpty()                                           // the note sequence must have at least on element
-                        && part.getNoteSequence().get(indices[p]).isFixed()) {                  // we have a fixed note to be added to the list of fixed notes
-                    Note note = part.getNoteSequence().get(indices[p]);
-                    int addIndex = fixedNotes.size();
-                    while ((addIndex > 0) && (fixedNotes.get(addIndex - 1).getMillisecondsDate() > note.getMillisecondsDate()))  // if there are already later notes in the list
-                        --addIndex;                                                             // find the index before the earliest note that is after the note to be added
-                    fixedNotes.add(Math.max(0, addIndex), note);
-                }
+            while ((ai < a.size()) && (a.get(ai)[1] <= from))
+                ++ai;
+            while ((bi < b.size()) && (b.get(bi)[1] <= from))
+                ++bi;
+            double[] segmentA = ((ai < a.size()) && (a.get(ai)[0] <= from)) ? a.get(ai) : null;
+            double[] segmentB = ((bi < b.size()) && (b.get(bi)[0] <= from)) ? b.get(bi) : null;
+            if (Arrays.equals(segmentA, segmentB))
+                continue;
 
-                do {                                                                            // find the next fixed note
-                    if ((++indices[p]) >= part.getNoteSequence().size()) {                      // increment the index and check if we reached the end of the part's note sequence
-                        indices[p] = -1;                                                        // as we reached the end of the part's note sequence, set the index negative, so it is recognized by the for-loop's allMatch() check
-                        break;
-                    }
-                } while (!part.getNoteSequence().get(indices[p]).isFixed());
-            }
+            if (!ranges.isEmpty() && (ranges.get(ranges.size() - 1)[1] >= from))   // extend the previous range
+                ranges.get(ranges.size() - 1)[1] = to;
+            else
+                ranges.add(new double[]{from, to});
         }
+        return ranges;
+    }
 
-//        this is alternative code to the above code block; the above is more efficient
-//        ArrayList<Note> fixedNotes = new ArrayList<>();
-//        for (Part part : this.getParts()) {
-//            ArrayList<Note> f = part.getAllFixedNotes(false);   // get the part's list of fixed notes in the order of the current timing
-//
-//            if (fixedNotes.isEmpty()) {                         // if the fixedNotes list is empty
-//                fixedNotes.addAll(f);                           // we can simply add the part's list, it is already ordered
-//                continue;                                       // go on with the next part
-//            }
-//
-//            // add the fixed notes to the list and keep the temporal order
-//            int i = 0;
-//            for (Note n : f) {
-//                boolean added = false;
-//                for (; i < fixedNotes.size(); ++i) {
-//                    if (fixedNotes.get(i).getMillisecondsDate() > n.getMillisecondsDate()) {
-//                        fixedNotes.add(i, n);
-//                        added = true;
-//                        i++;
-//                        break;
-//                    }
-//                }
-//                if (!added)
-//                    fixedNotes.add(n);
-//            }
-//        }
+    /**
+     * initialize the timing transformation based on the fixed notes of all the parts;
+     * invoke this method whenever up-to-date timing transformation data are to be processed
+     */
+    private void updateTimingTransformation() {
+        // create an ordered list of all fixed notes
+        ArrayList<Note> fixedNotes = this.getFixedNotesInOrder();
 
         if (fixedNotes.isEmpty())                                                               // if no fixed notes
             return;                                                                             // we are done
 
         this.timingTransformation.clear();                                                      // we compute the timing transformation data anew
+
+        // for each fixed note the earliest initial date of all the fixed notes that follow it in the sequence
+        double[] minFollowingInitialDate = new double[fixedNotes.size()];
+        double min = Double.POSITIVE_INFINITY;
+        for (int i = fixedNotes.size() - 1; i >= 0; --i) {
+            minFollowingInitialDate[i] = min;
+            min = Math.min(min, fixedNotes.get(i).getInitialMillisecondsDate());
+        }
+
         Note beginner = null;                                                                   // the section to be scaled begins with this note's millisecondsDate and initialMillisecondsDate
         Note stopper = null;                                                                    // the section is scaled into [beginner.millisecondsDate; stopper.millisecondsDate)
         for (int i=0; i < fixedNotes.size(); ++i) {
@@ -278,13 +416,7 @@ public class Alignment {
                 stopper = note;                                                                 // we take the first note we find
 
             // check if this is a beginner note, i.e. a note that was not shifted before another fixed note
-            boolean isEnder = true;
-            for (int j=i+1; j < fixedNotes.size(); ++j) {                                       // check if another fixed note follows in the sequence that was initially before the current note
-                if (fixedNotes.get(j).getInitialMillisecondsDate() < note.getInitialMillisecondsDate()) {  // if we found one
-                    isEnder = false;                                                            // set the flag false
-                    break;
-                }
-            }
+            boolean isEnder = !(minFollowingInitialDate[i] < note.getInitialMillisecondsDate()); // no other fixed note follows in the sequence that was initially before the current note
 
             if (isEnder) {                                                                      // if we found the next beginner = "ender" of the previous section
                 double newStopperMsDate = stopper.getMillisecondsDate();
@@ -323,12 +455,44 @@ public class Alignment {
         }
     }
 
+    /**
+     * collect the fixed notes of all parts in the order of their milliseconds dates;
+     * the parts' fixed notes are taken in turns, one per part, and then sorted stably, so
+     * fixed notes with the same date are in the order in which they were taken
+     * @return
+     */
+    private ArrayList<Note> getFixedNotesInOrder() {
+        ArrayList<ArrayList<Note>> fixedNotesPerPart = new ArrayList<>();
+        int[] delays = new int[this.getParts().size()];                 // a part whose note sequence does not start with a fixed note contributes its first fixed note only in the second turn
+        int turns = 0;
+        for (int p = 0; p < this.getParts().size(); ++p) {
+            Part part = this.getParts().get(p);
+            ArrayList<Note> fixed = part.getAllFixedNotes(false);       // in the order of the current timing
+            fixedNotesPerPart.add(fixed);
+            delays[p] = (part.getNoteSequence().isEmpty() || !part.getNoteSequence().get(0).isFixed()) ? 1 : 0;
+            turns = Math.max(turns, fixed.size() + delays[p]);
+        }
+
+        ArrayList<Note> fixedNotes = new ArrayList<>();
+        for (int turn = 0; turn < turns; ++turn) {
+            for (int p = 0; p < fixedNotesPerPart.size(); ++p) {
+                int index = turn - delays[p];
+                if ((index >= 0) && (index < fixedNotesPerPart.get(p).size()))
+                    fixedNotes.add(fixedNotesPerPart.get(p).get(index));
+            }
+        }
+        fixedNotes.sort(Comparator.comparingDouble(Note::getMillisecondsDate));  // List.sort() is stable
+
+        return fixedNotes;
+    }
+
     /**
      * apply the current timing transformation to all parts, so their notes get new millisecondsDates and millisecondsDateEnds
      */
     private void renderTiming() {
         for (Part part : this.getParts())   // apply the timing transform to each part
             part.transformTiming(this.timingTransformation);
+        this.renderedTimingTransformation = new ArrayList<>(this.timingTransformation);
     }
 
     /**
@@ -560,7 +724,7 @@ public class Alignment {
             if (part.contains(note))
                 part.reposition(note, toMilliseconds);
 
-        this.updateTiming();
+        this.updateTimingLocally(note);
     }
 
     /**
@@ -590,6 +754,7 @@ public class Alignment {
             part.reset();
         }
         this.lastNoteSounding = null;
+        this.renderedTimingTransformation = null;
     }
 
     /**
@@ -703,6 +868,7 @@ public class Alignment {
         for (Part part : this.parts) {
             part.scaleOverallTiming(factor);
         }
+        this.renderedTimingTransformation = null;
     }
 
     /**
@@ -0,0 +1,74 @@
+package mpmToolbox.projectData.alignment;
+
+import meico.mpm.elements.Performance;
+import meico.msm.Msm;
+
+/**
+ * This class creates the alignments of performances of one MSM. It keeps the alignment it created last and reuses its
+ * score data (tick dates, pitches, durations), accessed via the notes' xml:id, for the next alignment. So only the
+ * performance data (milliseconds dates and velocities) has to be parsed from the performed MSM when another performance
+ * is selected or the performance has been edited.
+ * @author Axel Berndt
+ */
+public class AlignmentBuilder {
+    private Msm msm = null;                 // the MSM that the previous alignment is a performance of
+    private Alignment previous = null;      // the alignment that was created last
+    private long generation = 0;            // counts the changes of the MSM, so a rendering that ran meanwhile does not store its alignment as that of the current MSM
+
+    /**
+     * constructor
+     */
+    public AlignmentBuilder() {
+        super();
+    }
+
+    /**
+     * perform the MSM and create the alignment of the performance
+     * @param msm
+     * @param performance
+     * @return the alignment
+     */
+    public Alignment build(Msm msm, Performance performance) {
+        return this.build(msm, msm, performance);
+    }
+
+    /**
+     * perform a copy of the MSM and the performance and create the alignment; this is how a background thread renders
+     * the state of the data at the time of the request while the originals are edited further in the Event Dispatch Thread;
+     * the builder is not locked while the MSM is performed, so other threads can build alignments at the same time
+     * @param msm the MSM, it identifies the score data that can be reused
+     * @param msmCopy the copy of the MSM to be performed
+     * @param performanceCopy the copy of the performance to be rendered
+     * @return the alignment
+     */
+    public Alignment build(Msm msm, Msm msmCopy, Performance performanceCopy) {
+        Alignment template;
+        long generation;
+        synchronized (this) {
+            if (msm != this.msm) {          // the score data of another MSM is of no use
+                this.msm = msm;
+                this.previous = null;
+                ++this.generation;
+            }
+            template = this.previous;
+            generation = this.generation;
+        }
+
+        Alignment alignment = Alignment.fromPerformance(performanceCopy.perform(msmCopy), template);
+
+        synchronized (this) {
+            if (generation == this.generation)  // the MSM did not change meanwhile
+                this.previous = alignment;
+        }
+        return alignment;
+    }
+
+    /**
+     * forget the score data, e.g. after the MSM has been edited
+     */
+    public synchronized void clear() {
+        this.msm = null;
+        this.previous = null;
+        ++this.generation;
+    }
+}
@@ -74,6 +74,47 @@ public class Note {
         this.xml = xml;
     }
 
+    /**
+     * constructor for a note of a performed MSM whose score data is already known from another performance of the same MSM;
+     * only the performance data (milliseconds dates and velocity) is parsed from the element
+     * @param xml a note element from a performed Msm object
+     * @param template the note with the same xml:id from the other performance
+     * @throws InvalidDataException
+     * @throws NumberFormatException
+     */
+    protected Note(Element xml, Note template) throws InvalidDataException, NumberFormatException {
+        this.tickDate = template.getDate();
+
+        // parse the note's onset date
+        Attribute millisDate = Helper.getAttribute("milliseconds.date", xml);
+        this.initialMillisecondsDate = (millisDate == null) ? this.tickDate : Double.parseDouble(millisDate.getValue());
+        this.millisecondsDate = this.initialMillisecondsDate;
+
+        // parse the note's offset date
+        Attribute millisEnd = Helper.getAttribute("milliseconds.date.end", xml);
+        if (millisEnd == null) {
+            Double duration = template.getDuration();
+            if (duration == null)
+                throw new InvalidDataException("Invalid MSM element " + xml.toXML() + "; missing attribute duration.");
+            this.initialMillisecondsDateEnd = this.millisecondsDate + duration;
+        }
+        else {
+            this.initialMillisecondsDateEnd = Double.parseDouble(millisEnd.getValue());
+        }
+        this.millisecondsDateEnd = this.initialMillisecondsDateEnd;
+
+        // the pitch is score data, the velocity is performance data
+        this.pitch = template.getPitch();
+        Attribute vel = Helper.getAttribute("velocity", xml);
+        if (vel == null)                // if no velocity given
+            this.velocity = 100.0;      // set default velocity
+        else
+            this.velocity = Double.parseDouble(vel.getValue());
+
+        // keep the reference to the original MSM note element
+        this.xml = xml;
+    }
+
     /**
      * This method is only used when loading an MPM Toolbox project.
      * It sets the data from the project file in this note.
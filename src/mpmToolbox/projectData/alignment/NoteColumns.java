@@ -0,0 +1,79 @@
+package mpmToolbox.projectData.alignment;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A columnar snapshot of a note sequence: the tick dates, pitches and milliseconds dates of the notes in primitive arrays,
+ * so hot loops, e.g. in the automatic aligners, do not need to call into the note objects or box their values.
+ * The snapshot does not follow later changes of the notes.
+ * @author Axel Berndt
+ */
+public class NoteColumns {
+    public final Note[] notes;                  // the notes in the order of the sequence
+    public final double[] ticks;                // the tick dates
+    public final int[] pitches;                 // the pitches as integer MIDI pitch, fractions are cut off
+    public final double[] milliseconds;         // the milliseconds dates
+
+    /**
+     * constructor
+     * @param sequence the notes
+     */
+    public NoteColumns(List<Note> sequence) {
+        int size = sequence.size();
+        this.notes = sequence.toArray(new Note[size]);
+        this.ticks = new double[size];
+        this.pitches = new int[size];
+        this.milliseconds = new double[size];
+
+        for (int i = 0; i < size; ++i) {
+            Note note = this.notes[i];
+            this.ticks[i] = note.getDate();
+            this.pitches[i] = (int) note.getPitch();
+            this.milliseconds[i] = note.getMillisecondsDate();
+        }
+    }
+
+    /**
+     * the number of notes
+     * @return
+     */
+    public int size() {
+        return this.notes.length;
+    }
+
+    /**
+     * find the notes that are the first of their combination of milliseconds date and pitch, i.e. drop all notes that
+     * have the same milliseconds date and pitch as a note earlier in the sequence
+     * @return the indices of the remaining notes in ascending order
+     */
+    public int[] getFirstOfMillisecondsDateAndPitch() {
+        int size = this.size();
+        int capacity = Integer.highestOneBit(Math.max(2, size) * 2 - 1) << 1;  // a power of 2 of at least twice the size, so the hash table never gets full
+        int mask = capacity - 1;
+        long[] tableDates = new long[capacity];
+        int[] tablePitches = new int[capacity];
+        boolean[] used = new boolean[capacity];
+
+        int[] out = new int[size];
+        int count = 0;
+        for (int i = 0; i < size; ++i) {
+            long date = Double.doubleToLongBits(this.milliseconds[i]);      // distinguishes the same dates as their string representation would
+            int pitch = this.pitches[i];
+
+            long hash = (date ^ (date >>> 32)) * 0x9E3779B97F4A7C15L + pitch;
+            int slot = (int) (hash ^ (hash >>> 29)) & mask;
+            while (used[slot] && ((tableDates[slot] != date) || (tablePitches[slot] != pitch)))   // linear probing
+                slot = (slot + 1) & mask;
+
+            if (used[slot])                                                 // the combination was already there
+                continue;
+
+            used[slot] = true;
+            tableDates[slot] = date;
+            tablePitches[slot] = pitch;
+            out[count++] = i;
+        }
+        return Arrays.copyOf(out, count);
+    }
+}
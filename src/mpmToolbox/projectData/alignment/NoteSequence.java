@@ -0,0 +1,236 @@
+package mpmToolbox.projectData.alignment;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.RandomAccess;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * A sequence of notes in the order of a date, e.g. the milliseconds date, the initial milliseconds date or the tick date.
+ * The dates are kept in a primitive array parallel to the notes, so the binary searches do not need to access the notes.
+ * Notes with the same date stay in the order in which they were added.
+ * <p>
+ * The sequence keeps the date that each note had when it was added or sorted. If the dates of the notes change,
+ * the sequence has to be sorted again, see sort() and sort(int, int, Comparator).
+ * @author Axel Berndt
+ */
+public class NoteSequence extends AbstractList<Note> implements RandomAccess {
+    private final ToDoubleFunction<Note> date;      // reads the date from a note
+    private Note[] notes = new Note[16];
+    private double[] dates = new double[16];
+    private int size = 0;
+
+    /**
+     * constructor
+     * @param date the function that reads the date from a note, e.g. Note::getMillisecondsDate
+     */
+    public NoteSequence(ToDoubleFunction<Note> date) {
+        super();
+        this.date = date;
+    }
+
+    /**
+     * get the note at the specified index
+     * @param index
+     * @return
+     */
+    @Override
+    public Note get(int index) {
+        if ((index < 0) || (index >= this.size))
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + this.size);
+        return this.notes[index];
+    }
+
+    /**
+     * get the date of the note at the specified index, as it was when the note was added or sorted
+     * @param index
+     * @return
+     */
+    public double getDate(int index) {
+        if ((index < 0) || (index >= this.size))
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + this.size);
+        return this.dates[index];
+    }
+
+    /**
+     * the number of notes in the sequence
+     * @return
+     */
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * a counter that changes with every modification of the sequence, so derived data can tell whether it is outdated
+     * @return
+     */
+    public int getModificationCount() {
+        return this.modCount;
+    }
+
+    /**
+     * add the note to the sequence, it is placed after all notes with the same or an earlier date
+     * @param note
+     * @return true
+     */
+    @Override
+    public boolean add(Note note) {
+        double d = this.date.applyAsDouble(note);
+        int index = this.lastIndexAtOrBefore(d) + 1;
+
+        if (this.size == this.notes.length) {
+            int capacity = Math.max(16, this.size + (this.size >> 1));
+            this.notes = Arrays.copyOf(this.notes, capacity);
+            this.dates = Arrays.copyOf(this.dates, capacity);
+        }
+        System.arraycopy(this.notes, index, this.notes, index + 1, this.size - index);
+        System.arraycopy(this.dates, index, this.dates, index + 1, this.size - index);
+        this.notes[index] = note;
+        this.dates[index] = d;
+        ++this.size;
+        ++this.modCount;
+        return true;
+    }
+
+    /**
+     * remove the note at the specified index
+     * @param index
+     * @return the removed note
+     */
+    @Override
+    public Note remove(int index) {
+        Note note = this.get(index);
+        System.arraycopy(this.notes, index + 1, this.notes, index, this.size - index - 1);
+        System.arraycopy(this.dates, index + 1, this.dates, index, this.size - index - 1);
+        this.notes[--this.size] = null;
+        ++this.modCount;
+        return note;
+    }
+
+    /**
+     * remove the note from the sequence
+     * @param o
+     * @return true if the note was in the sequence
+     */
+    @Override
+    public boolean remove(Object o) {
+        int index = this.indexOf(o);
+        if (index < 0)
+            return false;
+        this.remove(index);
+        return true;
+    }
+
+    /**
+     * remove all notes
+     */
+    @Override
+    public void clear() {
+        Arrays.fill(this.notes, 0, this.size, null);
+        this.size = 0;
+        ++this.modCount;
+    }
+
+    /**
+     * find the index of the note; the note is looked up by its date first, if its date has changed since it was added, this falls back to a linear search
+     * @param o
+     * @return the index or -1 if the note is not in the sequence
+     */
+    @Override
+    public int indexOf(Object o) {
+        if (!(o instanceof Note))
+            return -1;
+
+        double d = this.date.applyAsDouble((Note) o);
+        for (int i = this.firstIndexAtOrAfter(d); (i < this.size) && (this.dates[i] == d); ++i)
+            if (this.notes[i] == o)
+                return i;
+
+        for (int i = 0; i < this.size; ++i)
+            if (this.notes[i] == o)
+                return i;
+        return -1;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return this.indexOf(o) >= 0;
+    }
+
+    /**
+     * find the first note at or after the specified date
+     * @param date
+     * @return its index or size() if all notes are before the date
+     */
+    public int firstIndexAtOrAfter(double date) {
+        int first = 0;
+        int last = this.size;
+        while (first < last) {
+            int mid = (first + last) >>> 1;
+            if (this.dates[mid] < date)
+                first = mid + 1;
+            else
+                last = mid;
+        }
+        return first;
+    }
+
+    /**
+     * find the last note before or at the specified date
+     * @param date
+     * @return its index or -1 if all notes are after the date
+     */
+    public int lastIndexAtOrBefore(double date) {
+        int first = 0;
+        int last = this.size;
+        while (first < last) {
+            int mid = (first + last) >>> 1;
+            if (this.dates[mid] <= date)
+                first = mid + 1;
+            else
+                last = mid;
+        }
+        return first - 1;
+    }
+
+    /**
+     * replace the contents of this sequence by the specified notes, sorted by their dates; notes with the same date keep the order of the collection
+     * @param notes
+     */
+    public void setAll(Collection<? extends Note> notes) {
+        Note[] array = notes.toArray(new Note[0]);
+        Arrays.sort(array, Comparator.comparingDouble(this.date));  // a stable sort
+        this.notes = (array.length < 16) ? Arrays.copyOf(array, 16) : array;
+        this.dates = new double[this.notes.length];
+        this.size = array.length;
+        for (int i = 0; i < this.size; ++i)
+            this.dates[i] = this.date.applyAsDouble(this.notes[i]);
+        ++this.modCount;
+    }
+
+    /**
+     * sort the sequence by the current dates of the notes, notes with the same date keep their order
+     */
+    public void sort() {
+        this.sort(0, this.size, Comparator.comparingDouble(this.date));
+    }
+
+    /**
+     * sort a range of the sequence by the current dates of the notes; the comparator must order the notes by their dates and can decide the order of notes with the same date;
+     * the notes outside of the range must be placed correctly according to the sorted range's dates
+     * @param from the index of the first note in the range
+     * @param to the index after the last note in the range
+     * @param comparator
+     */
+    public void sort(int from, int to, Comparator<? super Note> comparator) {
+        if ((from < 0) || (to > this.size) || (from > to))
+            throw new IndexOutOfBoundsException("Range [" + from + ", " + to + ") out of bounds for length " + this.size);
+        Arrays.sort(this.notes, from, to, comparator);
+        for (int i = from; i < to; ++i)
+            this.dates[i] = this.date.applyAsDouble(this.notes[i]);
+        ++this.modCount;
+    }
+}
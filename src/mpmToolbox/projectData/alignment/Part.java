@@ -7,7 +7,10 @@ import nu.xom.Attribute;
 import nu.xom.Element;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * An instance of this is a Hashmap of all MSM notes, accessed via their XML ID.
@@ -18,17 +21,30 @@ public class Part {
     private final Element xml;                                          // a reference to the original MSM part element
     private final int number;
     private final HashMap<String, Note> notes = new HashMap<>();        // access notes by id
-    private final ArrayList<Note> noteSequence = new ArrayList<>();     // the notes in sequential order of their current date
-    private final ArrayList<Note> initialSequence = new ArrayList<>();  // the notes in sequential order of their initial date
-    private final ArrayList<Note> tickSequence = new ArrayList<>();     // the notes in sequential order of their tick date
+    private final NoteSequence noteSequence = new NoteSequence(Note::getMillisecondsDate);             // the notes in sequential order of their current date
+    private final NoteSequence initialSequence = new NoteSequence(Note::getInitialMillisecondsDate);   // the notes in sequential order of their initial date
+    private final NoteSequence tickSequence = new NoteSequence(Note::getDate);                         // the notes in sequential order of their tick date
     private PianoRoll pianoRoll = null;
     private Note lastNoteSounding = null;
+    private double maxInitialDuration = 0.0;                            // the longest initial duration of all notes in milliseconds, helps to find notes by their initial end date
+    private HashMap<Note, Integer> initialIndices = null;               // the indices of the notes in initialSequence, created on demand
 
     /**
      * constructor
      * @param msmPart
      */
     protected Part(Element msmPart) throws InvalidDataException {
+        this(msmPart, null);
+    }
+
+    /**
+     * constructor, notes that are also in the template part take their score data (tick date, pitch, duration) from there
+     * and only the performance data (milliseconds dates and velocity) is parsed from the MSM,
+     * so a new performance of the same MSM can be read faster
+     * @param msmPart
+     * @param template a part that was parsed from a performance of the same MSM or null
+     */
+    protected Part(Element msmPart, Part template) throws InvalidDataException {
         super();
 
         this.xml = msmPart;
@@ -42,13 +58,31 @@ public class Part {
         // parse the score and fill the HashMap with (ID, Note) tuples
         Element score = dated.getFirstChildElement("score");
         if (score != null) {
+            ArrayList<Note> parsed = new ArrayList<>();
             for (Element e : score.getChildElements("note")) {
                 try {
-                    this.add(new Note(e));
+                    Note previous = (template == null) ? null : template.getNote(e.getAttributeValue("id", "http://www.w3.org/XML/1998/namespace"));
+                    Note note = (previous == null) ? new Note(e) : new Note(e, previous);
+                    this.notes.put(note.getId(), note);     // a later note with the same id replaces the earlier one
+                    parsed.add(note);
                 } catch (InvalidDataException | NumberFormatException exception) {
                     exception.printStackTrace();
                 }
             }
+
+            // build the sequences at once instead of adding the notes one by one; this gives the same orders as add()
+            ArrayList<Note> notes = new ArrayList<>();
+            for (Note note : parsed)
+                if (this.notes.get(note.getId()) == note)
+                    notes.add(note);
+            this.initialSequence.setAll(notes);
+            this.noteSequence.setAll(notes);
+            this.tickSequence.setAll(notes);
+            for (Note note : notes) {
+                this.maxInitialDuration = Math.max(this.maxInitialDuration, note.getInitialMillisecondsDateEnd() - note.getInitialMillisecondsDate());
+                if ((this.lastNoteSounding == null) || (this.lastNoteSounding.getMillisecondsDateEnd() < note.getMillisecondsDateEnd()))
+                    this.lastNoteSounding = note;
+            }
         }
     }
 
@@ -67,6 +101,11 @@ public class Part {
 
             note.syncWith(e);
         }
+
+        // the milliseconds dates have changed
+        this.noteSequence.sort();
+        this.lastNoteSounding = null;
+        this.getLastNoteSounding();
     }
 
     /**
@@ -94,15 +133,7 @@ public class Part {
      * @param note
      */
     private void addToSequence(Note note) {
-        // add note to noteSequence
-        int i = this.noteSequence.size() - 1;
-        for (; i >= 0; --i) {
-            Note n = this.noteSequence.get(i);
-            double date = n.getMillisecondsDate();
-            if (date <= note.getMillisecondsDate())
-                break;
-        }
-        this.noteSequence.add(i + 1, note);               // insert note also to the sequence
+        this.noteSequence.add(note);                    // it is inserted after all notes with the same or an earlier date
 
         if ((this.lastNoteSounding == null) || (this.lastNoteSounding.getMillisecondsDateEnd() < note.getMillisecondsDateEnd()))
             this.lastNoteSounding = note;
@@ -113,15 +144,7 @@ public class Part {
      * @param note
      */
     private void addToTickSequence(Note note) {
-        // add note to noteSequence
-        int i = this.tickSequence.size() - 1;
-        for (; i >= 0; --i) {
-            Note n = this.tickSequence.get(i);
-            double date = n.getDate();
-            if (date <= note.getDate())
-                break;
-        }
-        this.tickSequence.add(i + 1, note);               // insert note also to the sequence
+        this.tickSequence.add(note);                    // it is inserted after all notes with the same or an earlier date
     }
 
     /**
@@ -129,13 +152,9 @@ public class Part {
      * @param note
      */
     private void addToInitialSequence(Note note) {
-        int i = this.initialSequence.size() - 1;
-        for (; i >= 0; --i) {
-            double date = this.initialSequence.get(i).getInitialMillisecondsDate();
-            if (date <= note.getInitialMillisecondsDate())
-                break;
-        }
-        this.initialSequence.add(i + 1, note);               // insert note also to the sequence
+        this.initialSequence.add(note);                 // it is inserted after all notes with the same or an earlier date
+        this.maxInitialDuration = Math.max(this.maxInitialDuration, note.getInitialMillisecondsDateEnd() - note.getInitialMillisecondsDate());
+        this.initialIndices = null;
     }
 
     /**
@@ -148,6 +167,8 @@ public class Part {
         if (out != null) {
             this.noteSequence.remove(out);
             this.initialSequence.remove(out);
+            this.tickSequence.remove(out);
+            this.initialIndices = null;
             if (this.lastNoteSounding == out)
                 this.lastNoteSounding = null;
         }
@@ -192,7 +213,7 @@ public class Part {
      * get the sequence of all notes
      * @return
      */
-    public ArrayList<Note> getNoteSequence() {
+    public NoteSequence getNoteSequence() {
         return this.noteSequence;
     }
 
@@ -200,7 +221,7 @@ public class Part {
      * get the note sequence according to their notation, i.e. in order of their tick date
      * @return
      */
-    public ArrayList<Note> getNoteSequenceInTicks() {
+    public NoteSequence getNoteSequenceInTicks() {
         return this.tickSequence;
     }
 
@@ -210,7 +231,7 @@ public class Part {
      * @return
      */
     public boolean contains(Note note) {
-        return this.notes.containsValue(note);
+        return this.notes.get(note.getId()) == note;
     }
 
     /**
@@ -219,26 +240,8 @@ public class Part {
      * @return
      */
     public int getNoteIndexAtAfter(double milliseconds) {
-        if (this.isEmpty() || (this.noteSequence.get(this.noteSequence.size()-1).getMillisecondsDate() < milliseconds)) // if the part is empty or all its notes are before the specified date
-            return -1;                                                                                                  // done
-
-        if (this.noteSequence.get(0).getMillisecondsDate() >= milliseconds)     // if the first note is already at or after the date
-            return 0;                                                           // return 0
-
-        // binary search
-        int first = 0;
-        int last = this.noteSequence.size() - 1;
-        int mid = last / 2;
-        while (first <= last) {
-            if (this.noteSequence.get(mid).getMillisecondsDate() >= milliseconds)
-                last = mid - 1;
-            else if (this.noteSequence.get(mid + 1).getMillisecondsDate() >= milliseconds)
-                return mid + 1;
-            else
-                first = mid + 1;
-            mid = (first + last) / 2;
-        }
-        return -1;
+        int index = this.noteSequence.firstIndexAtOrAfter(milliseconds);
+        return (index < this.noteSequence.size()) ? index : -1;     // -1 if the part is empty or all its notes are before the specified date
     }
 
     /**
@@ -247,26 +250,7 @@ public class Part {
      * @return the index or -1 if there is no note before or at the milliseconds date
      */
     private int getNoteIndexBeforeAtMilliseconds(double milliseconds) {
-        if (this.isEmpty() || this.noteSequence.get(0).getMillisecondsDate() > milliseconds)            // if no notes available or all note are after the requested date
-            return -1;
-
-        int last = this.noteSequence.size() - 1;
-        if (this.noteSequence.get(last).getMillisecondsDate() <= milliseconds)  // if the last note in the sequence is already before or at the requested date
-            return last;                                                        // return its index
-
-        // binary search
-        int first = 0;
-        int mid = last / 2;
-        while (first <= last) {
-            if (this.noteSequence.get(mid).getMillisecondsDate() > milliseconds)
-                last = mid - 1;
-            else if (this.noteSequence.get(mid + 1).getMillisecondsDate() > milliseconds)
-                return mid;
-            else
-                first = mid + 1;
-            mid = (first + last) / 2;
-        }
-        return -1;
+        return this.noteSequence.lastIndexAtOrBefore(milliseconds);
     }
 
     /**
@@ -275,26 +259,7 @@ public class Part {
      * @return the index or -1 if there is no note before or at the tick date
      */
     private int getNoteIndexBeforeAtTicks(double ticks) {
-        if (this.isEmpty() || this.tickSequence.get(0).getDate() > ticks)   // if no notes available or all note are after the requested date
-            return -1;
-
-        int last = this.tickSequence.size() - 1;
-        if (this.tickSequence.get(last).getDate() <= ticks)                 // if the last note in the sequence is already before or at the requested date
-            return last;                                                    // return its index
-
-        // binary search
-        int first = 0;
-        int mid = last / 2;
-        while (first <= last) {
-            if (this.tickSequence.get(mid).getDate() > ticks)
-                last = mid - 1;
-            else if (this.tickSequence.get(mid + 1).getDate() > ticks)
-                return mid;
-            else
-                first = mid + 1;
-            mid = (first + last) / 2;
-        }
-        return -1;
+        return this.tickSequence.lastIndexAtOrBefore(ticks);
     }
 
     /**
@@ -453,12 +418,9 @@ public class Part {
      * the invoking application should also run recomputePianoRoll() to update the piano roll image
      */
     protected void reset() {
-        this.noteSequence.clear();
-
-        for (Note note : this.initialSequence) {
+        for (Note note : this.initialSequence)
             note.reset();
-            this.noteSequence.add(note);
-        }
+        this.noteSequence.setAll(this.initialSequence);
 
         this.lastNoteSounding = null;
     }
@@ -473,6 +435,7 @@ public class Part {
             note.setMillisecondsDate(note.getInitialMillisecondsDate() * factor);
             note.setMillisecondsDateEnd(note.getInitialMillisecondsDateEnd() * factor);
         }
+        this.noteSequence.sort();
     }
 
     /**
@@ -482,9 +445,9 @@ public class Part {
      * @param toMilliseconds
      */
     protected void reposition(@NotNull Note note, double toMilliseconds) {
+        this.noteSequence.remove(note);                 // remove it while it still has the date by which it is sorted
         note.setMillisecondsDateEnd(note.getInitialMillisecondsDateEnd() - note.getInitialMillisecondsDate() + toMilliseconds);
         note.setMillisecondsDate(toMilliseconds);
-        this.noteSequence.remove(note);
         this.addToSequence(note);
     }
 
@@ -493,16 +456,228 @@ public class Part {
      * @param timingTransformation the transformation data; each element provides the following values {startDate, endDate, toStartDate, toEndDate}, all in milliseconds
      */
     protected void transformTiming(ArrayList<double[]> timingTransformation) {
-        for (double[] segment : timingTransformation)
-            this.transformTiming(segment[0], segment[1], segment[2], segment[3]);
+        if (isOrdered(timingTransformation)) {
+            this.transformTimingInOnePass(timingTransformation);
+        } else {
+            for (double[] segment : timingTransformation)
+                this.transformTiming(segment[0], segment[1], segment[2], segment[3]);
+        }
 
-        this.noteSequence.clear();
+        // rebuild the note sequence; notes with the same date keep their initial order, as with addToSequence()
+        this.noteSequence.setAll(this.initialSequence);
         for (Note note : this.initialSequence)
-            this.addToSequence(note);
+            if ((this.lastNoteSounding == null) || (this.lastNoteSounding.getMillisecondsDateEnd() < note.getMillisecondsDateEnd()))
+                this.lastNoteSounding = note;
+    }
+
+    /**
+     * places the non-fixed notes according to the positions of the fixed notes, like transformTiming(timingTransformation),
+     * but processes only the notes that are affected by a change of the timing transformation and re-sorts only these in the note sequence;
+     * all other notes must still be placed according to the previous timing transformation
+     * @param timingTransformation the new timing transformation, it must be ordered, see isOrdered()
+     * @param changedRanges the ranges {from, to} of initial milliseconds dates where the timing transformation changed
+     * @param repositioned a note that has been repositioned (it is processed in any case) or null
+     */
+    protected void transformTiming(ArrayList<double[]> timingTransformation, List<double[]> changedRanges, Note repositioned) {
+        double[][] segments = timingTransformation.toArray(new double[0][]);
+        if (this.initialIndices == null) {
+            this.initialIndices = new HashMap<>();
+            for (int i = 0; i < this.initialSequence.size(); ++i)
+                this.initialIndices.put(this.initialSequence.get(i), i);
+        }
+
+        // collect the notes whose onset or offset lies in a changed range
+        BitSet affected = new BitSet(this.initialSequence.size());
+        for (double[] range : changedRanges) {
+            for (int i = this.initialSequence.firstIndexAtOrAfter(range[0] - this.maxInitialDuration); i < this.initialSequence.size(); ++i) {
+                Note note = this.initialSequence.get(i);
+                if (note.getInitialMillisecondsDate() > range[1])
+                    break;
+                if ((note.getInitialMillisecondsDate() >= range[0])
+                        || ((note.getInitialMillisecondsDateEnd() >= range[0]) && (note.getInitialMillisecondsDateEnd() <= range[1])))
+                    affected.set(i);
+            }
+        }
+        if ((repositioned != null) && this.initialIndices.containsKey(repositioned))
+            affected.set(this.initialIndices.get(repositioned));
+        if (affected.isEmpty())
+            return;
+
+        // compute the new dates; the note sequence is not changed before the range of notes to be re-sorted is known
+        Note[] notes = new Note[affected.cardinality()];
+        double[] onsets = new double[notes.length];
+        double[] offsets = new double[notes.length];
+        double from = Double.POSITIVE_INFINITY;
+        double to = Double.NEGATIVE_INFINITY;
+        double[] dates = new double[2];
+        for (int i = affected.nextSetBit(0), n = 0; i >= 0; i = affected.nextSetBit(i + 1), ++n) {
+            Note note = this.initialSequence.get(i);
+            transformNote(note, segments, findOnsetSegment(segments, note.getInitialMillisecondsDate()), dates);
+            notes[n] = note;
+            onsets[n] = dates[0];
+            offsets[n] = dates[1];
+            from = Math.min(from, Math.min(note.getMillisecondsDate(), dates[0]));
+            to = Math.max(to, Math.max(note.getMillisecondsDate(), dates[0]));
+        }
+        int first = this.getNoteIndexAtAfter(from);
+        int last = this.getNoteIndexBeforeAtMilliseconds(to);
+
+        // set the new dates and re-sort the notes between the old and new positions of the affected notes, ties are in initial order as in transformTiming(timingTransformation)
+        for (int n = 0; n < notes.length; ++n) {
+            notes[n].setMillisecondsDate(onsets[n]);
+            notes[n].setMillisecondsDateEnd(offsets[n]);
+        }
+        this.noteSequence.sort(first, last + 1, Comparator.comparingDouble(Note::getMillisecondsDate).thenComparingInt(this.initialIndices::get));
+
+        // update the last sounding note
+        if ((this.lastNoteSounding != null) && affected.get(this.initialIndices.get(this.lastNoteSounding))) {    // the last sounding note might have become shorter, so another note might be the last sounding note now
+            this.lastNoteSounding = null;
+            this.getLastNoteSounding();
+        } else {
+            for (Note note : notes)
+                if ((this.lastNoteSounding == null) || (this.lastNoteSounding.getMillisecondsDateEnd() < note.getMillisecondsDateEnd()))
+                    this.lastNoteSounding = note;
+        }
+    }
+
+    /**
+     * check if the segments of the timing transformation are in ascending order and do not overlap,
+     * which is the case for the timing transformations that Alignment generates
+     * @param timingTransformation
+     * @return
+     */
+    static boolean isOrdered(ArrayList<double[]> timingTransformation) {
+        double end = Double.NEGATIVE_INFINITY;
+        for (double[] segment : timingTransformation) {
+            if (!(segment[0] >= end) || !(segment[1] >= segment[0]))
+                return false;
+            end = segment[1];
+        }
+        return true;
+    }
+
+    /**
+     * helper method for transformTiming(timingTransformation);
+     * does the same as transformTiming(startDate, endDate, toStartDate, toEndDate) for each segment but in one pass over the notes;
+     * the segments must be ordered, see isOrdered(), so each onset and each offset falls into at most one segment
+     * @param timingTransformation
+     */
+    private void transformTimingInOnePass(ArrayList<double[]> timingTransformation) {
+        double[][] segments = timingTransformation.toArray(new double[0][]);
+        if (segments.length == 0)
+            return;
+
+        int onsetSegment = 0;
+        double[] dates = new double[2];
+        for (int i = 0; i < this.initialSequence.size(); ++i) {    // in the order of the initial dates
+            while ((onsetSegment < segments.length) && (segments[onsetSegment][1] <= this.initialSequence.getDate(i)))
+                ++onsetSegment;
+            Note note = this.initialSequence.get(i);
+            transformNote(note, segments, onsetSegment, dates);
+            note.setMillisecondsDate(dates[0]);
+            note.setMillisecondsDateEnd(dates[1]);
+        }
+    }
+
+    /**
+     * compute the milliseconds date and end date of a note according to the ordered segments of a timing transformation
+     * @param note
+     * @param segments ordered segments {startDate, endDate, toStartDate, toEndDate}
+     * @param onsetSegment the index of the first segment that ends after the note's initial date, see findOnsetSegment()
+     * @param dates output array, receives the date and end date; these are the note's current values if the transformation does not affect them
+     */
+    private static void transformNote(Note note, double[][] segments, int onsetSegment, double[] dates) {
+        double iDate = note.getInitialMillisecondsDate();
+        double iDateEnd = note.getInitialMillisecondsDateEnd();
+        dates[0] = note.getMillisecondsDate();
+        dates[1] = note.getMillisecondsDateEnd();
+
+        if (note.isFixed()) {
+            // change the milliseconds offset date of the fixed note; its onset date is fixed
+            double[] segment = findOffsetSegment(segments, iDateEnd);
+            if ((segment != null)
+                    && (dates[0] < segment[3])                      // if it is behind the target end date
+                    && (iDate <= segment[0]))                       // or it was behind the initial start date, we leave it unaltered
+                dates[1] = transformOffset(iDateEnd, segment);
+            return;
+        }
+
+        // transform the note's onset
+        if ((onsetSegment < segments.length) && (iDate >= segments[onsetSegment][0]))
+            dates[0] = transformOnset(iDate, segments[onsetSegment]);
+
+        // transform the note's offset, only segments that end after the note's onset are applied to it
+        double[] segment = findOffsetSegment(segments, iDateEnd);
+        if ((segment != null) && (iDate < segment[1]))
+            dates[1] = transformOffset(iDateEnd, segment);
+    }
+
+    /**
+     * find the first segment that ends after the given initial onset date
+     * @param segments ordered segments {startDate, endDate, toStartDate, toEndDate}
+     * @param iDate
+     * @return the index of the segment or segments.length
+     */
+    private static int findOnsetSegment(double[][] segments, double iDate) {
+        int lo = 0;
+        int hi = segments.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (segments[mid][1] <= iDate)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * find the segment whose interval (startDate; endDate] contains the given initial offset date
+     * @param segments ordered segments {startDate, endDate, toStartDate, toEndDate}
+     * @param iDate
+     * @return the segment or null
+     */
+    private static double[] findOffsetSegment(double[][] segments, double iDate) {
+        int lo = 0;
+        int hi = segments.length;
+        while (lo < hi) {                                   // the first segment with endDate >= iDate
+            int mid = (lo + hi) >>> 1;
+            if (segments[mid][1] < iDate)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        if ((lo < segments.length) && (segments[lo][0] < iDate))
+            return segments[lo];
+        return null;
+    }
+
+    /**
+     * transform an initial onset date with the given segment
+     * @param iDate
+     * @param segment {startDate, endDate, toStartDate, toEndDate}
+     * @return
+     */
+    private static double transformOnset(double iDate, double[] segment) {
+        if ((segment[1] == segment[0]) || (segment[2] >= segment[3]))   // shift, don't scale
+            return segment[2];
+        return ((iDate - segment[0]) * ((segment[3] - segment[2]) / (segment[1] - segment[0]))) + segment[2];
+    }
+
+    /**
+     * transform an initial offset date with the given segment
+     * @param iDate
+     * @param segment {startDate, endDate, toStartDate, toEndDate}
+     * @return
+     */
+    private static double transformOffset(double iDate, double[] segment) {
+        if ((segment[1] == segment[0]) || (segment[2] >= segment[3]))   // shift, don't scale
+            return segment[1] - segment[0] + segment[2];
+        return ((iDate - segment[0]) * ((segment[3] - segment[2]) / (segment[1] - segment[0]))) + segment[2];
     }
 
     /**
-     * helper method for transformTiming(fixedNotes);
+     * helper method for transformTiming(timingTransformation), used if its segments are not ordered;
      * transforms all note onsets in [startDate; endDate) to [toStartDate; toEndDate)
      * and offsets in (startDate; endDate] to (toStartDate; toEndDate]
      * @param startDate
@@ -584,8 +759,10 @@ public class Part {
 
         // fill the piano roll image with content
         for (Note note : this.noteSequence) {
-            if ((note.getMillisecondsDate() >= toMilliseconds) || (note.getMillisecondsDateEnd() < fromMilliseconds))   // if note is beyond the interval to be rendered
-                continue;                                                                                               // continue with the next note
+            double date = note.getMillisecondsDate();
+            double dateEnd = note.getMillisecondsDateEnd();
+            if ((date >= toMilliseconds) || (dateEnd < fromMilliseconds))   // if note is beyond the interval to be rendered
+                continue;                                                   // continue with the next note
 
             // compute the y coordinate of the note (one row of pixels = one pitch class)
             int y = (int) Math.round(note.getPitch());
@@ -593,11 +770,11 @@ public class Part {
                 continue;                        // we do not paint the note
 
             // compute the x coordinate where the note starts
-            double millis = note.getMillisecondsDate() - fromMilliseconds;
+            double millis = date - fromMilliseconds;
             int xStart = (millis <= 0.0) ? 0 : (int) Math.round(millis * scaleToHorizontalPixels);
 
             // compute the x coordinate where the note ends
-            millis = note.getMillisecondsDateEnd() - fromMilliseconds;
+            millis = dateEnd - fromMilliseconds;
             int xEnd = (millis >= toMilliseconds) ? imgWidth : Math.min(imgWidth, (int) Math.round(millis * scaleToHorizontalPixels));
 
             this.pianoRoll.add(xStart, xEnd, y, note);
@@ -5,13 +5,19 @@ import mpmToolbox.gui.Settings;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * This represents a piano roll image including dedicated functionality.
  * @author Axel Berndt
  */
 public class PianoRoll extends BufferedImage {
-    private Note[][] noteReferences;
+    private static volatile float[] fifthRoots = new float[0];  // fifthRoots[k] = k^0.2, the fading of the notes is computed from these values, so we need no Math.pow() per pixel
+    private final int[] pixels;                                 // the ARGB pixel data of this image, one int per pixel, row by row
+    private final NoteRow[] noteRows;                           // the notes in each row of pixels, for hit testing; null for empty rows
+    private final ArrayList<PianoRoll> addedPianoRolls = new ArrayList<>();  // the piano rolls that were added to this one, their notes are found via their own rows
     private final double fromMilliseconds;
     private final double toMilliseconds;
 
@@ -22,25 +28,15 @@ public class PianoRoll extends BufferedImage {
      */
     public PianoRoll(double fromMilliseconds, double toMilliseconds, int width, int height) {
         super(width, height, BufferedImage.TYPE_INT_ARGB);
-        this.noteReferences = new Note[width][height];
+        this.pixels = ((DataBufferInt) this.getRaster().getDataBuffer()).getData(); // direct access to the pixel data, much faster than getRGB() and setRGB()
+        this.noteRows = new NoteRow[height];
         this.fromMilliseconds = fromMilliseconds;
         this.toMilliseconds = toMilliseconds;
-//        this.init();    // not necessary
     }
 
     /**
-     * initialize each pixel to be transparent and have note association null
-     */
-    private void init() {
-        for (int x=0; x < this.getWidth(); ++x) {
-            for (int y = 0; y < this.getHeight(); ++y) {
-                this.set(x, y, null);
-            }
-        }
-    }
-
-    /**
-     * get the note at the specified pixel position
+     * get the note at the specified pixel position; if several notes overlap there, it is the one that was added last,
+     * notes of added piano rolls come in the order in which these were added, after the notes of this piano roll
      * @param x
      * @param y
      * @return a reference to a Note object or null
@@ -48,85 +44,58 @@ public class PianoRoll extends BufferedImage {
     public Note getNoteAt(int x, int y) {
         if ((x < 0) || (x >= this.getWidth()) || (y < 0) || (y >= this.getHeight()))
             return null;
-        return this.noteReferences[x][y];
-    }
 
-    /**
-     * set a specific pixel position
-     * @param x
-     * @param y
-     * @param note a reference to a Note object or null
-     * @return success
-     */
-    private boolean set(int x, int y, Note note) {
-        if ((x < 0) || (x >= this.getWidth()) || (y < 0) || (y >= this.getHeight()))
-            return false;
-
-        // if note is null, make the pixel completely transparent, otherwise set the performance color for fixed notes and note color for non-fixed notes
-        Color color;
-        if (note == null)
-            color = new Color(0, 0, 0, 0);
-        else if (note.isFixed())
-            color = Settings.scorePerformanceColorHighlighted;
-        else
-            color = Settings.scoreNoteColor;
-
-        this.setRGB(x, y, color.getRGB());      // set the note color
-        this.noteReferences[x][y] = note;       // set reference
-        return true;
+        NoteRow row = this.noteRows[y];
+        if (row != null) {
+            Note note = row.getNoteAt(x);
+            if (note != null)
+                return note;
+        }
+
+        for (PianoRoll pianoRoll : this.addedPianoRolls) {
+            Note note = pianoRoll.getNoteAt(x, y);
+            if (note != null)
+                return note;
+        }
+        return null;
     }
 
     /**
-     * Paint a note to the specified position. If there is already a note, the colors will be added.
-     * But only the last added note will be associated.
-     * The invoking method should ensure the following (x &lt; 0) || (x &ge; this.getWidth()) || (y &lt; 0) || (y &ge; this.getHeight())
-     * as this method does not check this!
-     * @param x
+     * Add a note from the specified xStart position to the specified xEnd position. Where there is already a note,
+     * the colors will be added. But only the last added note will be associated.
+     * The note fades out throughout its duration.
+     * @param xStart
+     * @param xEnd
      * @param y
-     * @param alphaFade a value in [0, 1] that is multiplied with the default alpha value; with this, the fading of the note throughout its duration is realized
      * @param note
      */
-    private void add(int x, int y, float alphaFade, @NotNull Note note) {
-        // this first check is not necessary as far as the invoking method does this already
-//        if ((x < 0) || (x >= this.getWidth()) || (y < 0) || (y >= this.getHeight()) || (note == null))
-//            return;
-
-//        Color color = new Color(this.getRGB(x, y));     // get the current color at (x, y)
-//        float[] rgba = color.getRGBComponents(null);
-        // the following is more efficient than the above two lines
-        int[] rgba = new int[4];
-        rgba[0] = (this.getRGB(x, y) >> 16) & 0xFF;
-        rgba[1] = (this.getRGB(x, y) >> 8) & 0xFF;
-        rgba[2] = (this.getRGB(x, y)) & 0xFF;
-        rgba[3] = (this.getRGB(x, y) >> 24) & 0xff;
+    protected void add(int xStart, int xEnd, int y, @NotNull Note note) {
+        if ((y < 0) || (y >= this.getHeight()))
+            return;
+        xStart = Math.max(0, xStart);
+        xEnd = Math.min(this.getWidth(), xEnd);
+        if (xStart >= xEnd)
+            return;
 
         Color color = (note.isFixed()) ? Settings.scorePerformanceColorHighlighted : Settings.scoreNoteColor;
+        int red = color.getRed();
+        int green = color.getGreen();
+        int blue = color.getBlue();
 
-        // add the color of a note so that it becomes brighter, but avoid numbers greater than 255
-        int r = Math.min(255, Math.round((((255f - rgba[0]) * color.getRed()) / 255) + rgba[0]));
-        int g = Math.min(255, Math.round((((255f - rgba[1]) * color.getGreen()) / 255) + rgba[1]));
-        int b = Math.min(255, Math.round((((255f - rgba[2]) * color.getBlue()) / 255) + rgba[2]));
-        int a = Math.min(255, Math.round((((255f - rgba[3]) * color.getAlpha() * alphaFade) / 255) + rgba[3]));
-//        int a = Settings.scoreNoteColor.getAlpha();         // for a constant transparency
+        // the alpha fade at pixel x is ((xEnd - x) / duration)^0.2 = (xEnd - x)^0.2 / duration^0.2
+        int duration = xEnd - xStart;
+        float[] fifthRoots = PianoRoll.getFifthRoots(duration);
+        float alpha = color.getAlpha() / fifthRoots[duration];
 
-        this.setRGB(x, y, new Color(r, g, b, a).getRGB());  // add the color
-        this.noteReferences[x][y] = note;                   // set reference
-    }
-
-    /**
-     * Add a note from the specified xStart position to the specified xEnd position
-     * @param xStart
-     * @param xEnd
-     * @param y
-     * @param note
-     */
-    protected void add(int xStart, int xEnd, int y, Note note) {
-        float duration = xEnd - xStart;
+        int row = y * this.getWidth();
         for (int x = xStart; x < xEnd; ++x) {   // for each pixel from (xStar, y) to (xEnd, y)
-            float alphaFade = (float) Math.pow((xEnd - x) / duration, 0.2);
-            this.add(x, y, alphaFade, note);
-//            this.add(x, y, 1f, note);
+            int i = row + x;
+            this.pixels[i] = PianoRoll.addColors(this.pixels[i], red, green, blue, alpha * fifthRoots[xEnd - x]);
         }
+
+        if (this.noteRows[y] == null)
+            this.noteRows[y] = new NoteRow();
+        this.noteRows[y].add(xStart, xEnd, note);   // set reference
     }
 
     /**
@@ -143,36 +112,60 @@ public class PianoRoll extends BufferedImage {
         int width = Math.min(this.getWidth(), pianoRoll.getWidth());
         int height = Math.min(this.getHeight(), pianoRoll.getHeight());
 
-        for (int x=0; x < width; ++x) {
-            for (int y=0; y < height; ++y) {
-                if (pianoRoll.getNoteAt(x, y) == null)      // if there is nothing to add
+        for (int y = 0; y < height; ++y) {
+            int row = y * this.getWidth();
+            int addRow = y * pianoRoll.getWidth();
+            for (int x = 0; x < width; ++x) {
+                int add = pianoRoll.pixels[addRow + x];
+                if (add == 0)                               // if there is nothing to add
                     continue;                               // continue with the next pixel
 
-                int[] rgba = new int[4];
-                rgba[0] = (this.getRGB(x, y) >> 16) & 0xFF;
-                rgba[1] = (this.getRGB(x, y) >> 8) & 0xFF;
-                rgba[2] = (this.getRGB(x, y)) & 0xFF;
-                rgba[3] = (this.getRGB(x, y) >> 24) & 0xff;
-
-                int add = pianoRoll.getRGB(x, y);
-                int[] addrgba = new int[4];
-                addrgba[0] = (add >> 16) & 0xFF;
-                addrgba[1] = (add >> 8) & 0xFF;
-                addrgba[2] = add & 0xFF;
-                addrgba[3] = (add >> 24) & 0xff;
-
-                int r = Math.min(255, Math.round((((255f - rgba[0]) * addrgba[0]) / 255) + rgba[0]));
-                int g = Math.min(255, Math.round((((255f - rgba[1]) * addrgba[1]) / 255) + rgba[1]));
-                int b = Math.min(255, Math.round((((255f - rgba[2]) * addrgba[2]) / 255) + rgba[2]));
-                int a = Math.min(255, Math.round((((255f - rgba[3]) * addrgba[3]) / 255) + rgba[3]));
-//                int a = Settings.scoreNoteColor.getAlpha();         // for a constant transparency
-
-                this.setRGB(x, y, new Color(r, g, b, a).getRGB());  // add the color
-
-                if (this.noteReferences[x][y] == null)      // we do not overwrite a non-null value
-                    this.noteReferences[x][y] = pianoRoll.getNoteAt(x, y);
+                int i = row + x;
+                this.pixels[i] = PianoRoll.addColors(this.pixels[i], (add >> 16) & 0xFF, (add >> 8) & 0xFF, add & 0xFF, (add >>> 24));
             }
         }
+
+        this.addedPianoRolls.add(pianoRoll);    // its notes are associated where this piano roll has none
+    }
+
+    /**
+     * add a color to an ARGB pixel value so that it becomes brighter, but avoid numbers greater than 255
+     * @param argb the current pixel value
+     * @param red
+     * @param green
+     * @param blue
+     * @param alpha in [0, 255]
+     * @return the new pixel value
+     */
+    private static int addColors(int argb, int red, int green, int blue, float alpha) {
+        int a = argb >>> 24;
+        int r = (argb >> 16) & 0xFF;
+        int g = (argb >> 8) & 0xFF;
+        int b = argb & 0xFF;
+
+        r += (((255 - r) * red) + 127) / 255;       // the same as Math.round(((255f - r) * red) / 255), but in integer arithmetic
+        g += (((255 - g) * green) + 127) / 255;
+        b += (((255 - b) * blue) + 127) / 255;
+        a = Math.min(255, a + Math.round(((255 - a) * alpha) / 255f));
+
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * get the table of fifth roots, it contains at least the values from 0 to max
+     * @param max
+     * @return
+     */
+    private static float[] getFifthRoots(int max) {
+        float[] fifthRoots = PianoRoll.fifthRoots;
+        if (fifthRoots.length > max)
+            return fifthRoots;
+
+        float[] table = Arrays.copyOf(fifthRoots, Math.max(max + 1, 2 * fifthRoots.length));    // the table is replaced, not altered, so other threads can still read the old one
+        for (int k = fifthRoots.length; k < table.length; ++k)
+            table[k] = (float) Math.pow(k, 0.2);
+        PianoRoll.fifthRoots = table;
+        return table;
     }
 
     /**
@@ -205,4 +198,72 @@ public class PianoRoll extends BufferedImage {
                 && (width == this.getWidth())
                 && (height == this.getHeight());
     }
+
+    /**
+     * The notes in one row of pixels as intervals [start, end) of x coordinates in the order in which they were added.
+     * The notes of a part are added in the order of their dates, so the start coordinates are usually sorted and a
+     * binary search finds the candidates for a pixel. Where the notes overlap, the one added last is associated.
+     */
+    private static class NoteRow {
+        private int[] starts = new int[8];
+        private int[] ends = new int[8];
+        private int[] maxEnds = new int[8];     // maxEnds[i] is the maximum of ends[0..i], the search backwards can stop where it is not beyond x
+        private Note[] notes = new Note[8];
+        private int size = 0;
+        private boolean sorted = true;          // are the start coordinates in ascending order?
+
+        /**
+         * add a note
+         * @param start
+         * @param end
+         * @param note
+         */
+        private void add(int start, int end, Note note) {
+            if (this.size == this.notes.length) {
+                int capacity = this.size << 1;
+                this.starts = Arrays.copyOf(this.starts, capacity);
+                this.ends = Arrays.copyOf(this.ends, capacity);
+                this.maxEnds = Arrays.copyOf(this.maxEnds, capacity);
+                this.notes = Arrays.copyOf(this.notes, capacity);
+            }
+
+            if (this.size > 0) {
+                if (start < this.starts[this.size - 1])
+                    this.sorted = false;
+                this.maxEnds[this.size] = Math.max(end, this.maxEnds[this.size - 1]);
+            } else
+                this.maxEnds[0] = end;
+
+            this.starts[this.size] = start;
+            this.ends[this.size] = end;
+            this.notes[this.size] = note;
+            ++this.size;
+        }
+
+        /**
+         * get the note at the specified x coordinate
+         * @param x
+         * @return the note added last that covers x or null
+         */
+        private Note getNoteAt(int x) {
+            int i = this.size - 1;
+            if (this.sorted) {                  // the notes after the last one that starts at or before x cannot cover x
+                int first = 0;
+                int last = this.size;
+                while (first < last) {
+                    int mid = (first + last) >>> 1;
+                    if (this.starts[mid] <= x)
+                        first = mid + 1;
+                    else
+                        last = mid;
+                }
+                i = first - 1;
+            }
+
+            for (; (i >= 0) && (this.maxEnds[i] > x); --i)
+                if ((this.starts[i] <= x) && (this.ends[i] > x))
+                    return this.notes[i];
+            return null;
+        }
+    }
 }
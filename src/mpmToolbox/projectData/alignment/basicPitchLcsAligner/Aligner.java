@@ -6,12 +6,19 @@ import com.google.common.primitives.Doubles;
 import meico.supplementary.KeyValue;
 import mpmToolbox.projectData.alignment.Alignment;
 import mpmToolbox.projectData.alignment.Note;
+import mpmToolbox.projectData.alignment.NoteColumns;
 import mpmToolbox.projectData.alignment.Part;
 import org.apache.commons.math3.analysis.interpolation.LinearInterpolator;
 import org.apache.commons.math3.analysis.polynomials.PolynomialSplineFunction;
 
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.DoubleStream;
@@ -36,6 +43,22 @@ class Aligner {
 
     private double smoothingWidth = 0;
 
+    /**
+     * segments between two fixed notes are aligned only within a band around the linear tempo path between the fixed notes;
+     * the band spans this many seconds to both sides of the path, at least
+     */
+    private static final double MIN_BAND_HALF_WIDTH_SECONDS = 10.0;
+
+    /**
+     * ... or this ratio of the segment's duration if that is larger
+     */
+    private static final double BAND_HALF_WIDTH_RATIO = 0.25;
+
+    /**
+     * when the segments are aligned in parallel, their overall progress is reported at most once in this many milliseconds
+     */
+    private static final long PROGRESS_INTERVAL_MILLIS = 50;
+
     /**
      * Aligner constructor
      * @param simplificationToleranceSeconds tolerance used in the Douglas-Peucker alignment simplification algorithm
@@ -73,26 +96,15 @@ class Aligner {
             onDone = (com.google.common.base.Function<Void, Void>) input -> null;
         }
 
-        List<Note> scoreNotes = alignment.getNoteSequenceInTicks();
+        NoteColumns scoreColumns = alignment.getNoteColumnsInTicks();
         SortedMultiset<Note> scoreNotesSorted = TreeMultiset.create((o1, o2) -> ComparisonChain.start().compare(o1.getMillisecondsDate(), o2.getMillisecondsDate()).compare(o1.getPitch(), o2.getPitch()).result());
         Stopwatch transcriptionToNotesStopwatch = Stopwatch.createStarted();
 
-        List<Integer> scorePitches = Lists.newArrayList();
-
         // only allow one unique pitch at a given time
-        Set<String> timePitches = Sets.newHashSet();
-        List<Note> newScoreNotes = Lists.newArrayList();
-        for (Note note : scoreNotes) {
-            String kv = note.getMillisecondsDate() + "_ " + (int) note.getPitch();
-            if (timePitches.contains(kv)) {
-                continue;
-            }
-            timePitches.add(kv);
-
-            newScoreNotes.add(note);
-            scorePitches.add((int) note.getPitch());
-        }
-        scoreNotes = newScoreNotes;
+        int[] uniqueScoreNotes = scoreColumns.getFirstOfMillisecondsDateAndPitch();
+        List<Note> scoreNotes = Lists.newArrayListWithCapacity(uniqueScoreNotes.length);
+        for (int i : uniqueScoreNotes)
+            scoreNotes.add(scoreColumns.notes[i]);
 
         scoreNotesSorted.addAll(scoreNotes);
 
@@ -124,41 +136,37 @@ class Aligner {
 
 
         if (!fixedNotesSorted.isEmpty() && !scoreNotesSorted.isEmpty()) {
+            // sort the performance notes once, so the notes of each segment can be sliced out via binary search
+            List<Transcriber.NoteEventWithTime> perfNotesSorted = new ArrayList<>(ns);
+            Collections.sort(perfNotesSorted);
+            double[] perfStartTimes = new double[perfNotesSorted.size()];
+            for (int i = 0; i < perfStartTimes.length; i++) {
+                perfStartTimes[i] = perfNotesSorted.get(i).startTime;
+            }
+
             // get intervals between fixed points
+            List<Segment> segments = Lists.newArrayList();
             Note firstNote = scoreNotesSorted.firstEntry().getElement();
             for (Note lastNote : fixedNotesSorted) {
                 // System.out.println("aligning interval from " + firstNote + " to " + lastNote);
-                SortedMultiset<Note> segmentNotes = scoreNotesSorted.subMultiset(firstNote, BoundType.CLOSED, lastNote, BoundType.CLOSED);
-                List<Note> segmentScoreNotes = Lists.newArrayList(segmentNotes);
-                Note finalFirstNote = firstNote;
-                List<Transcriber.NoteEventWithTime> segmentPerfNotes = ns.stream().filter(
-                        note -> note.startTime >= finalFirstNote.getMillisecondsDate() / 1000 &&
-                                note.startTime <= lastNote.getMillisecondsDateEnd() / 1000
-                ).sorted().collect(Collectors.toList());
-
-                if (segmentScoreNotes.size() > 1 && segmentScoreNotes.get(0).getMillisecondsDate() !=
-                        segmentScoreNotes.get(segmentScoreNotes.size() - 1).getMillisecondsDate() && segmentPerfNotes.size() > 1) {
-                    fixedNotes.addAll(computeSegmentAlignment(segmentScoreNotes, segmentPerfNotes, firstNote, lastNote, onLabel, onProgress));
+                Segment segment = makeSegment(scoreNotesSorted, perfNotesSorted, perfStartTimes, firstNote, lastNote, firstNote.isFixed());
+                if (segment != null) {
+                    segments.add(segment);
                 }
-
                 firstNote = lastNote;
             }
             Note lastNote = scoreNotesSorted.lastEntry().getElement();
-            List<Note> segmentScoreNotes = Lists.newArrayList(scoreNotesSorted.subMultiset(firstNote, BoundType.CLOSED, lastNote, BoundType.CLOSED));
-            Note finalFirstNote1 = firstNote;
-            List<Transcriber.NoteEventWithTime> segmentPerfNotes = ns.stream().filter(
-                    note -> note.startTime >= finalFirstNote1.getMillisecondsDate() / 1000 &&
-                            note.startTime <= lastNote.getMillisecondsDateEnd() / 1000
-            ).collect(Collectors.toList());
-
-            if (segmentScoreNotes.size() > 1 && segmentScoreNotes.get(0).getMillisecondsDate() !=
-                    segmentScoreNotes.get(segmentScoreNotes.size() - 1).getMillisecondsDate() && segmentPerfNotes.size() > 1) {
+            Segment segment = makeSegment(scoreNotesSorted, perfNotesSorted, perfStartTimes, firstNote, lastNote, false);
+            if (segment != null) {
                 // System.out.println("aligning last interval from " + firstNote + " to " + lastNote);
-                fixedNotes.addAll(computeSegmentAlignment(segmentScoreNotes, segmentPerfNotes, firstNote, lastNote, onLabel, onProgress));
+                segments.add(segment);
             }
 
+            for (List<KeyValue<Note, Double>> segmentFixedNotes : computeSegmentAlignments(segments, onLabel, onProgress)) {
+                fixedNotes.addAll(segmentFixedNotes);
+            }
         } else {
-            fixedNotes = computeSegmentAlignment(scoreNotes, ns, null, null, onLabel, onProgress);
+            fixedNotes = computeSegmentAlignment(scoreNotes, ns, null, null, false, onLabel, onProgress);
         }
 
         alignment.reset();
@@ -175,12 +183,136 @@ class Aligner {
         onDone.apply(null);
     }
 
+    /**
+     * Cut out the score and performance notes between two fixed notes.
+     * @param scoreNotesSorted all score notes, sorted by milliseconds date and pitch
+     * @param perfNotesSorted all performance notes, sorted by start time and pitch
+     * @param perfStartTimes the start times of perfNotesSorted
+     * @param firstNote First fixed note
+     * @param lastNote Last fixed note
+     * @param anchored see computeSegmentAlignment()
+     * @return the segment or null if it has too few notes to be aligned
+     */
+    private static Segment makeSegment(SortedMultiset<Note> scoreNotesSorted,
+                                       List<Transcriber.NoteEventWithTime> perfNotesSorted,
+                                       double[] perfStartTimes,
+                                       Note firstNote,
+                                       Note lastNote,
+                                       boolean anchored) {
+        List<Note> segmentScoreNotes = Lists.newArrayList(scoreNotesSorted.subMultiset(firstNote, BoundType.CLOSED, lastNote, BoundType.CLOSED));
+
+        // all performance notes with firstNote.getMillisecondsDate() <= startTime <= lastNote.getMillisecondsDateEnd()
+        int from = firstIndexAtAfter(perfStartTimes, firstNote.getMillisecondsDate() / 1000);
+        int to = firstIndexAtAfter(perfStartTimes, Math.nextUp(lastNote.getMillisecondsDateEnd() / 1000));
+        List<Transcriber.NoteEventWithTime> segmentPerfNotes = perfNotesSorted.subList(from, Math.max(from, to));
+
+        if (segmentScoreNotes.size() > 1 && segmentScoreNotes.get(0).getMillisecondsDate() !=
+                segmentScoreNotes.get(segmentScoreNotes.size() - 1).getMillisecondsDate() && segmentPerfNotes.size() > 1) {
+            return new Segment(segmentScoreNotes, segmentPerfNotes, firstNote, lastNote, anchored);
+        }
+        return null;
+    }
+
+    /**
+     * binary search for the index of the first value that is greater than or equal to the given value
+     * @param values values in ascending order
+     * @param value
+     * @return the index or values.length if all values are less than value
+     */
+    private static int firstIndexAtAfter(double[] values, double value) {
+        int first = 0;
+        int last = values.length;
+        while (first < last) {
+            int mid = (first + last) >>> 1;
+            if (values[mid] < value) {
+                first = mid + 1;
+            } else {
+                last = mid;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * The segments between fixed notes are independent of each other. This method aligns them in parallel.
+     * @param segments the segments to be aligned
+     * @param onLabel
+     * @param onProgress
+     * @return for each segment, in the same order, the list of pairs of notes and times they are aligned with in performance
+     */
+    private List<List<KeyValue<Note, Double>>> computeSegmentAlignments(List<Segment> segments,
+                                                                        Function<String, Void> onLabel,
+                                                                        Function<Double, Void> onProgress) {
+        // the overall progress is the average of the segments' progress, weighted by the size of their LCS problems;
+        // the segments add their weighted progress to the sum without locking, the sum is reported at most every PROGRESS_INTERVAL_MILLIS
+        double[] weights = new double[segments.size()];
+        double weightSum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = (double) segments.get(i).scoreNotes.size() * segments.get(i).perfNotes.size();
+            weightSum += weights[i];
+        }
+        final double totalWeight = weightSum;
+        DoubleAdder progressSum = new DoubleAdder();
+        AtomicLong nextReport = new AtomicLong(System.nanoTime());
+        Object callbackLock = new Object();
+
+        // the callbacks are not thread-safe, so the segments call them one at a time
+        Function<String, Void> segmentLabel = label -> {
+            synchronized (callbackLock) {
+                onLabel.apply(label);
+            }
+            return null;
+        };
+
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<ForkJoinTask<List<KeyValue<Note, Double>>>> tasks = Lists.newArrayList();
+            for (int i = 0; i < segments.size(); i++) {
+                final int index = i;
+                final Segment segment = segments.get(i);
+                final double[] segmentDone = {0.0};     // the progress of this segment, it is only called from the thread that aligns it
+                Function<Double, Void> segmentProgress = p -> {
+                    progressSum.add((p - segmentDone[0]) * weights[index]);
+                    segmentDone[0] = p;
+
+                    long now = System.nanoTime();
+                    long next = nextReport.get();
+                    if ((now - next >= 0) && nextReport.compareAndSet(next, now + TimeUnit.MILLISECONDS.toNanos(PROGRESS_INTERVAL_MILLIS))) {    // only one segment reports per interval
+                        synchronized (callbackLock) {
+                            onProgress.apply((totalWeight > 0.0) ? Math.min(progressSum.sum() / totalWeight, 1.0) : 1.0);
+                        }
+                    }
+                    return null;
+                };
+                tasks.add(pool.submit(() -> computeSegmentAlignment(segment.scoreNotes, segment.perfNotes, segment.firstNote, segment.lastNote, segment.anchored, segmentLabel, segmentProgress)));
+            }
+
+            // collect the results in the order of the segments
+            List<List<KeyValue<Note, Double>>> results = Lists.newArrayList();
+            for (ForkJoinTask<List<KeyValue<Note, Double>>> task : tasks) {
+                results.add(task.get());
+            }
+            onProgress.apply(1.0);                                  // the last report may have been skipped by the interval
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("alignment interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CancellationException)     // a segment was interrupted
+                throw (CancellationException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
     /**
      * Compute an alignment for a given section of a score and performance
      * @param scoreNotes Score notes
      * @param perfNotes Performance notes obtained using transcription
      * @param firstNote First fixed note
      * @param lastNote Last fixed note
+     * @param anchored true if firstNote and lastNote are both fixed notes, so the score notes' current milliseconds dates give a good estimate of the tempo path and the alignment can be restricted to a band around it
      * @param onLabel
      * @param onProgress
      * @return List of pairs of notes and times they are aligned with in performance.
@@ -189,6 +321,7 @@ class Aligner {
                                                                  List<Transcriber.NoteEventWithTime> perfNotes,
                                                                  Note firstNote,
                                                                  Note lastNote,
+                                                                 boolean anchored,
                                                                  Function<String, Void> onLabel,
                                                                  Function<Double, Void> onProgress) {
 
@@ -199,46 +332,48 @@ class Aligner {
 
         System.out.println("aligning segment with " + scoreNotes.size() + " score notes and " + perfNotes.size() + " perf notes");
 
-        List<Integer> perfPitches = Lists.newArrayList();
-        for (Transcriber.NoteEventWithTime note : perfNotes) {
-            perfPitches.add(note.pitchMidi + this.pitchShift);
+        int[] perfPitches = new int[perfNotes.size()];
+        double[] perfTimes = new double[perfNotes.size()];
+        for (int i = 0; i < perfPitches.length; i++) {
+            Transcriber.NoteEventWithTime note = perfNotes.get(i);
+            perfPitches[i] = note.pitchMidi + this.pitchShift;
+            perfTimes[i] = note.startTime;
         }
 
-        List<Integer> scorePitches = Lists.newArrayList();
-
-        Set<String> timePitches = Sets.newHashSet();
-        for (Note note : scoreNotes) {
-            String kv = note.getMillisecondsDate() + "_ " + (int) note.getPitch();
-            if (timePitches.contains(kv)) {
-                continue;
-            }
-            timePitches.add(kv);
-            scorePitches.add((int) note.getPitch());
+        NoteColumns scoreColumns = new NoteColumns(scoreNotes);
+        int[] uniqueScoreNotes = scoreColumns.getFirstOfMillisecondsDateAndPitch();
+        int[] scorePitches = new int[uniqueScoreNotes.length];
+        double[] scoreTimes = new double[uniqueScoreNotes.length];
+        for (int i = 0; i < uniqueScoreNotes.length; i++) {
+            scorePitches[i] = scoreColumns.pitches[uniqueScoreNotes[i]];
+            scoreTimes[i] = scoreColumns.milliseconds[uniqueScoreNotes[i]] / 1000;
         }
 
         onLabel.apply("aligning score and performance");
 
-        AlignmentPair a = longestCommonSubsequence(scorePitches, perfPitches, onProgress);
-        System.out.println("computed LCS alignment with " + a.first.size() + " pairs");
+        BandedLcs a;
+        if (anchored) {     // between two fixed notes the current note positions are a good estimate of the tempo path, so we search only in a band around it
+            double segmentDuration = (lastNote.getMillisecondsDate() - firstNote.getMillisecondsDate()) / 1000;
+            int[][] band = BandedLcs.band(scoreTimes, perfTimes, Math.max(MIN_BAND_HALF_WIDTH_SECONDS, BAND_HALF_WIDTH_RATIO * segmentDuration));
+            a = BandedLcs.compute(scorePitches, perfPitches, band[0], band[1], onProgress);
+        } else {
+            a = BandedLcs.compute(scorePitches, perfPitches, onProgress);
+        }
+        System.out.println("computed LCS alignment with " + a.first.length + " pairs");
 
         onLabel.apply("filtering note list");
 
         Map<Double, Integer> noteTimePitch;
         Multimap<Long, Double> chordNoteTimes;
 
-        perfPitches = Lists.newArrayList();
-        for (Transcriber.NoteEventWithTime note : perfNotes) {
-            perfPitches.add(note.pitchMidi + this.pitchShift);
-        }
-
         onLabel.apply("aligning score and performance");
 
         noteTimePitch = Maps.newTreeMap();
         chordNoteTimes = HashMultimap.create();
 
-        for (int i = 0; i < a.first.size(); i++) {
-            int scoreOffset = a.first.get(i);
-            int perfOffset = a.second.get(i);
+        for (int i = 0; i < a.first.length; i++) {
+            int scoreOffset = a.first[i];
+            int perfOffset = a.second[i];
 
             if (scoreOffset < 0 || perfOffset < 0) continue;
 
@@ -343,9 +478,9 @@ class Aligner {
             fixedNotes.add(new KeyValue<>(firstNote, firstNote.getMillisecondsDate()));
         }
         double markedPerfTime = 0; // used to only fix one note in a chord, as more would be unnecessary and more difficult to update currently.
-        for (int i = 0; i < a.first.size(); i++) {
-            int scoreOffset = a.first.get(i);
-            int perfOffset = a.second.get(i);
+        for (int i = 0; i < a.first.length; i++) {
+            int scoreOffset = a.first[i];
+            int perfOffset = a.second[i];
 
             if (scoreOffset < 0 || perfOffset < 0) continue;
 
@@ -393,48 +528,6 @@ class Aligner {
         return (nextChordPerfTime - prevChordPerfTime) / (nextChordScoreTime / 1000f - prevChordScoreTime / 1000f);
     }
 
-    /**
-     * Calculates the longest common subsequence of two lists of integers.
-     *
-     * @param a          the first list of integers
-     * @param b          the second list of integers
-     * @param onProgress a function to call with the progress of the calculation (0.0 - 1.0)
-     * @return an alignment pair containing the longest common subsequence
-     */
-    private static AlignmentPair longestCommonSubsequence(List<Integer> a, List<Integer> b,
-                                                          Function<Double, Void> onProgress) {
-        int m = a.size(), n = b.size();
-        double[][] dp = new double[m + 1][n + 1];
-        for (int i = 1; i <= m; ++i) {
-            for (int j = 1; j <= n; ++j) {
-                if (a.get(i - 1).equals(b.get(j - 1))) {
-                    dp[i][j] = dp[i - 1][j - 1] + 1.;
-                } else {
-                    dp[i][j] = Math.max(dp[i - 1][j], dp[i][j - 1]);
-                }
-            }
-            if (onProgress != null) onProgress.apply(1. * i / m);
-        }
-        List<Integer> resultA = new ArrayList<>();
-        List<Integer> resultB = new ArrayList<>();
-        int i = m, j = n;
-        while (i > 0 && j > 0) {
-            if (a.get(i - 1).equals(b.get(j - 1))) {
-                resultA.add(i - 1);
-                resultB.add(j - 1);
-                --i;
-                --j;
-            } else if (dp[i - 1][j] > dp[i][j - 1]) {
-                --i;
-            } else {
-                --j;
-            }
-        }
-        Collections.reverse(resultA);
-        Collections.reverse(resultB);
-        return new AlignmentPair(resultA, resultB);
-    }
-
     /**
      * Compute moving average with a triangular weights centered around the given element.
      * @param input sequence, for which moving average is computed
@@ -478,14 +571,20 @@ class Aligner {
     }
 
     /**
-     * Represents a pair of alignments.
+     * A section of the score between two fixed notes together with the performance notes in that time frame.
      */
-    private static class AlignmentPair {
-        public List<Integer> first, second;
-
-        public AlignmentPair(List<Integer> first, List<Integer> second) {
-            this.first = first;
-            this.second = second;
+    private static class Segment {
+        public final List<Note> scoreNotes;
+        public final List<Transcriber.NoteEventWithTime> perfNotes;
+        public final Note firstNote, lastNote;
+        public final boolean anchored;
+
+        public Segment(List<Note> scoreNotes, List<Transcriber.NoteEventWithTime> perfNotes, Note firstNote, Note lastNote, boolean anchored) {
+            this.scoreNotes = scoreNotes;
+            this.perfNotes = perfNotes;
+            this.firstNote = firstNote;
+            this.lastNote = lastNote;
+            this.anchored = anchored;
         }
     }
 
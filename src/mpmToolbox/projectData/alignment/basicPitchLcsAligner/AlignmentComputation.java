@@ -5,6 +5,7 @@ import com.alee.laf.button.WebButton;
 import com.alee.laf.panel.WebPanel;
 import mpmToolbox.gui.Settings;
 import mpmToolbox.projectData.alignment.Alignment;
+import mpmToolbox.projectData.audio.Waveform;
 import mpmToolbox.supplementary.Tools;
 
 import javax.swing.*;
@@ -19,16 +20,16 @@ class AlignmentComputation extends WebProgressDialog {
 
     protected final AlignmentComputationWorker worker;
 
-    public AlignmentComputation(double[] audio, int sampleRate, String audioId, Alignment alignment,
+    public AlignmentComputation(Waveform audio, int sampleRate, String audioId, Alignment alignment,
                                 int minNoteLen, double onsetThresh, double frameThresh,
                                 int pitchShift, double smoothingWidth, double tolerance,
-                                boolean reuseModelOutput, Transcriber transcriber) {
+                                boolean reuseModelOutput, int batchSize, int numThreads, Transcriber transcriber) {
         super("Computing Alignment");
 
         this.worker = new AlignmentComputationWorker(audio, sampleRate, audioId, alignment,
                 minNoteLen, onsetThresh, frameThresh,
                 pitchShift, smoothingWidth, tolerance,
-                reuseModelOutput, this, transcriber);
+                reuseModelOutput, batchSize, numThreads, this, transcriber);
 
         this.setText("Initializing Alignment Pipeline ...");
         this.setIconImages(Settings.getIcons(null));
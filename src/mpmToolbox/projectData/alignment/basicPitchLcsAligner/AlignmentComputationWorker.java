@@ -2,16 +2,13 @@ package mpmToolbox.projectData.alignment.basicPitchLcsAligner;
 
 import com.alee.api.annotations.NotNull;
 import com.google.common.base.Function;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
 import mpmToolbox.projectData.alignment.Alignment;
-import mpmToolbox.projectData.alignment.Note;
+import mpmToolbox.projectData.audio.Waveform;
 
 import javax.swing.*;
 import java.nio.file.Paths;
-import java.util.Comparator;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 
@@ -24,7 +21,7 @@ import static mpmToolbox.projectData.alignment.basicPitchLcsAligner.Transcriber.
  */
 class AlignmentComputationWorker extends SwingWorker<Void, Void> {
     private final AlignmentComputation parent;
-    double[] audio;
+    Waveform audio;
     int sampleRate;
     String audioId;
     Alignment alignment;
@@ -35,6 +32,8 @@ class AlignmentComputationWorker extends SwingWorker<Void, Void> {
     double smoothingWidth;
     double tolerance;
     boolean reuseModelOutput;
+    int batchSize;
+    int numThreads;
 
     boolean exportMidi;
 
@@ -45,10 +44,10 @@ class AlignmentComputationWorker extends SwingWorker<Void, Void> {
     /**
      * constructor
      */
-    public AlignmentComputationWorker(double[] audio, int sampleRate, String audioId, Alignment alignment,
+    public AlignmentComputationWorker(Waveform audio, int sampleRate, String audioId, Alignment alignment,
                                       int minNoteLen, double onsetThresh, double frameThresh,
                                       int pitchShift, double smoothingWidth, double tolerance,
-                                      boolean reuseModelOutput, @NotNull AlignmentComputation parent, Transcriber transcriber) {
+                                      boolean reuseModelOutput, int batchSize, int numThreads, @NotNull AlignmentComputation parent, Transcriber transcriber) {
         super();
         this.audio = audio;
         this.sampleRate = sampleRate;
@@ -61,6 +60,8 @@ class AlignmentComputationWorker extends SwingWorker<Void, Void> {
         this.smoothingWidth = smoothingWidth;
         this.tolerance = tolerance;
         this.reuseModelOutput = reuseModelOutput;
+        this.batchSize = batchSize;
+        this.numThreads = numThreads;
         this.parent = parent;
         this.transcriber = transcriber;
         this.aligner = new Aligner(tolerance, pitchShift, smoothingWidth);
@@ -89,23 +90,13 @@ class AlignmentComputationWorker extends SwingWorker<Void, Void> {
         Function<Void, Void> onDone = input -> null;
 
 
-        List<Note> scoreNotes = alignment.getNoteSequenceInTicks();
-        List<Integer> scorePitches = Lists.newArrayList();
-        Set<String> timePitches = Sets.newHashSet();
-        for (mpmToolbox.projectData.alignment.Note note : scoreNotes) {
-            String kv = note.getMillisecondsDate() + "_ " + (int) note.getPitch();
-            if (timePitches.contains(kv)) {
-                continue;
-            }
-            timePitches.add(kv);
-            scorePitches.add((int) note.getPitch());
-        }
-        int minPitch = scorePitches.stream().min(Comparator.naturalOrder()).orElse(21);
-        int maxPitch = scorePitches.stream().max(Comparator.naturalOrder()).orElse(109);
+        int[] scorePitches = alignment.getNoteColumnsInTicks().pitches;   // notes with the same date and pitch do not change the pitch range, so there is no need to drop them here
+        int minPitch = (scorePitches.length == 0) ? 21 : Ints.min(scorePitches);
+        int maxPitch = (scorePitches.length == 0) ? 109 : Ints.max(scorePitches);
 
         List<Transcriber.NoteEventWithTime> ns = transcriber.processWithProgress(audio, sampleRate, audioId,
                 minNoteLen, onsetThresh, frameThresh, minPitch, maxPitch,
-                true,
+                true, batchSize, numThreads,
                 onLabel, onProgress, onDone).noteEventWithTimes;
 
         if (exportMidi) {
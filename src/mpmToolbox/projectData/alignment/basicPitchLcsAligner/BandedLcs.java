@@ -0,0 +1,491 @@
+package mpmToolbox.projectData.alignment.basicPitchLcsAligner;
+
+import java.util.concurrent.CancellationException;
+import java.util.function.Function;
+
+/**
+ * Longest common subsequence computation on primitive pitch arrays that does not allocate the full m x n
+ * dynamic programming matrix. Without band restriction, the traceback path is found by divide and conquer
+ * (Hirschberg): a forward pass determines where the path crosses the middle row, then both halves are solved
+ * recursively. This needs memory in O(m + n). Optionally, the computation can be restricted to a diagonal band of
+ * columns per row, e.g. around the expected tempo path between two fixed notes. Then, only the cells within the band
+ * are computed, every k-th row (k = sqrt(m)) of the band is kept during the forward pass, and the backtracking
+ * recomputes one block of k rows at a time from the nearest checkpoint row.
+ * <p>
+ * The traceback uses the same decision rules as the plain full-matrix implementation (take a match whenever the
+ * pitches are equal, otherwise go up only if that is strictly better, else go left). Hence, the result is
+ * identical to the full-matrix result if the band covers the whole matrix. With a narrower band it is identical
+ * as long as the band contains all cells that contribute to the optimal alignment.
+ * @author Vladimir Viro
+ */
+final class BandedLcs {
+    /**
+     * the pair of index sequences, first: indices into a, second: indices into b
+     */
+    final int[] first;
+    final int[] second;
+
+    /**
+     * constructor
+     * @param first
+     * @param second
+     */
+    private BandedLcs(int[] first, int[] second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    /**
+     * compute the longest common subsequence without any band restriction
+     * @param a          the first sequence
+     * @param b          the second sequence
+     * @param onProgress a function to call with the progress of the calculation (0.0 - 1.0), may be null
+     * @return the aligned index pairs
+     */
+    static BandedLcs compute(int[] a, int[] b, Function<Double, Void> onProgress) throws CancellationException {
+        if ((a.length == 0) || (b.length == 0))
+            return new BandedLcs(new int[0], new int[0]);
+
+        DivideAndConquer lcs = new DivideAndConquer(a, b, onProgress);
+        lcs.solve(0, a.length, 1, b.length);
+        if (onProgress != null) onProgress.apply(1.0);
+        return lcs.getResult();
+    }
+
+    /**
+     * compute the longest common subsequence within the specified band
+     * @param a          the first sequence (rows)
+     * @param b          the second sequence (columns)
+     * @param lo         for each row i in [1, a.length] the first column (in [1, b.length]) of the band; index 0 is ignored; null for no band restriction, see compute(a, b, onProgress)
+     * @param hi         for each row i in [1, a.length] the last column (in [1, b.length]) of the band; index 0 is ignored; null for no band restriction, see compute(a, b, onProgress)
+     * @param onProgress a function to call with the progress of the calculation (0.0 - 1.0), may be null
+     * @return the aligned index pairs
+     * @throws CancellationException if the thread is interrupted
+     */
+    static BandedLcs compute(int[] a, int[] b, int[] lo, int[] hi, Function<Double, Void> onProgress) throws CancellationException {
+        if ((lo == null) || (hi == null))
+            return compute(a, b, onProgress);
+
+        int m = a.length;
+        int n = b.length;
+        if ((m == 0) || (n == 0))
+            return new BandedLcs(new int[0], new int[0]);
+
+        // make sure we have a valid band
+        lo = lo.clone();
+        hi = hi.clone();
+        normalizeBand(lo, hi, n);
+
+        int blockSize = Math.max(1, (int) Math.ceil(Math.sqrt(m)));
+        int[][] checkpoints = new int[(m / blockSize) + 1][];   // checkpoint row c holds matrix row c * blockSize; row 0 is all zeros and stays null
+        int[] leftValues = new int[m + 1];                      // for each row i the value of the cell left of the band, i.e. at column lo[i]-1
+        double progressNorm = 2.0 * m;                          // the forward pass and the recomputation in the traceback take roughly the same time
+
+        // forward pass, keep only the checkpoint rows
+        int[] prev = null;
+        for (int i = 1; i <= m; ++i) {
+            int[] row = new int[hi[i] - lo[i] + 1];
+            leftValues[i] = computeRow(a[i - 1], b, row, lo[i], hi[i], prev, lo[i - 1], leftValues[i - 1]);
+            if ((i % blockSize) == 0) {
+                checkpoints[i / blockSize] = row;
+                checkInterrupted();
+            }
+            prev = row;
+            if (onProgress != null) onProgress.apply(i / progressNorm);
+        }
+
+        // traceback, block by block from the end to the beginning
+        int[] resultA = new int[Math.min(m, n)];
+        int[] resultB = new int[resultA.length];
+        int count = 0;
+        int recomputed = 0;
+        int[][] block = new int[blockSize + 1][];
+        int i = m, j = n;
+        while ((i > 0) && (j > 0)) {
+            checkInterrupted();
+
+            // recompute the rows between the checkpoint and row i
+            int start = ((i - 1) / blockSize) * blockSize;
+            block[0] = checkpoints[start / blockSize];
+            for (int r = start + 1; r <= i; ++r) {
+                int[] row = new int[hi[r] - lo[r] + 1];
+                computeRow(a[r - 1], b, row, lo[r], hi[r], block[r - start - 1], lo[r - 1], leftValues[r - 1]);
+                block[r - start] = row;
+                if (onProgress != null) onProgress.apply((m + (++recomputed)) / progressNorm);
+            }
+
+            // trace back within the block
+            while ((i > start) && (j > 0)) {
+                if (j > hi[i]) {                    // right of the band all values of the row equal the last value in the band, going left is the optimal choice
+                    j = hi[i];
+                    continue;
+                }
+                if (j < lo[i]) {                    // left of the band the values of a row equal those of the previous row, going up is an optimal choice
+                    --i;
+                    continue;
+                }
+                if (a[i - 1] == b[j - 1]) {
+                    resultA[count] = i - 1;
+                    resultB[count] = j - 1;
+                    ++count;
+                    --i;
+                    --j;
+                    continue;
+                }
+                int up = valueAt(block[i - start - 1], lo[i - 1], leftValues[i - 1], j);
+                int left = valueAt(block[i - start], lo[i], leftValues[i], j - 1);
+                if (up > left)
+                    --i;
+                else
+                    --j;
+            }
+        }
+        if (onProgress != null) onProgress.apply(1.0);
+
+        // the pairs were collected in reverse order
+        int[] first = new int[count];
+        int[] second = new int[count];
+        for (int k = 0; k < count; ++k) {
+            first[k] = resultA[count - 1 - k];
+            second[k] = resultB[count - 1 - k];
+        }
+        return new BandedLcs(first, second);
+    }
+
+    /**
+     * the computation cannot be stopped otherwise, so it checks for an interrupt once per checkpoint row and block,
+     * or once per row without band restriction
+     * @throws CancellationException if the thread is interrupted
+     */
+    private static void checkInterrupted() throws CancellationException {
+        if (Thread.currentThread().isInterrupted())
+            throw new CancellationException("alignment interrupted");
+    }
+
+    /**
+     * compute one row of the dynamic programming matrix within the band
+     * @param pitch    the element of the first sequence that corresponds to this row
+     * @param b        the second sequence
+     * @param row      output array of length hi-lo+1
+     * @param lo       first column of the band in this row
+     * @param hi       last column of the band in this row
+     * @param prev     the previous row or null if this is the first row
+     * @param prevLo   first column of the band in the previous row
+     * @param prevLeft the value left of the band in the previous row
+     * @return the value left of the band in this row, i.e. at column lo-1
+     */
+    private static int computeRow(int pitch, int[] b, int[] row, int lo, int hi, int[] prev, int prevLo, int prevLeft) {
+        int left = valueAt(prev, prevLo, prevLeft, lo - 1);    // left of the band there are no matches, so the value is that of the previous row
+        int before = left;
+        for (int j = lo; j <= hi; ++j) {
+            int v;
+            if (pitch == b[j - 1]) {
+                v = valueAt(prev, prevLo, prevLeft, j - 1) + 1;
+            } else {
+                v = valueAt(prev, prevLo, prevLeft, j);
+                if (before > v)
+                    v = before;
+            }
+            row[j - lo] = v;
+            before = v;
+        }
+        return left;
+    }
+
+    /**
+     * read a value from a banded row
+     * @param row  the row or null for the all-zeros row 0
+     * @param lo   the first column of the band in this row
+     * @param left the value left of the band
+     * @param j    the column; it should not be less than lo-1
+     * @return
+     */
+    private static int valueAt(int[] row, int lo, int left, int j) {
+        if (row == null)
+            return 0;
+        int k = j - lo;
+        if (k < 0)
+            return left;
+        if (k >= row.length)                // right of the band the value does not grow any further
+            return row[row.length - 1];
+        return row[k];
+    }
+
+    /**
+     * clamp the band to [1, n] and make its boundaries monotonically non-decreasing
+     * @param lo
+     * @param hi
+     * @param n
+     */
+    private static void normalizeBand(int[] lo, int[] hi, int n) {
+        for (int i = 1; i < lo.length; ++i) {
+            int h = Math.max(1, Math.min(n, hi[i]));
+            int l = Math.max(1, Math.min(n, lo[i]));
+            if (i > 1) {
+                h = Math.max(h, hi[i - 1]);
+                l = Math.max(l, lo[i - 1]);
+            }
+            hi[i] = h;
+            lo[i] = Math.min(l, h);
+        }
+    }
+
+    /**
+     * Derive a band from the expected timing of both sequences. Row i covers all columns whose time is within
+     * halfWidth of the row's time.
+     * @param rowTimes    the times of the elements of the first sequence, in non-decreasing order
+     * @param columnTimes the times of the elements of the second sequence, in non-decreasing order
+     * @param halfWidth   the time tolerance around the expected path
+     * @return {lo, hi}, both of length rowTimes.length + 1, index 0 is unused
+     */
+    static int[][] band(double[] rowTimes, double[] columnTimes, double halfWidth) {
+        int m = rowTimes.length;
+        int n = columnTimes.length;
+        int[] lo = new int[m + 1];
+        int[] hi = new int[m + 1];
+        for (int i = 1; i <= m; ++i) {
+            double t = rowTimes[i - 1];
+            lo[i] = lowerBound(columnTimes, t - halfWidth) + 1;         // first column with time >= t - halfWidth
+            hi[i] = lowerBound(columnTimes, Math.nextUp(t + halfWidth)); // last column with time <= t + halfWidth
+        }
+        normalizeBand(lo, hi, n);
+        return new int[][]{lo, hi};
+    }
+
+    /**
+     * binary search for the index of the first element that is not less than the value
+     * @param values in non-decreasing order
+     * @param value
+     * @return the index or values.length if all elements are less than value
+     */
+    private static int lowerBound(double[] values, double value) {
+        int first = 0;
+        int last = values.length;
+        while (first < last) {
+            int mid = (first + last) >>> 1;
+            if (values[mid] < value)
+                first = mid + 1;
+            else
+                last = mid;
+        }
+        return first;
+    }
+
+    /**
+     * The divide and conquer computation without band restriction. A subproblem covers the rows (r0, r1] and the
+     * columns [lo, hi] of the matrix; the traceback path starts at (r1, hi) and stays within these columns until it
+     * arrives at row r0 (or at column 0, where it ends). The subproblem knows the values of its top row r0 and of its
+     * left boundary column lo-1. The values are those of the whole matrix, not of the subproblem, so the traceback
+     * decisions are the same as in the full matrix.
+     * <p>
+     * A forward pass over the rows propagates, for each cell, the column where its traceback path crosses the middle
+     * row. The lower half is solved first, so the index pairs are collected from the end to the beginning, as in the
+     * traceback of the banded computation. The top rows and left columns of all subproblems share one array each,
+     * because the subproblems that are pending at the same time cover different rows and columns.
+     */
+    private static final class DivideAndConquer {
+        private static final long MAX_BLOCK_SIZE = 1L << 16;   // subproblems with at most this many cells are traced back in a full matrix
+
+        private final int[] a;
+        private final int[] b;
+        private final Function<Double, Void> onProgress;
+        private final int[] topRow;                             // topRow[j] is the value of the current subproblem's top row at column j
+        private final int[] leftColumn;                         // leftColumn[i] is the value left of the current subproblem's columns in row i
+        private final int[] resultA;
+        private final int[] resultB;
+        private int count = 0;
+        private long computedCells = 0;
+        private final double progressNorm;
+
+        /**
+         * constructor
+         * @param a the first sequence (rows)
+         * @param b the second sequence (columns)
+         * @param onProgress may be null
+         */
+        private DivideAndConquer(int[] a, int[] b, Function<Double, Void> onProgress) {
+            this.a = a;
+            this.b = b;
+            this.onProgress = onProgress;
+            this.topRow = new int[b.length + 1];                // row 0 is all zeros
+            this.leftColumn = new int[a.length + 1];            // column 0 is all zeros
+            this.resultA = new int[Math.min(a.length, b.length)];
+            this.resultB = new int[this.resultA.length];
+            this.progressNorm = 2.5 * a.length * b.length;      // the forward passes of all recursion levels take about 2.5 times the matrix size
+        }
+
+        /**
+         * trace back the path of a subproblem and collect its index pairs
+         * @param r0 the top row, the path ends when it arrives there
+         * @param r1 the row where the path starts
+         * @param lo the first column, at least 1
+         * @param hi the column where the path starts
+         * @throws CancellationException if the thread is interrupted
+         */
+        private void solve(int r0, int r1, int lo, int hi) throws CancellationException {
+            if ((r1 <= r0) || (hi < lo))
+                return;
+
+            if ((r1 - r0 <= 1) || ((long) (r1 - r0) * (hi - lo + 2) <= MAX_BLOCK_SIZE)) {
+                this.traceBack(r0, r1, lo, hi);
+                return;
+            }
+
+            int mid = (r0 + r1) >>> 1;
+            int width = hi - lo + 2;                            // the columns [lo-1, hi], index k is column lo-1+k
+
+            // forward pass over the upper half, it gives the values of the middle row
+            int[] prev = new int[width];
+            int[] row = new int[width];
+            System.arraycopy(this.topRow, lo - 1, prev, 0, width);
+            for (int i = r0 + 1; i <= mid; ++i) {
+                this.computeRow(i, lo, hi, prev, row);
+                int[] swap = prev;
+                prev = row;
+                row = swap;
+            }
+            int[] middleRow = prev.clone();
+
+            // forward pass over the lower half; for each cell, find the column where its path arrives at the middle row, 0 if it ends at column 0 before
+            int[] crossPrev = new int[width];
+            int[] cross = new int[width];
+            for (int k = 0; k < width; ++k)
+                crossPrev[k] = lo - 1 + k;
+            for (int i = mid + 1; i <= r1; ++i) {
+                this.computeRow(i, lo, hi, prev, row);
+                cross[0] = (lo == 1) ? 0 : -1;                  // the path of a cell cannot reach the left boundary column, except column 0 where it ends
+                int pitch = this.a[i - 1];
+                for (int k = 1; k < width; ++k) {
+                    if (pitch == this.b[lo - 2 + k])
+                        cross[k] = crossPrev[k - 1];
+                    else if (prev[k] > row[k - 1])
+                        cross[k] = crossPrev[k];
+                    else
+                        cross[k] = cross[k - 1];
+                }
+                int[] swap = prev;
+                prev = row;
+                row = swap;
+                swap = crossPrev;
+                crossPrev = cross;
+                cross = swap;
+            }
+            int c = crossPrev[width - 1];
+            if ((c < lo) && (c != 0))
+                throw new IllegalStateException("The traceback path leaves the subproblem.");
+
+            // the lower half's left boundary column is c-1, get its values by computing the lower half again up to there
+            int lowerLo = Math.max(c, 1);
+            if (lowerLo > lo) {
+                int lowerWidth = lowerLo - lo + 1;              // the columns [lo-1, lowerLo-1]
+                System.arraycopy(middleRow, 0, prev, 0, lowerWidth);
+                for (int i = mid + 1; i <= r1; ++i) {
+                    this.computeRow(i, lo, lowerLo - 1, prev, row);
+                    this.leftColumn[i] = row[lowerWidth - 1];   // computeRow() has read the previous value already
+                    int[] swap = prev;
+                    prev = row;
+                    row = swap;
+                }
+            }
+            prev = null;                                        // release the rows before the recursion
+            row = null;
+            crossPrev = null;
+            cross = null;
+
+            // the lower half's top row is the middle row; the upper half needs the values of this top row at columns c-1 and c again
+            int top0 = this.topRow[lowerLo - 1];
+            int top1 = this.topRow[lowerLo];
+            System.arraycopy(middleRow, lowerLo - lo, this.topRow, lowerLo - 1, hi - lowerLo + 2);
+            middleRow = null;
+            this.solve(mid, r1, lowerLo, hi);
+            this.topRow[lowerLo - 1] = top0;
+            this.topRow[lowerLo] = top1;
+
+            if (c > 0)
+                this.solve(r0, mid, lo, c);
+        }
+
+        /**
+         * compute one row of the matrix in the columns [lo, hi]
+         * @param i the row
+         * @param lo
+         * @param hi
+         * @param prev the previous row, index k is column lo-1+k
+         * @param row receives the row, index k is column lo-1+k; index 0 is taken from leftColumn
+         * @throws CancellationException if the thread is interrupted
+         */
+        private void computeRow(int i, int lo, int hi, int[] prev, int[] row) throws CancellationException {
+            checkInterrupted();
+
+            int pitch = this.a[i - 1];
+            int before = this.leftColumn[i];
+            row[0] = before;
+            for (int j = lo, k = 1; j <= hi; ++j, ++k) {
+                int v;
+                if (pitch == this.b[j - 1]) {
+                    v = prev[k - 1] + 1;
+                } else {
+                    v = prev[k];
+                    if (before > v)
+                        v = before;
+                }
+                row[k] = v;
+                before = v;
+            }
+
+            this.computedCells += hi - lo + 1;
+            if (this.onProgress != null) this.onProgress.apply(Math.min(0.99, this.computedCells / this.progressNorm));
+        }
+
+        /**
+         * trace back the path of a small subproblem in its full matrix
+         * @param r0
+         * @param r1
+         * @param lo
+         * @param hi
+         * @throws CancellationException if the thread is interrupted
+         */
+        private void traceBack(int r0, int r1, int lo, int hi) throws CancellationException {
+            int width = hi - lo + 2;
+            int[][] block = new int[r1 - r0 + 1][];
+            block[0] = new int[width];
+            System.arraycopy(this.topRow, lo - 1, block[0], 0, width);
+            for (int i = r0 + 1; i <= r1; ++i) {
+                block[i - r0] = new int[width];
+                this.computeRow(i, lo, hi, block[i - r0 - 1], block[i - r0]);
+            }
+
+            int i = r1, j = hi;
+            while ((i > r0) && (j > 0)) {
+                if (this.a[i - 1] == this.b[j - 1]) {
+                    this.resultA[this.count] = i - 1;
+                    this.resultB[this.count] = j - 1;
+                    ++this.count;
+                    --i;
+                    --j;
+                    continue;
+                }
+                int up = block[i - r0 - 1][j - lo + 1];
+                int left = block[i - r0][j - lo];
+                if (up > left)
+                    --i;
+                else
+                    --j;
+            }
+        }
+
+        /**
+         * the index pairs in ascending order
+         * @return
+         */
+        private BandedLcs getResult() {
+            int[] first = new int[this.count];
+            int[] second = new int[this.count];
+            for (int k = 0; k < this.count; ++k) {
+                first[k] = this.resultA[this.count - 1 - k];
+                second[k] = this.resultB[this.count - 1 - k];
+            }
+            return new BandedLcs(first, second);
+        }
+    }
+}
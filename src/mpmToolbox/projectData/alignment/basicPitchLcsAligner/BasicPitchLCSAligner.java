@@ -6,6 +6,7 @@ import mpmToolbox.gui.Settings;
 import mpmToolbox.projectData.alignment.AbstractAlignmentComputation;
 import mpmToolbox.projectData.alignment.Alignment;
 import mpmToolbox.projectData.audio.Audio;
+import mpmToolbox.projectData.audio.Waveform;
 
 import javax.swing.*;
 import java.awt.*;
@@ -19,6 +20,11 @@ public class BasicPitchLCSAligner extends AbstractAlignmentComputation {
     private WebSpinner smoothingWidthSpinner;
     private WebSpinner pitchShiftSpinner;
     private WebSpinner toleranceSpinner;
+    private WebSpinner batchSizeSpinner;
+    private WebSpinner threadsSpinner;
+    private WebSpinner onsetThresholdSpinner;
+    private WebSpinner frameThresholdSpinner;
+    private WebSpinner minNoteLengthSpinner;
 
     private final Transcriber transcriber;
     private Audio previousAudio = null;
@@ -30,7 +36,7 @@ public class BasicPitchLCSAligner extends AbstractAlignmentComputation {
     public BasicPitchLCSAligner() {
         super("BasicPitch+LCS Aligner");
 
-        transcriber = new Transcriber(":memory:");
+        transcriber = new Transcriber(Settings.getTranscriptionCacheDirectory().getPath(), Settings.transcriptionCacheSize * 1024 * 1024);
     }
 
     /**
@@ -71,7 +77,12 @@ public class BasicPitchLCSAligner extends AbstractAlignmentComputation {
                 "       value of this parameter. The higher this parameter, the fewer notes will be fixed  when their timing<br>" +
                 "       varies only subtly, and the coarser is the alignment in these cases. Fewer fixed notes make manual<br>" +
                 "       adjustments less tedious. On the other hand, the lower this value, the more fine-grained will the<br>" +
-                "       alignment be.</dd></dl></html>";
+                "       alignment be.</dd>" +
+                "<dt>Transcription batch size</dt>" +
+                "   <dd>The number of 2-seconds audio windows that the transcription model processes at once. Larger batches<br>" +
+                "       are usually faster but need more memory.</dd>" +
+                "<dt>Transcription threads</dt>" +
+                "   <dd>The number of CPU threads used by the transcription model.</dd></dl></html>";
 
         WebLabel algoDescription = new WebLabel(desc);
         algoDescription.setPadding(Settings.paddingInDialogs);
@@ -102,13 +113,59 @@ public class BasicPitchLCSAligner extends AbstractAlignmentComputation {
         toleranceUnitsLabel.setPadding(Settings.paddingInDialogs);
         this.addToContentPanel(toleranceUnitsLabel, 2, 3, 1, 1, 1.0, 1.0, 0, 0, GridBagConstraints.BOTH);
 
+        WebLabel batchSizeLabel = new WebLabel("Transcription batch size:", WebLabel.RIGHT);
+        batchSizeLabel.setPadding(Settings.paddingInDialogs);
+        batchSizeLabel.setToolTip("The number of audio windows that are transcribed at once. Reduce it if memory is short.");
+        this.addToContentPanel(batchSizeLabel, 0 , 4, 1, 1, 1.0, 1.0, 0, 0, GridBagConstraints.BOTH);
+        WebLabel batchSizeUnitsLabel = new WebLabel("windows", WebLabel.LEFT);
+        batchSizeUnitsLabel.setPadding(Settings.paddingInDialogs);
+        this.addToContentPanel(batchSizeUnitsLabel, 2, 4, 1, 1, 1.0, 1.0, 0, 0, GridBagConstraints.BOTH);
+
+        WebLabel threadsLabel = new WebLabel("Transcription threads:", WebLabel.RIGHT);
+        threadsLabel.setPadding(Settings.paddingInDialogs);
+        threadsLabel.setToolTip("The number of CPU threads used by the transcription model.");
+        this.addToContentPanel(threadsLabel, 0 , 5, 1, 1, 1.0, 1.0, 0, 0, GridBagConstraints.BOTH);
+        WebLabel threadsUnitsLabel = new WebLabel("threads", WebLabel.LEFT);
+        threadsUnitsLabel.setPadding(Settings.paddingInDialogs);
+        this.addToContentPanel(threadsUnitsLabel, 2, 5, 1, 1, 1.0, 1.0, 0, 0, GridBagConstraints.BOTH);
+
+        WebLabel onsetThresholdLabel = new WebLabel("Onset threshold:", WebLabel.RIGHT);
+        onsetThresholdLabel.setPadding(Settings.paddingInDialogs);
+        onsetThresholdLabel.setToolTip("<html><center>The minimum onset activation of a transcribed note. Lower values give more notes.<br>Changing the thresholds does not require a new transcription of the audio.</center></html>");
+        this.addToContentPanel(onsetThresholdLabel, 0 , 6, 1, 1, 1.0, 1.0, 0, 0, GridBagConstraints.BOTH);
+
+        WebLabel frameThresholdLabel = new WebLabel("Frame threshold:", WebLabel.RIGHT);
+        frameThresholdLabel.setPadding(Settings.paddingInDialogs);
+        frameThresholdLabel.setToolTip("The activation below which a transcribed note ends. Lower values give longer notes.");
+        this.addToContentPanel(frameThresholdLabel, 0 , 7, 1, 1, 1.0, 1.0, 0, 0, GridBagConstraints.BOTH);
+
+        WebLabel minNoteLengthLabel = new WebLabel("Minimum note length:", WebLabel.RIGHT);
+        minNoteLengthLabel.setPadding(Settings.paddingInDialogs);
+        minNoteLengthLabel.setToolTip("Shorter transcribed notes are ignored.");
+        this.addToContentPanel(minNoteLengthLabel, 0 , 8, 1, 1, 1.0, 1.0, 0, 0, GridBagConstraints.BOTH);
+        WebLabel minNoteLengthUnitsLabel = new WebLabel("milliseconds", WebLabel.LEFT);
+        minNoteLengthUnitsLabel.setPadding(Settings.paddingInDialogs);
+        this.addToContentPanel(minNoteLengthUnitsLabel, 2, 8, 1, 1, 1.0, 1.0, 0, 0, GridBagConstraints.BOTH);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+
         smoothingWidthSpinner = new WebSpinner(new SpinnerNumberModel(0, 0, 5, 0.25));
         pitchShiftSpinner = new WebSpinner(new SpinnerNumberModel(0, -36, 36, 1));
         toleranceSpinner = new WebSpinner(new SpinnerNumberModel(100., 0, 500, 20.));
+        batchSizeSpinner = new WebSpinner(new SpinnerNumberModel(Transcriber.DEFAULT_BATCH_SIZE, 1, 64, 1));
+        threadsSpinner = new WebSpinner(new SpinnerNumberModel(cores, 1, cores, 1));
+        onsetThresholdSpinner = new WebSpinner(new SpinnerNumberModel(0.3, 0.05, 0.95, 0.05));
+        frameThresholdSpinner = new WebSpinner(new SpinnerNumberModel(0.3, 0.05, 0.95, 0.05));
+        minNoteLengthSpinner = new WebSpinner(new SpinnerNumberModel(50, 10, 500, 10));
 
         this.addToContentPanel(this.smoothingWidthSpinner, 1 , 1, 1, 1, 1.0, 1.0, 0, 0, GridBagConstraints.BOTH);
         this.addToContentPanel(this.pitchShiftSpinner, 1 , 2, 1, 1, 1.0, 1.0, 0, 0, GridBagConstraints.BOTH);
         this.addToContentPanel(this.toleranceSpinner, 1 , 3, 1, 1, 1.0, 1.0, 0, 0, GridBagConstraints.BOTH);
+        this.addToContentPanel(this.batchSizeSpinner, 1 , 4, 1, 1, 1.0, 1.0, 0, 0, GridBagConstraints.BOTH);
+        this.addToContentPanel(this.threadsSpinner, 1 , 5, 1, 1, 1.0, 1.0, 0, 0, GridBagConstraints.BOTH);
+        this.addToContentPanel(this.onsetThresholdSpinner, 1 , 6, 1, 1, 1.0, 1.0, 0, 0, GridBagConstraints.BOTH);
+        this.addToContentPanel(this.frameThresholdSpinner, 1 , 7, 1, 1, 1.0, 1.0, 0, 0, GridBagConstraints.BOTH);
+        this.addToContentPanel(this.minNoteLengthSpinner, 1 , 8, 1, 1, 1.0, 1.0, 0, 0, GridBagConstraints.BOTH);
     }
 
     /**
@@ -125,20 +182,34 @@ public class BasicPitchLCSAligner extends AbstractAlignmentComputation {
         double smoothingWidth = (double) smoothingWidthSpinner.getValue();
         double tolerance = (double) toleranceSpinner.getValue();
         tolerance = tolerance / 1000;
+        int batchSize = (int) batchSizeSpinner.getValue();
+        int numThreads = (int) threadsSpinner.getValue();
+        double onsetThresh = (double) onsetThresholdSpinner.getValue();
+        double frameThresh = (double) frameThresholdSpinner.getValue();
+        int minNoteLen = (int) minNoteLengthSpinner.getValue();
 
         Alignment a = audio.getAlignment();
-        double[] _audio = audio.getWaveforms().get(0);
+        Waveform _audio = audio.getWaveforms().get(0);
         float sr = audio.getFrameRate();
-        String audioId = audio.getFile().getAbsolutePath();
+        String audioId = Transcriber.contentId(_audio, (int) sr);  // the cache key, it does not depend on the file location, so a moved file is still found in the cache
 
         AlignmentComputation alignCom = new AlignmentComputation(_audio, (int)sr, audioId, a,
-                50, 0.3, 0.3,
+                minNoteLen, onsetThresh, frameThresh,
                 pitchShift, smoothingWidth, tolerance,
-                reuseModelOutput, transcriber);
+                reuseModelOutput, batchSize, numThreads, transcriber);
         alignCom.execute();
 
         this.previousAudio = audio;
 
         return audio;
     }
+
+    /**
+     * release the transcriber's inference session
+     */
+    @Override
+    public void releaseResources() {
+        this.transcriber.close();
+        this.previousAudio = null;
+    }
 }
@@ -0,0 +1,91 @@
+package mpmToolbox.projectData.alignment.basicPitchLcsAligner;
+
+import java.nio.FloatBuffer;
+
+/**
+ * A read-only, row-major matrix of floats, e.g. the contour, frame or onset activations of the transcription model
+ * (rows = time frames, columns = frequency bins). The data can be a plain heap array or a memory-mapped file
+ * region, see TensorCache, so cached model output does not need to be copied on load.
+ * @author Vladimir Viro
+ */
+final class FloatMatrix {
+    private final FloatBuffer data;
+    private final int rows;
+    private final int columns;
+
+    /**
+     * constructor
+     * @param data    the values in row-major order, the array is not copied
+     * @param rows
+     * @param columns
+     */
+    FloatMatrix(float[] data, int rows, int columns) {
+        this(FloatBuffer.wrap(data), rows, columns);
+    }
+
+    /**
+     * constructor
+     * @param data    the values in row-major order from the buffer's position on, the buffer is not copied
+     * @param rows
+     * @param columns
+     */
+    FloatMatrix(FloatBuffer data, int rows, int columns) {
+        if (data.remaining() < (long) rows * columns)
+            throw new IllegalArgumentException("Buffer of " + data.remaining() + " floats is too small for a " + rows + " x " + columns + " matrix.");
+        this.data = data.slice();
+        this.rows = rows;
+        this.columns = columns;
+    }
+
+    int getRows() {
+        return this.rows;
+    }
+
+    int getColumns() {
+        return this.columns;
+    }
+
+    /**
+     * the number of floats in this matrix
+     * @return
+     */
+    long size() {
+        return (long) this.rows * this.columns;
+    }
+
+    float get(int row, int column) {
+        return this.data.get(row * this.columns + column);
+    }
+
+    /**
+     * a read-only view of the data in row-major order
+     * @return
+     */
+    FloatBuffer getBuffer() {
+        FloatBuffer buffer = this.data.asReadOnlyBuffer();
+        buffer.limit(this.rows * this.columns);
+        return buffer;
+    }
+
+    /**
+     * copy the data into a new row-major array
+     * @return
+     */
+    float[] toFlatArray() {
+        float[] array = new float[this.rows * this.columns];
+        this.getBuffer().get(array);
+        return array;
+    }
+
+    /**
+     * copy the data into a new array of rows
+     * @return
+     */
+    float[][] toArray() {
+        float[][] array = new float[this.rows][this.columns];
+        FloatBuffer buffer = this.getBuffer();
+        for (float[] row : array)
+            buffer.get(row);
+        return array;
+    }
+}
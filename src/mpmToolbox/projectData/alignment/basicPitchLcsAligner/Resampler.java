@@ -0,0 +1,207 @@
+package mpmToolbox.projectData.alignment.basicPitchLcsAligner;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Polyphase FIR sample rate converter for rational ratios L/M (L = output rate / gcd, M = input rate / gcd).
+ * Each output sample n lies at input position n * M / L. Its value is the dot product of the input samples around
+ * that position with one of L precomputed filter phases (Kaiser-windowed sinc low-pass). Its cutoff is at the lower
+ * of both Nyquist frequencies, so downsampling does not alias.
+ * <p>
+ * The filter banks are computed once per ratio and shared. The banks for the common conversions to the transcription
+ * sample rate (44100, 48000 and 96000 Hz to 22050 Hz) are precomputed when the class is loaded.
+ * <p>
+ * Output samples can be computed in arbitrary chunks, see process(float[], long, long, float[], int, int). The input
+ * needs to cover the range given by getInputStart() and getInputEnd() only; samples outside of it are treated as 0.
+ * @author Vladimir Viro
+ */
+final class Resampler {
+    /**
+     * the number of zero crossings of the sinc on each side of the filter center, relative to the lower of both sample rates
+     */
+    private static final int ZERO_CROSSINGS = 16;
+    /**
+     * the cutoff frequency relative to the lower Nyquist frequency
+     */
+    private static final double ROLLOFF = 0.9;
+    /**
+     * the shape parameter of the Kaiser window, about 80 dB stopband attenuation
+     */
+    private static final double KAISER_BETA = 8.0;
+    /**
+     * the filter banks, keyed by "L/M"
+     */
+    private static final Map<String, float[][]> filterBanks = new ConcurrentHashMap<>();
+
+    static {
+        new Resampler(44100, 22050);
+        new Resampler(48000, 22050);
+        new Resampler(96000, 22050);
+    }
+
+    private final int up;           // L
+    private final int down;         // M
+    private final float[][] bank;   // bank[phase][tap], tap k weights input sample floor(n * M / L) - taps / 2 + 1 + k
+    private final int taps;
+
+    /**
+     * constructor
+     * @param inputRate  the sample rate of the input
+     * @param outputRate the sample rate of the output
+     */
+    Resampler(int inputRate, int outputRate) {
+        if ((inputRate <= 0) || (outputRate <= 0))
+            throw new IllegalArgumentException("Sample rates must be positive, got " + inputRate + " and " + outputRate + ".");
+
+        int gcd = gcd(inputRate, outputRate);
+        this.up = outputRate / gcd;
+        this.down = inputRate / gcd;
+        this.bank = filterBanks.computeIfAbsent(this.up + "/" + this.down, key -> makeFilterBank(this.up, this.down));
+        this.taps = this.bank[0].length;
+    }
+
+    /**
+     * compute the polyphase filter bank for the ratio up/down
+     * @param up
+     * @param down
+     * @return
+     */
+    private static float[][] makeFilterBank(int up, int down) {
+        double cutoff = Math.min(1.0, (double) up / down);                  // relative to the input Nyquist frequency
+        double halfSpan = ZERO_CROSSINGS / cutoff;                          // half the filter length in input samples
+        int taps = 2 * (int) Math.ceil(halfSpan);
+        double fc = cutoff * ROLLOFF;
+        double i0Beta = besselI0(KAISER_BETA);
+
+        float[][] bank = new float[up][taps];
+        for (int phase = 0; phase < up; ++phase) {
+            double frac = (double) phase / up;
+            double[] h = new double[taps];
+            double sum = 0.0;
+            for (int k = 0; k < taps; ++k) {
+                double d = (k - taps / 2 + 1) - frac;                       // distance of the tap's input sample from the output position
+                double r = d / halfSpan;
+                if (Math.abs(r) > 1.0)
+                    continue;
+                double x = Math.PI * fc * d;
+                double sinc = (x == 0.0) ? 1.0 : Math.sin(x) / x;
+                h[k] = fc * sinc * besselI0(KAISER_BETA * Math.sqrt(1.0 - r * r)) / i0Beta;
+                sum += h[k];
+            }
+            for (int k = 0; k < taps; ++k)                                  // normalize to unity gain at DC
+                bank[phase][k] = (float) (h[k] / sum);
+        }
+        return bank;
+    }
+
+    /**
+     * the zeroth order modified Bessel function of the first kind, needed for the Kaiser window
+     * @param x
+     * @return
+     */
+    private static double besselI0(double x) {
+        double sum = 1.0;
+        double term = 1.0;
+        double q = x * x / 4.0;
+        for (int k = 1; k < 100; ++k) {
+            term *= q / ((double) k * k);
+            sum += term;
+            if (term < sum * 1e-12)
+                break;
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /**
+     * the number of output samples for the given number of input samples
+     * @param inputLength
+     * @return
+     */
+    int getOutputLength(long inputLength) {
+        return (int) ((inputLength * this.up + this.down - 1) / this.down);
+    }
+
+    /**
+     * the index of the first input sample that contributes to the given output sample
+     * @param output
+     * @return
+     */
+    long getInputStart(long output) {
+        return Math.floorDiv(output * this.down, this.up) - this.taps / 2 + 1;
+    }
+
+    /**
+     * the index after the last input sample that contributes to the given output sample
+     * @param output
+     * @return
+     */
+    long getInputEnd(long output) {
+        return this.getInputStart(output) + this.taps;
+    }
+
+    /**
+     * resample a complete signal
+     * @param input
+     * @return
+     */
+    float[] process(float[] input) {
+        float[] output = new float[this.getOutputLength(input.length)];
+        this.process(input, 0, 0, output, 0, output.length);
+        return output;
+    }
+
+    /**
+     * compute a chunk of output samples
+     * @param input        a chunk of the input signal, samples outside of it are assumed to be 0
+     * @param inputOffset  the index of input[0] in the whole input signal
+     * @param firstOutput  the index of the first output sample to compute
+     * @param output       the output array
+     * @param outputOffset where to write the first output sample in the output array
+     * @param count        the number of output samples to compute
+     */
+    void process(float[] input, long inputOffset, long firstOutput, float[] output, int outputOffset, int count) {
+        final int taps = this.taps;
+        for (int i = 0; i < count; ++i) {
+            long n = firstOutput + i;
+            long pos = n * this.down;
+            int phase = (int) Math.floorMod(pos, (long) this.up);
+            float[] h = this.bank[phase];
+            long start = Math.floorDiv(pos, this.up) - taps / 2 + 1 - inputOffset;   // index into the input chunk
+
+            if ((start >= 0) && (start + taps <= input.length)) {
+                // the fast path, four independent accumulators allow the JIT to unroll and pipeline the loop
+                int s = (int) start;
+                float a0 = 0f, a1 = 0f, a2 = 0f, a3 = 0f;
+                int k = 0;
+                for (; k + 3 < taps; k += 4) {
+                    a0 += h[k] * input[s + k];
+                    a1 += h[k + 1] * input[s + k + 1];
+                    a2 += h[k + 2] * input[s + k + 2];
+                    a3 += h[k + 3] * input[s + k + 3];
+                }
+                for (; k < taps; ++k)
+                    a0 += h[k] * input[s + k];
+                output[outputOffset + i] = (a0 + a1) + (a2 + a3);
+            } else {
+                // at the borders of the input chunk
+                float acc = 0f;
+                for (int k = 0; k < taps; ++k) {
+                    long j = start + k;
+                    if ((j >= 0) && (j < input.length))
+                        acc += h[k] * input[(int) j];
+                }
+                output[outputOffset + i] = acc;
+            }
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package mpmToolbox.projectData.alignment.basicPitchLcsAligner;
+
+import com.google.common.hash.Hashing;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A cache for named float matrices, i.e. the transcription model output. Each entry is stored in one file in the
+ * cache directory: a small header (entry id, tensor names and shapes) followed by the raw little-endian float data.
+ * On a cache hit each matrix is memory-mapped and is a view into its mapping, so nothing is copied or deserialized.
+ * Matrices below MIN_MAPPING_SIZE and beyond the 2 GB limit of a mapping are read into the heap instead. The index of
+ * entries is kept in memory in least recently used order together with the running total of the file sizes. When the
+ * total exceeds the maximum size, the least recently used entries are deleted.
+ * <p>
+ * On Windows a file cannot be deleted while it is mapped, and the mapping is released only when the garbage collector
+ * frees the matrices. Such a file is marked for deletion with a file of the same name plus DELETED_EXTENSION, and its
+ * deletion is retried with every put() and when the cache is opened the next time.
+ * <p>
+ * With the cache path ":memory:" the entries are kept on the heap and get lost when the program ends.
+ * @author Vladimir Viro
+ */
+class TensorCache {
+    private static final String FILE_EXTENSION = ".tensors";
+    private static final String DELETED_EXTENSION = ".deleted";
+    private static final long MIN_MAPPING_SIZE = 1L << 20;     // smaller matrices are read into the heap, this is faster than mapping them
+    private static final int MAGIC = 0x4d505443;   // "MPTC"
+    private static final int VERSION = 1;
+
+    private final File directory;                   // null for the in-memory cache
+    private final long maxSize;
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(16, 0.75f, true);  // in access order, the least recently used entry comes first
+    private long size = 0;
+    private final ArrayList<File> undeleted = new ArrayList<>();   // files of removed entries that could not be deleted yet because they are still mapped
+
+    /**
+     * Constructs a new in-memory cache with default maximum size.
+     */
+    public TensorCache() {
+        this(":memory:", (long) Math.pow(2, 28));
+    }
+
+    /**
+     * Constructs a new cache.
+     * @param path    the cache directory or ":memory:"
+     * @param maxSize the maximum size of the cache, in bytes
+     */
+    public TensorCache(String path, long maxSize) {
+        this.maxSize = maxSize;
+
+        File dir = null;
+        if (!path.equals(":memory:")) {
+            dir = new File(path);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                System.out.println("could not create cache directory " + dir.getAbsolutePath() + ", initializing cache in memory");
+                dir = null;
+            }
+        }
+        this.directory = dir;
+
+        if (this.directory != null)
+            this.readIndex();
+    }
+
+    /**
+     * scan the cache directory and fill the index, the entries' file modification dates give the access order
+     */
+    private void readIndex() {
+        File[] marks = this.directory.listFiles((dir, name) -> name.endsWith(FILE_EXTENSION + DELETED_EXTENSION));
+        if (marks != null) {
+            for (File mark : marks)
+                this.undeleted.add(new File(mark.getPath().substring(0, mark.getPath().length() - DELETED_EXTENSION.length())));
+            this.retryDeletions();
+        }
+
+        File[] files = this.directory.listFiles((dir, name) -> name.endsWith(FILE_EXTENSION));
+        if (files == null)
+            return;
+
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (this.undeleted.contains(file))      // still in use by another instance of the program
+                continue;
+
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                Header header = Header.read(in);
+                Entry older = this.index.put(header.id, new Entry(file, file.length(), null));
+                this.size += file.length();
+                if (older != null)                  // the newer file replaces it
+                    this.remove(older);
+            } catch (IOException e) {
+                System.out.println("deleting invalid cache file " + file.getAbsolutePath() + ": " + e.getMessage());
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Stores the tensors in the cache with the given ID. An existing entry with the same ID is overwritten.
+     * If the cache is full, the least recently used entries are removed to make space for the new one.
+     * @param id      the ID of the entry
+     * @param tensors the named matrices
+     * @throws IOException
+     * @throws IllegalArgumentException if there are no matrices or one of them is missing or empty
+     */
+    public synchronized void put(String id, Map<String, FloatMatrix> tensors) throws IOException, IllegalArgumentException {
+        if (tensors.isEmpty())
+            throw new IllegalArgumentException("Cache entry " + id + " has no matrices.");
+        for (Map.Entry<String, FloatMatrix> t : tensors.entrySet()) {
+            if ((t.getValue() == null) || (t.getValue().size() == 0))
+                throw new IllegalArgumentException("Matrix " + t.getKey() + " of cache entry " + id + " is missing or empty.");
+        }
+
+        this.retryDeletions();
+        this.delete(id);
+
+        Entry entry;
+        if (this.directory == null) {
+            long bytes = 0;
+            for (FloatMatrix m : tensors.values())
+                bytes += 4 * m.size();
+            entry = new Entry(null, bytes, new HashMap<>(tensors));
+        } else {
+            entry = this.write(id, tensors);
+        }
+        this.index.put(id, entry);
+        this.size += entry.size;
+
+        // evict the least recently used entries, but keep the new one
+        Iterator<Map.Entry<String, Entry>> it = this.index.entrySet().iterator();
+        while ((this.size > this.maxSize) && (this.index.size() > 1)) {
+            Map.Entry<String, Entry> oldest = it.next();
+            it.remove();
+            this.remove(oldest.getValue());
+        }
+    }
+
+    /**
+     * write an entry file, the file is written to a temporary file first and then moved, so a partially written
+     * entry never shows up in the cache; the file of a previous entry with the same ID might still be mapped, so the
+     * new file gets a name that is not in use
+     * @param id
+     * @param tensors
+     * @return
+     * @throws IOException
+     */
+    private Entry write(String id, Map<String, FloatMatrix> tensors) throws IOException {
+        String name = Hashing.sha256().hashString(id, StandardCharsets.UTF_8).toString();
+        File file = new File(this.directory, name + FILE_EXTENSION);
+        for (int n = 1; file.exists() || new File(file.getPath() + DELETED_EXTENSION).exists(); ++n)
+            file = new File(this.directory, name + "-" + n + FILE_EXTENSION);
+
+        File temp = File.createTempFile("cache", ".tmp", this.directory);
+
+        try {
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(headerBytes)) {
+                new Header(id, tensors).write(out);
+            }
+
+            try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeFully(channel, ByteBuffer.wrap(headerBytes.toByteArray()));
+                ByteBuffer chunk = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+                for (FloatMatrix m : tensors.values()) {
+                    FloatBuffer data = m.getBuffer();
+                    while (data.hasRemaining()) {
+                        chunk.clear();
+                        FloatBuffer floats = chunk.asFloatBuffer();
+                        int n = Math.min(floats.remaining(), data.remaining());
+                        FloatBuffer part = data.duplicate();
+                        part.limit(part.position() + n);
+                        floats.put(part);
+                        data.position(data.position() + n);
+                        chunk.limit(4 * n);
+                        writeFully(channel, chunk);
+                    }
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+        return new Entry(file, file.length(), null);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * Retrieves the tensors with the given ID. The matrices of file-based entries are read-only views into memory
+     * mappings of the entry file or, if they are small, read into the heap.
+     * @param id the ID of the entry
+     * @return the named matrices or null if there is no such entry
+     * @throws IOException
+     */
+    public synchronized Map<String, FloatMatrix> get(String id) throws IOException {
+        Entry entry = this.index.get(id);  // this also moves the entry to the end of the access order
+        if (entry == null)
+            return null;
+        if (entry.tensors != null)
+            return Collections.unmodifiableMap(entry.tensors);
+
+        Map<String, FloatMatrix> tensors = new HashMap<>();
+        try (FileChannel channel = FileChannel.open(entry.file.toPath(), StandardOpenOption.READ)) {
+            Header header = Header.read(new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel))));  // the matrices are read at absolute positions, so it does not matter how far the stream has read ahead
+            if (!header.id.equals(id))
+                throw new IOException("Cache file " + entry.file.getAbsolutePath() + " does not belong to entry " + id + ".");
+
+            long offset = header.byteSize();
+            for (int i = 0; i < header.names.length; ++i) {
+                long floats = (long) header.rows[i] * header.columns[i];
+                long bytes = 4L * floats;
+                if (offset + bytes > channel.size())
+                    throw new IOException("Cache file " + entry.file.getAbsolutePath() + " is truncated.");
+                if (floats > Integer.MAX_VALUE)
+                    throw new IOException("Matrix " + header.names[i] + " in cache file " + entry.file.getAbsolutePath() + " is too large.");
+
+                FloatBuffer data = ((bytes < MIN_MAPPING_SIZE) || (bytes > Integer.MAX_VALUE))
+                        ? read(channel, offset, (int) floats)
+                        : channel.map(FileChannel.MapMode.READ_ONLY, offset, bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();   // the mapping stays valid after the channel is closed
+                tensors.put(header.names[i], new FloatMatrix(data, header.rows[i], header.columns[i]));
+                offset += bytes;
+            }
+        } catch (IOException e) {
+            this.index.remove(id);
+            this.remove(entry);
+            throw e;
+        }
+
+        entry.file.setLastModified(System.currentTimeMillis());  // keeps the access order across program restarts
+        return tensors;
+    }
+
+    /**
+     * read little-endian floats from a file into the heap
+     * @param channel
+     * @param position the byte position of the first float
+     * @param floats the number of floats
+     * @return
+     * @throws IOException
+     */
+    private static FloatBuffer read(FileChannel channel, long position, int floats) throws IOException {
+        FloatBuffer data = FloatBuffer.allocate(floats);
+        ByteBuffer chunk = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        while (data.hasRemaining()) {
+            chunk.clear();
+            chunk.limit(4 * Math.min(chunk.capacity() / 4, data.remaining()));
+            while (chunk.hasRemaining()) {
+                int n = channel.read(chunk, position);
+                if (n < 0)
+                    throw new EOFException("Unexpected end of cache file.");
+                position += n;
+            }
+            chunk.flip();
+            data.put(chunk.asFloatBuffer());
+        }
+        data.flip();
+        return data;
+    }
+
+    /**
+     * Removes the entry with the given ID, if it exists.
+     * @param id
+     */
+    public synchronized void delete(String id) {
+        Entry entry = this.index.remove(id);
+        if (entry != null)
+            this.remove(entry);
+    }
+
+    /**
+     * update the running total and delete the entry's file
+     * @param entry an entry that is no longer in the index
+     */
+    private void remove(Entry entry) {
+        this.size -= entry.size;
+        if ((entry.file == null) || entry.file.delete())
+            return;
+
+        // the file is probably still mapped, mark it for deletion
+        this.undeleted.add(entry.file);
+        try {
+            new File(entry.file.getPath() + DELETED_EXTENSION).createNewFile();
+        } catch (IOException e) {
+            System.out.println("could not mark cache file " + entry.file.getAbsolutePath() + " for deletion: " + e.getMessage());
+        }
+    }
+
+    /**
+     * try again to delete the files that are marked for deletion
+     */
+    private void retryDeletions() {
+        for (Iterator<File> i = this.undeleted.iterator(); i.hasNext(); ) {
+            File file = i.next();
+            if (file.delete() || !file.exists()) {
+                new File(file.getPath() + DELETED_EXTENSION).delete();
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public synchronized void clear() {
+        for (Entry entry : this.index.values())
+            this.remove(entry);
+        this.index.clear();
+    }
+
+    /**
+     * @return the total size of all entries in bytes
+     */
+    public synchronized long getSize() {
+        return this.size;
+    }
+
+    /**
+     * an index entry
+     */
+    private static class Entry {
+        private final File file;                            // null for in-memory entries
+        private final long size;                            // in bytes
+        private final Map<String, FloatMatrix> tensors;     // only for in-memory entries
+
+        private Entry(File file, long size, Map<String, FloatMatrix> tensors) {
+            this.file = file;
+            this.size = size;
+            this.tensors = tensors;
+        }
+    }
+
+    /**
+     * the header of an entry file
+     */
+    private static class Header {
+        private final String id;
+        private final String[] names;
+        private final int[] rows;
+        private final int[] columns;
+
+        private Header(String id, String[] names, int[] rows, int[] columns) {
+            this.id = id;
+            this.names = names;
+            this.rows = rows;
+            this.columns = columns;
+        }
+
+        private Header(String id, Map<String, FloatMatrix> tensors) {
+            this(id, new String[tensors.size()], new int[tensors.size()], new int[tensors.size()]);
+            int i = 0;
+            for (Map.Entry<String, FloatMatrix> t : tensors.entrySet()) {   // the order must be the same as when writing the data
+                this.names[i] = t.getKey();
+                this.rows[i] = t.getValue().getRows();
+                this.columns[i] = t.getValue().getColumns();
+                ++i;
+            }
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(this.id);
+            out.writeInt(this.names.length);
+            for (int i = 0; i < this.names.length; ++i) {
+                out.writeUTF(this.names[i]);
+                out.writeInt(this.rows[i]);
+                out.writeInt(this.columns[i]);
+            }
+        }
+
+        private static Header read(DataInputStream in) throws IOException {
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION))
+                throw new IOException("Not a cache file of this version.");
+            String id = in.readUTF();
+            int n = in.readInt();
+            if (n < 0)
+                throw new IOException("Invalid number of tensors.");
+            String[] names = new String[n];
+            int[] rows = new int[n];
+            int[] columns = new int[n];
+            for (int i = 0; i < n; ++i) {
+                names[i] = in.readUTF();
+                rows[i] = in.readInt();
+                columns[i] = in.readInt();
+            }
+            return new Header(id, names, rows, columns);
+        }
+
+        /**
+         * the number of bytes of the header in the file
+         * @return
+         * @throws IOException
+         */
+        private long byteSize() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                this.write(out);
+            }
+            return bytes.size();
+        }
+    }
+}
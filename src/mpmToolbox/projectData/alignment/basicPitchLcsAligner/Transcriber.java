@@ -9,7 +9,13 @@ import com.google.common.base.Stopwatch;
 import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 import mpmToolbox.Main;
+import mpmToolbox.gui.Settings;
+import mpmToolbox.projectData.audio.FloatWaveform;
+import mpmToolbox.projectData.audio.Waveform;
 
 import javax.sound.midi.*;
 import javax.sound.sampled.AudioFormat;
@@ -19,12 +25,14 @@ import javax.sound.sampled.UnsupportedAudioFileException;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
-import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.DoubleStream;
@@ -46,7 +54,7 @@ import java.util.stream.Stream;
  * }
  * @author Vladimir Viro
  */
-class Transcriber {
+class Transcriber implements AutoCloseable {
     /**
      * The frame size of the FFT algorithm used in the transcription process.
      */
@@ -91,11 +99,56 @@ class Transcriber {
      * The hop size of the audio window used in the transcription process.
      */
     private static final int WINDOW_HOP_SIZE = AUDIO_N_SAMPLES - OVERLAP_LENGTH;
+    /**
+     * The default number of audio windows that are processed in one run of the model.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 8;
+    /**
+     * The number of frequency bins of the note (frame and onset) activations.
+     */
+    private static final int N_FREQ_BINS_NOTES = 88;
+    /**
+     * The number of frequency bins of the contour activations.
+     */
+    private static final int N_FREQ_BINS_CONTOUR = 3 * N_FREQ_BINS_NOTES;
+    /**
+     * The version of the transcription output. It is part of the cache keys and must be increased whenever the
+     * preprocessing or the model changes, so outdated cache entries are not used any longer.
+     */
+    private static final int OUTPUT_VERSION = 2;
+    /**
+     * Audio up to this number of samples is hashed completely to compute its content ID.
+     */
+    private static final int CONTENT_ID_FULL_HASH_LIMIT = 1 << 20;
+    /**
+     * For longer audio, this number of evenly distributed blocks of samples is hashed.
+     */
+    private static final int CONTENT_ID_BLOCKS = 256;
+    /**
+     * The number of samples per hashed block.
+     */
+    private static final int CONTENT_ID_BLOCK_LENGTH = 4096;
 
     /**
      * The cache used in the transcription process.
      */
-    private static ObjectCache cache = null;
+    private static TensorCache cache = null;
+    /**
+     * The inference session. It is created on first use and kept until close() is called.
+     */
+    private Session session = null;
+    /**
+     * The note index of the latest model output, see processWithProgress().
+     */
+    private volatile NoteIndex noteIndex = null;
+    /**
+     * Set when the model turned out not to accept a batch dimension > 1. From then on, all windows are processed one by one.
+     */
+    private volatile boolean singleWindowInference = false;
+    /**
+     * The graph optimization level of the inference session.
+     */
+    private OrtSession.SessionOptions.OptLevel optimizationLevel = OrtSession.SessionOptions.OptLevel.EXTENDED_OPT;
 
     /**
      * Constructor for the Transcriber class.
@@ -124,48 +177,41 @@ class Transcriber {
      */
     public Transcriber(String cachePath, long cacheSizeBytes) {
         try {
-            cache = new ObjectCache(cachePath, cacheSizeBytes);
+            cache = new TensorCache(cachePath, cacheSizeBytes);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
     /**
-     * This method windows the audio file.
+     * Computes an ID of the audio content that serves as the key of the transcription cache. It is a hash of the
+     * sample rate, the number of samples and the samples. For long recordings, only a number of evenly distributed
+     * blocks of samples is hashed, which is fast and still practically unique for real recordings.
      *
-     * @param audioOriginal the original audio file
-     * @param hopSize       the hop size of the audio window
-     * @return the windowed audio file
+     * @param audio      the mono audio data
+     * @param sampleRate the sample rate of the audio data
+     * @return the content ID
      */
-    private static float[][] windowAudioFile(float[] audioOriginal, int hopSize) {
-        int nWindows = (int) Math.ceil((double) audioOriginal.length / hopSize);
-        float[][] audioWindowed = new float[nWindows][];
-        for (int i = 0; i < nWindows; i++) {
-            int start = i * hopSize;
-            int end = Math.min(start + AUDIO_N_SAMPLES, audioOriginal.length);
-            int pad = AUDIO_N_SAMPLES - (end - start);
-            audioWindowed[i] = Arrays.copyOfRange(audioOriginal, start, end);
-            if (pad > 0) {
-                audioWindowed[i] = Arrays.copyOf(audioWindowed[i], AUDIO_N_SAMPLES);
-                Arrays.fill(audioWindowed[i], end - start, AUDIO_N_SAMPLES, 0);
+    public static String contentId(Waveform audio, int sampleRate) {
+        Hasher hasher = Hashing.murmur3_128().newHasher()
+                .putInt(OUTPUT_VERSION)
+                .putInt(sampleRate)
+                .putInt(audio.size());
+
+        if (audio.size() <= CONTENT_ID_FULL_HASH_LIMIT) {
+            for (int i = 0; i < audio.size(); i++) {
+                hasher.putDouble(audio.get(i));
+            }
+        } else {
+            for (int b = 0; b < CONTENT_ID_BLOCKS; b++) {
+                int start = (int) ((long) (audio.size() - CONTENT_ID_BLOCK_LENGTH) * b / (CONTENT_ID_BLOCKS - 1));
+                for (int i = start; i < start + CONTENT_ID_BLOCK_LENGTH; i++) {
+                    hasher.putDouble(audio.get(i));
+                }
             }
         }
-        return audioWindowed;
-    }
 
-    /**
-     * Gets the audio input by copying the specified audio file, extending it, and windowing it.
-     *
-     * @param audioOriginal The original audio file to be copied and extended.
-     * @param overlapLen    The length of the overlap.
-     * @param hopSize       The size of the hop.
-     * @return The audio input as a 2D array of floats.
-     */
-    private static float[][] getAudioInput(float[] audioOriginal, int overlapLen, int hopSize) {
-        audioOriginal = Arrays.copyOfRange(audioOriginal, overlapLen / 2, audioOriginal.length);
-        float[] audioExtended = new float[(overlapLen / 2) + audioOriginal.length];
-        System.arraycopy(audioOriginal, 0, audioExtended, (overlapLen / 2), audioOriginal.length);
-        return windowAudioFile(audioExtended, hopSize);
+        return "basicpitch-" + hasher.hash().toString();
     }
 
     /**
@@ -224,78 +270,52 @@ class Transcriber {
      * @return the resampled array of samples
      */
     private static float[] resample(float[] samples, int oldSamplingRate, int newSamplingRate) {
-        float[] resampled = new float[(int) Math.ceil(samples.length * ((double) newSamplingRate / (double) oldSamplingRate))];
-        for (int i = 0; i < resampled.length; i++) {
-            resampled[i] = samples[(int) Math.floor(i * ((double) oldSamplingRate / (double) newSamplingRate))];
-        }
-        return resampled;
+        return new Resampler(oldSamplingRate, newSamplingRate).process(samples);
     }
 
-    private static Map<String, float[][]> runInference(
-            String audioPath,
-            String modelPath)
-            throws IOException, UnsupportedAudioFileException {
-
-        float[] audioOriginal = readWaveFile(audioPath, AUDIO_SAMPLE_RATE);
-
-        return runInference(audioOriginal, modelPath, null, null);
-    }
-
-    private static Map<String, float[][]> runInference(
-            float[] audioOriginal,
-            String modelPath,
-            Function<String, Void> onLabel, Function<Double, Void> onProgress) {
-
-        System.out.println("audioOriginal shape = " + audioOriginal.length);
-
-        if (onLabel != null) onLabel.apply("windowing audio");
-
-        float[][] audioWindowed = getAudioInput(audioOriginal, OVERLAP_LENGTH, WINDOW_HOP_SIZE);
-
-        System.out.println("audioWindowed shape = " + audioWindowed.length + " " + audioWindowed[0].length);
-
-        if (onLabel != null) onLabel.apply("running transcription");
+    private Map<String, FloatMatrix> runInference(String audioPath) throws IOException, UnsupportedAudioFileException, OrtException {
 
-        Map<String, float[][][]> output = runModel(modelPath, audioWindowed, onLabel, onProgress);
+        Waveform audio = new FloatWaveform(readWaveFile(audioPath, AUDIO_SAMPLE_RATE));
 
-        if (onLabel != null) onLabel.apply("unwrapping transcription results");
-
-        return unwrapOutput(output, audioOriginal.length);
+        return runInference(audio, AUDIO_SAMPLE_RATE, DEFAULT_BATCH_SIZE, Runtime.getRuntime().availableProcessors(), null, null);
     }
 
     /**
-     * Unwraps the output map by removing half of the overlapping frames from the beginning and end of each value.
+     * Transcribes the audio in a streaming fashion. The audio windows are cut, converted and resampled from the
+     * source audio only when their batch is due, and each batch's model output is unwrapped right away into the
+     * final output matrices. Hence, apart from the output, memory is bounded by two batches of windows.
      *
-     * @param output              the output map to unwrap
-     * @param audioOriginalLength the original length of the audio
-     * @return a new map with the unwrapped output values
+     * @param audio      the mono audio data
+     * @param sampleRate the sample rate of the audio data
+     * @param batchSize  the number of windows that are processed in one run of the model
+     * @param numThreads the number of threads used by the inference runtime
+     * @param onLabel    a callback function that is called to display status information
+     * @param onProgress a callback function that is called to update the progress bar
+     * @return the unwrapped model output with keys "contour", "frame" and "onset"
+     * @throws OrtException
+     * @throws IOException
      */
-    private static Map<String, float[][]> unwrapOutput(Map<String, float[][][]> output, int audioOriginalLength) {
-        Map<String, float[][]> unwrappedOutput = new HashMap<>();
-        for (Map.Entry<String, float[][][]> entry : output.entrySet()) {
-            float[][][] value = entry.getValue();
+    private Map<String, FloatMatrix> runInference(
+            Waveform audio,
+            int sampleRate,
+            int batchSize,
+            int numThreads,
+            Function<String, Void> onLabel, Function<Double, Void> onProgress) throws OrtException, IOException {
 
-            int nOlap = (int) (0.5 * N_OVERLAPPING_FRAMES);
+        System.out.println("audioOriginal shape = " + audio.size());
 
-            float[][][] rawOutput = new float[value.length][value[0].length - 2 * nOlap][value[0][0].length];
+        AudioWindows input = new AudioWindows(audio, sampleRate);
 
-            if (nOlap > 0) {
-                for (int i = 0; i < value.length; i++) {
-                    // remove half of the overlapping frames from beginning and end
-                    rawOutput[i] = Arrays.copyOfRange(value[i], nOlap, value[i].length - nOlap);
-                }
-            }
+        System.out.println("audioWindowed shape = " + input.size() + " " + AUDIO_N_SAMPLES);
 
-            float[][] _unwrappedOutput = new float[rawOutput.length * rawOutput[0].length][rawOutput[0][0].length];
-            for (int i = 0; i < rawOutput.length; i++) {
-                for (int j = 0; j < rawOutput[0].length; j++) {
-                    System.arraycopy(rawOutput[i][j], 0, _unwrappedOutput[i * rawOutput[0].length + j], 0, rawOutput[0][0].length);
-                }
-            }
+        Session session = this.acquireSession(numThreads, onLabel);
+        try {
+            if (onLabel != null) onLabel.apply("running transcription");
 
-            unwrappedOutput.put(entry.getKey(), _unwrappedOutput);
+            return this.runModel(session.ortSession, input, batchSize, onLabel, onProgress);
+        } finally {
+            this.releaseSession(session);   // if the session was closed meanwhile, it is released only now
         }
-        return unwrappedOutput;
     }
 
     /**
@@ -325,14 +345,28 @@ class Transcriber {
     }
 
 
-    private static Map<String, float[][][]> runModel(String modelPath, float[][] input, Function<String, Void> onLabel, Function<Double, Void> onProgress) {
-        Map<String, float[][][]> out = Maps.newHashMap();
+    /**
+     * Runs the transcription model on the windowed audio.
+     *
+     * @param session    the inference session, see acquireSession()
+     * @param input      the windowed audio
+     * @param batchSize  the number of windows that are packed into one input tensor and processed in one run of the model;
+     *                   if the model does not accept it, this and all later transcriptions process the windows one by one
+     * @param onLabel    a callback function that is called to display status information
+     * @param onProgress a callback function that is called to update the progress bar
+     * @return the unwrapped model output with keys "contour", "frame" and "onset"
+     * @throws OrtException
+     * @throws CancellationException if the thread is interrupted
+     */
+    private Map<String, FloatMatrix> runModel(OrtSession session, AudioWindows input, int batchSize, Function<String, Void> onLabel, Function<Double, Void> onProgress) throws OrtException, CancellationException {
+        Map<String, FloatMatrix> out = Maps.newHashMap();
 
-        if (onLabel != null) onLabel.apply("initializing transcription runtime");
+        int nWindows = input.size();
+        batchSize = this.singleWindowInference ? 1 : Math.max(1, Math.min(batchSize, nWindows));
+        ExecutorService preparation = Executors.newSingleThreadExecutor();  // prepares the next batch while the model processes the current one
 
-        try (OrtEnvironment env = OrtEnvironment.getEnvironment();
-             OrtSession.SessionOptions options = new OrtSession.SessionOptions();
-             OrtSession session = env.createSession(modelPath)) {
+        try {
+            OrtEnvironment env = OrtEnvironment.getEnvironment();
             Set<String> inputNames = session.getInputNames();
             Set<String> outputNames = session.getOutputNames();
             assert inputNames.size() == 1;
@@ -340,42 +374,298 @@ class Transcriber {
             assert inputNames.iterator().next().equals("serving_default_input_2:0");
             assert outputNames.iterator().next().equals("StatefulPartitionedCall:0");
 
-            // Create input tensor object from input float array
-            float[][][] contour = new float[input.length][172][264];
-            float[][][] frame = new float[input.length][172][88];
-            float[][][] onset = new float[input.length][172][88];
-
-            if (onLabel != null) onLabel.apply("running transcription");
-
-            for (int i = 0; i < input.length; i++) {
-                float[][][] in = new float[1][input[i].length][1];
-                for (int j = 0; j < input[0].length; j++) {
-                    in[0][j][0] = input[i][j];
+            int framesPerWindow = ANNOT_N_FRAMES - 2 * (N_OVERLAPPING_FRAMES / 2);   // half of the overlapping frames is removed from beginning and end of each window
+            int nFrames = nWindows * framesPerWindow;
+            float[] contour = new float[nFrames * N_FREQ_BINS_CONTOUR];     // flat, row-major
+            float[] frame = new float[nFrames * N_FREQ_BINS_NOTES];
+            float[] onset = new float[nFrames * N_FREQ_BINS_NOTES];
+
+            final int firstSize = batchSize;
+            Future<float[][][]> nextBatch = preparation.submit(() -> makeBatch(input, 0, firstSize));
+            for (int i = 0, next; i < nWindows; i = next) {
+                float[][][] in = nextBatch.get();
+                next = i + in.length;                                   // the batch was prepared before a switch to single windows, so it may be larger than batchSize
+                if (next < nWindows) {
+                    final int start = next;
+                    final int size = batchSize;
+                    nextBatch = preparation.submit(() -> makeBatch(input, start, size));
                 }
-                OnnxTensor inputTensor = OnnxTensor.createTensor(env, in);
 
-                // Run model with Tensor input and get the Tensor output
-                Result result = session.run(ImmutableMap.of("serving_default_input_2:0", inputTensor));
-                contour[i] = ((float[][][]) result.get("StatefulPartitionedCall:0").get().getValue())[0];
-                frame[i] = ((float[][][]) result.get("StatefulPartitionedCall:1").get().getValue())[0];
-                onset[i] = ((float[][][]) result.get("StatefulPartitionedCall:2").get().getValue())[0];
+                int done = 0;                                           // the number of windows of this batch that are processed
+                if ((in.length > 1) && !this.singleWindowInference) {
+                    try {
+                        runBatch(env, session, in, i, contour, frame, onset);
+                        done = in.length;
+                    } catch (OrtException e) {
+                        // the model might not accept a batch dimension > 1; if it processes a single window, that is the reason, otherwise the error is thrown
+                        runBatch(env, session, new float[][][]{in[0]}, i, contour, frame, onset);
+                        done = 1;
+                        System.out.println("batched inference is not supported by the model, switching to single window inference: " + e.getMessage());
+                        this.singleWindowInference = true;
+                        batchSize = 1;
+                    }
+                }
+                for (int j = done; j < in.length; j++)
+                    runBatch(env, session, new float[][][]{in[j]}, i + j, contour, frame, onset);
 
                 if (onProgress != null) {
-                    onProgress.apply(1. * i / input.length);
+                    onProgress.apply(1. * Math.min(next, nWindows) / nWindows);
                 }
             }
-            out.put("contour", contour);
-            out.put("frame", frame);
-            out.put("onset", onset);
-        } catch (OrtException e) {
-            e.printStackTrace();
+            out.put("contour", new FloatMatrix(contour, nFrames, N_FREQ_BINS_CONTOUR));
+            out.put("frame", new FloatMatrix(frame, nFrames, N_FREQ_BINS_NOTES));
+            out.put("onset", new FloatMatrix(onset, nFrames, N_FREQ_BINS_NOTES));
+        } catch (ExecutionException e) {
+            throw new RuntimeException("preparing the audio windows failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("transcription interrupted");
+        } finally {
+            preparation.shutdownNow();
         }
         return out;
     }
 
+    /**
+     * Provides the inference session. It is created on the first call and reused by all subsequent transcriptions.
+     * If a different number of threads is requested, the session is recreated. Every call must be followed by a call
+     * of releaseSession() when the inference is done, the session is not closed before.
+     * <p>
+     * On creation, the model is read directly from the jar's resources. The graph-optimized model is written to the
+     * directory of the settings file, so later program starts can load it without optimizing the graph again. Its
+     * file name contains the hash of the model and the version of the runtime, so an update of either is not mixed up
+     * with an optimized graph of the previous one.
+     *
+     * @param numThreads the number of threads used by the ONNX runtime within and across the model's operators
+     * @param onLabel    a callback function that is called to display status information, may be null
+     * @return the session
+     * @throws OrtException
+     * @throws IOException
+     */
+    private synchronized Session acquireSession(int numThreads, Function<String, Void> onLabel) throws OrtException, IOException {
+        numThreads = Math.max(1, numThreads);
+        if ((this.session == null) || (this.session.threads != numThreads)) {
+            this.close();   // release the previous session, if any
+            this.session = new Session(this.createSession(numThreads, onLabel), numThreads);
+        }
+        ++this.session.users;
+        return this.session;
+    }
+
+    /**
+     * Signal that an inference with the session is done. If the session has been closed meanwhile, it is released now.
+     * @param session the session from acquireSession()
+     */
+    private synchronized void releaseSession(Session session) {
+        if ((--session.users == 0) && session.closed)
+            session.release();
+    }
+
+    /**
+     * Creates a new inference session, see acquireSession().
+     *
+     * @param numThreads the number of threads used by the ONNX runtime within and across the model's operators
+     * @param onLabel    a callback function that is called to display status information, may be null
+     * @return the session
+     * @throws OrtException
+     * @throws IOException
+     */
+    private OrtSession createSession(int numThreads, Function<String, Void> onLabel) throws OrtException, IOException {
+        if (onLabel != null) onLabel.apply("initializing transcription runtime");
+
+        byte[] model;
+        try (InputStream modelStream = Main.class.getResourceAsStream("/resources/basic_pitch.onnx")) {
+            if (modelStream == null)
+                throw new IOException("Transcription model /resources/basic_pitch.onnx not found.");
+            model = ByteStreams.toByteArray(modelStream);
+        }
+
+        OrtEnvironment env = OrtEnvironment.getEnvironment();
+        String modelHash = Hashing.murmur3_128().hashBytes(model).toString().substring(0, 16);
+        String optimizedModelName = "basic_pitch." + modelHash + ".ort-" + env.getVersion().replaceAll("[^0-9A-Za-z.-]", "_") + "." + this.optimizationLevel.name().toLowerCase() + ".onnx";
+        File optimizedModel = new File(new File(Settings.settingsFile).getAbsoluteFile().getParentFile(), optimizedModelName);
+
+        try (OrtSession.SessionOptions options = new OrtSession.SessionOptions()) {
+            options.setIntraOpNumThreads(numThreads);
+            options.setInterOpNumThreads(numThreads);
+
+            if (optimizedModel.isFile()) {      // the model has already been optimized, no need to do it again
+                options.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.NO_OPT);
+                try {
+                    return env.createSession(optimizedModel.getAbsolutePath(), options);
+                } catch (OrtException e) {      // the file might be corrupt
+                    System.out.println("could not load optimized transcription model " + optimizedModel.getAbsolutePath() + ", loading the original model instead: " + e.getMessage());
+                    Files.deleteIfExists(optimizedModel.toPath());
+                }
+            }
+
+            options.setOptimizationLevel(this.optimizationLevel);
+            if ((optimizedModel.getParentFile() != null) && optimizedModel.getParentFile().canWrite())
+                options.setOptimizedModelFilePath(optimizedModel.getAbsolutePath());
+
+            return env.createSession(model, options);
+        }
+    }
+
+    /**
+     * Set the graph optimization level of the inference session. This takes effect when the session is created
+     * the next time, e.g. after close().
+     * @param optimizationLevel
+     */
+    public synchronized void setOptimizationLevel(OrtSession.SessionOptions.OptLevel optimizationLevel) {
+        this.optimizationLevel = optimizationLevel;
+    }
+
+    /**
+     * Release the inference session and the note index. A subsequent transcription will create a new one.
+     * If an inference is still running with the session, it is released when that is done.
+     */
+    @Override
+    public synchronized void close() {
+        this.noteIndex = null;      // it holds a transposed copy of the frame activations
+        if (this.session == null)
+            return;
+        this.session.closed = true;
+        if (this.session.users == 0)
+            this.session.release();
+        this.session = null;
+    }
+
+    /**
+     * Packs a sequence of audio windows into the shape of the model input, i.e. [batch size, samples, 1].
+     *
+     * @param input     the windowed audio
+     * @param start     the index of the first window
+     * @param batchSize the maximum number of windows
+     * @return the model input
+     */
+    private static float[][][] makeBatch(AudioWindows input, int start, int batchSize) {
+        int n = Math.min(batchSize, input.size() - start);
+        float[][][] in = new float[n][AUDIO_N_SAMPLES][1];
+        for (int b = 0; b < n; b++) {
+            input.copyWindow(start + b, in[b]);
+        }
+        return in;
+    }
+
+    /**
+     * Runs the model on one batch of windows and writes the unwrapped results to the output arrays, i.e. without
+     * half of the overlapping frames at the beginning and end of each window.
+     *
+     * @param env     the ONNX runtime environment
+     * @param session the inference session
+     * @param in      the model input with shape [batch size, samples, 1]
+     * @param offset  the index of the batch's first window
+     * @param contour flat, row-major output array
+     * @param frame   flat, row-major output array
+     * @param onset   flat, row-major output array
+     * @throws OrtException
+     */
+    private static void runBatch(OrtEnvironment env, OrtSession session, float[][][] in, int offset, float[] contour, float[] frame, float[] onset) throws OrtException {
+        try (OnnxTensor inputTensor = OnnxTensor.createTensor(env, in);
+             Result result = session.run(ImmutableMap.of("serving_default_input_2:0", inputTensor))) {
+            float[][][] c = (float[][][]) result.get("StatefulPartitionedCall:0").get().getValue();
+            float[][][] f = (float[][][]) result.get("StatefulPartitionedCall:1").get().getValue();
+            float[][][] o = (float[][][]) result.get("StatefulPartitionedCall:2").get().getValue();
+            int nOlap = N_OVERLAPPING_FRAMES / 2;
+            for (int b = 0; b < c.length; b++) {
+                int framesPerWindow = c[b].length - 2 * nOlap;
+                int dst = (offset + b) * framesPerWindow;
+                for (int r = 0; r < framesPerWindow; r++) {
+                    System.arraycopy(c[b][nOlap + r], 0, contour, (dst + r) * N_FREQ_BINS_CONTOUR, N_FREQ_BINS_CONTOUR);
+                    System.arraycopy(f[b][nOlap + r], 0, frame, (dst + r) * N_FREQ_BINS_NOTES, N_FREQ_BINS_NOTES);
+                    System.arraycopy(o[b][nOlap + r], 0, onset, (dst + r) * N_FREQ_BINS_NOTES, N_FREQ_BINS_NOTES);
+                }
+            }
+        }
+    }
+
+    /**
+     * The audio input of the model, i.e. a sequence of overlapping windows of AUDIO_N_SAMPLES samples at
+     * AUDIO_SAMPLE_RATE. The windows are not stored but cut from the source audio on demand, including the
+     * conversion to float and the resampling. Windows that exceed the end of the audio are padded with zeros.
+     * As in the original Basic Pitch preprocessing, the first OVERLAP_LENGTH / 2 samples are zeroed.
+     */
+    private static class AudioWindows {
+        private final Waveform audio;
+        private final Resampler resampler;      // null if the audio is already at AUDIO_SAMPLE_RATE
+        private final int length;               // the number of samples at AUDIO_SAMPLE_RATE
+        private final int size;                 // the number of windows
+
+        /**
+         * constructor
+         * @param audio      the mono audio data
+         * @param sampleRate the sample rate of the audio data
+         */
+        private AudioWindows(Waveform audio, int sampleRate) {
+            this.audio = audio;
+            this.resampler = (sampleRate != AUDIO_SAMPLE_RATE) ? new Resampler(sampleRate, AUDIO_SAMPLE_RATE) : null;
+            this.length = (this.resampler != null) ? this.resampler.getOutputLength(audio.size()) : audio.size();
+            this.size = (int) Math.ceil((double) this.length / WINDOW_HOP_SIZE);
+        }
+
+        /**
+         * @return the number of windows
+         */
+        private int size() {
+            return this.size;
+        }
+
+        /**
+         * write the samples of a window to the model input array
+         * @param window the index of the window
+         * @param dst    the model input for one window, shape [AUDIO_N_SAMPLES][1], expected to be filled with 0
+         */
+        private void copyWindow(int window, float[][] dst) {
+            int start = window * WINDOW_HOP_SIZE;
+            int first = Math.max(start, OVERLAP_LENGTH / 2);                // the samples before are zeroed
+            int end = Math.min(start + AUDIO_N_SAMPLES, this.length);       // the samples after are zero padding
+            if (first >= end)
+                return;
+
+            if (this.resampler == null) {
+                for (int i = first; i < end; i++) {
+                    dst[i - start][0] = (float) this.audio.get(i);
+                }
+                return;
+            }
+
+            // convert the source samples that contribute to this window to float and resample them
+            int inFirst = (int) Math.max(0, this.resampler.getInputStart(first));
+            int inEnd = (int) Math.min(this.audio.size(), this.resampler.getInputEnd(end - 1));
+            float[] in = new float[Math.max(0, inEnd - inFirst)];
+            this.audio.get(inFirst, in, 0, in.length);
+            float[] out = new float[end - first];
+            this.resampler.process(in, inFirst, first, out, 0, out.length);
+            for (int i = 0; i < out.length; i++) {
+                dst[first - start + i][0] = out[i];
+            }
+        }
+    }
+
+    /**
+     * Checks that a model output has all three matrices at full size for the given audio. Only such an output may be
+     * cached, and an output from the cache that is not complete must not be used.
+     *
+     * @param output     the model output with keys "contour", "frame" and "onset"
+     * @param audio      the mono audio data
+     * @param sampleRate the sample rate of the audio data
+     * @return true if the output is complete
+     */
+    private static boolean isComplete(Map<String, FloatMatrix> output, Waveform audio, int sampleRate) {
+        int nFrames = new AudioWindows(audio, sampleRate).size() * (ANNOT_N_FRAMES - 2 * (N_OVERLAPPING_FRAMES / 2));
+        return hasShape(output.get("contour"), nFrames, N_FREQ_BINS_CONTOUR)
+                && hasShape(output.get("frame"), nFrames, N_FREQ_BINS_NOTES)
+                && hasShape(output.get("onset"), nFrames, N_FREQ_BINS_NOTES);
+    }
+
+    private static boolean hasShape(FloatMatrix matrix, int rows, int columns) {
+        return (matrix != null) && (matrix.getRows() == rows) && (matrix.getColumns() == columns);
+    }
+
     public class TranscriptionOutput {
         public List<NoteEventWithTime> noteEventWithTimes;
-        public Map<String, float[][]> transcriptionModelOutput;
+        public Map<String, FloatMatrix> transcriptionModelOutput;
     }
 
     /**
@@ -387,11 +677,13 @@ class Transcriber {
      * @param onsetThresh      The onset threshold to be passed to this.modelOutputToNotes
      * @param frameThresh      The frame threshold to be passed to this.modelOutputToNotes
      * @param reuseModelOutput Whether to re-use the raw transcription output if available
+     * @param batchSize        The number of audio windows that are processed in one run of the model
+     * @param numThreads       The number of threads used by the inference runtime
      * @param onLabel          A callback function that is called to display status information
      * @param onProgress       A callback function that is called to update the progress bar
      * @param onDone           A callback function that is called on transcription completion
      */
-    public TranscriptionOutput processWithProgress(double[] audio,
+    public TranscriptionOutput processWithProgress(Waveform audio,
                                                    int sampleRate,
                                                    String audioId,
                                                    int minNoteLen,
@@ -400,6 +692,8 @@ class Transcriber {
                                                    int minPitch,
                                                    int maxPitch,
                                                    boolean reuseModelOutput,
+                                                   int batchSize,
+                                                   int numThreads,
                                                    Function<String, Void> onLabel,
                                                    Function<Double, Void> onProgress,
                                                    Function<Void, Void> onDone) {
@@ -415,58 +709,45 @@ class Transcriber {
         }
 
 
-        float[] _audio = new float[audio.length];
-        for (int i = 0; i < audio.length; i++) {
-            _audio[i] = (float) audio[i];
-        }
-        if (sampleRate != AUDIO_SAMPLE_RATE) {
-            onLabel.apply("resampling audio of " + _audio.length + " frames.");
-            _audio = resample(_audio, sampleRate, AUDIO_SAMPLE_RATE);
-        }
-
-        Map<String, float[][]> transcriptionModelOutput;
+        Map<String, FloatMatrix> transcriptionModelOutput;
         try {
             System.out.println("retrieving transcription results " + audioId + " from cache");
-            transcriptionModelOutput = (Map<String, float[][]>) cache.get(audioId);
+            transcriptionModelOutput = cache.get(audioId);
+            if ((transcriptionModelOutput != null) && !isComplete(transcriptionModelOutput, audio, sampleRate)) {
+                System.out.println("discarding incomplete transcription results");
+                cache.delete(audioId);
+                transcriptionModelOutput = null;
+            }
             if (transcriptionModelOutput != null) {
                 System.out.println("transcription results retrieved");
             } else {
                 System.out.println("transcription results not in cache");
             }
-        } catch (SQLException | IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             transcriptionModelOutput = null;
             e.printStackTrace();
         }
 
         if (transcriptionModelOutput == null || !reuseModelOutput) {
             onProgress.apply(0.);
-            String modelPath = null;
             try {
-                onLabel.apply("initializing model");
-
-                Path destination = Files.createTempFile(Paths.get(""), "model", ".onnx");
-                destination.toFile().deleteOnExit();
-                Files.copy(Main.class.getResourceAsStream("/resources/basic_pitch.onnx"), destination, StandardCopyOption.REPLACE_EXISTING);
-                modelPath = destination.toString();
-
                 onLabel.apply("transcribing audio");
 
-                transcriptionModelOutput = runInference(_audio, modelPath, onLabel, onProgress);
+                transcriptionModelOutput = runInference(audio, sampleRate, batchSize, numThreads, onLabel, onProgress);
+                this.noteIndex = null;      // it may have been built from the previous model output
+                if (!isComplete(transcriptionModelOutput, audio, sampleRate))
+                    throw new IllegalStateException("The transcription model output is incomplete.");
                 try {
                     cache.put(audioId, transcriptionModelOutput);
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
+            } catch (CancellationException e) {
+                onLabel.apply("transcription cancelled");
+                throw e;
             } catch (Exception e) {
                 onLabel.apply(e.toString());
                 throw new RuntimeException(e);
-            } finally {
-                try {
-                    if (modelPath != null) {
-                        Files.deleteIfExists(Paths.get(modelPath));
-                    }
-                } catch (IOException ignored) {
-                }
             }
         } else {
             onProgress.apply(1.);
@@ -477,10 +758,23 @@ class Transcriber {
 
         onLabel.apply("computing note events");
 
-        List<NoteEventWithTime> ns = modelOutputToNotes(transcriptionModelOutput,
-                onsetThresh, frameThresh,
-                true, minNoteLen, midiToFreq(minPitch - 2), midiToFreq(maxPitch + 2), true,
-                onProgress);
+        List<NoteEventWithTime> ns;
+        if (NoteIndex.supports(onsetThresh, frameThresh)) {
+            // the index is reused as long as the model output and the pitch range stay the same, so changing the thresholds is cheap
+            String indexKey = audioId + ":" + minPitch + "-" + maxPitch;
+            NoteIndex index = this.noteIndex;
+            if ((index == null) || !index.key.equals(indexKey)) {
+                index = new NoteIndex(indexKey, transcriptionModelOutput.get("frame"), transcriptionModelOutput.get("onset"),
+                        true, midiToFreq(maxPitch + 2), midiToFreq(minPitch - 2));
+                this.noteIndex = index;
+            }
+            ns = modelOutputToNotes(index, onsetThresh, frameThresh, minNoteLen, true, onProgress);
+        } else {
+            ns = modelOutputToNotes(transcriptionModelOutput,
+                    onsetThresh, frameThresh,
+                    true, minNoteLen, midiToFreq(minPitch - 2), midiToFreq(maxPitch + 2), true,
+                    onProgress);
+        }
 
         // cache.close();
 
@@ -535,7 +829,7 @@ class Transcriber {
         }
     }
 
-    private static class NoteEvent implements Comparable<NoteEvent> {
+    static class NoteEvent implements Comparable<NoteEvent> {
         private int startTime;
         private int endTime;
         private int pitchMidi;
@@ -571,28 +865,15 @@ class Transcriber {
     }
 
 
-    static class PairComparator implements Comparator<AbstractMap.SimpleEntry<Long, Double>> {
-        /**
-         * Compares two pairs of long and double values.
-         *
-         * @param o1 the first pair to compare
-         * @param o2 the second pair to compare
-         * @return a negative integer, zero, or a positive integer as the first pair's value is greater than, equal to,
-         * or less than the second pair's value
-         */
-        @Override
-        public int compare(AbstractMap.SimpleEntry<Long, Double> o1, AbstractMap.SimpleEntry<Long, Double> o2) {
-            return ComparisonChain.start()
-                    .compare(o2.getValue(), o1.getValue())
-                    .result();
-        }
-    }
-
     /**
      * Converts the output of the neural network into a list of notes.
+     * <p>
+     * The activation matrices are flat, row-major arrays with nFreqs columns (time frames x frequency bins). They
+     * are modified, so pass copies if the originals are still needed.
      *
      * @param frames       the frames output by the neural network
      * @param onsets       the onsets output by the neural network
+     * @param nFreqs       the number of frequency bins, i.e. the row length of frames and onsets
      * @param onsetThresh  the threshold for an onset to be considered valid
      * @param frameThresh  the threshold for a frame to be considered valid
      * @param minNoteLen   the minimum length a note must be to be considered valid
@@ -603,51 +884,49 @@ class Transcriber {
      * @param onProgress   a function that is called each time the progress is updated
      * @return a list of notes
      */
-    public static List<NoteEvent> outputToNotesPolyphonic(float[][] frames, float[][] onsets, double onsetThresh,
-                                                          double frameThresh, int minNoteLen, boolean inferOnsets,
-                                                          double maxFreq, double minFreq, boolean melodiaTrick,
-                                                          Function<Double, Void> onProgress) {
+    static List<NoteEvent> outputToNotesPolyphonic(float[] frames, float[] onsets, int nFreqs, double onsetThresh,
+                                                   double frameThresh, int minNoteLen, boolean inferOnsets,
+                                                   double maxFreq, double minFreq, boolean melodiaTrick,
+                                                   Function<Double, Void> onProgress) {
         int energyTol = 11;
         double mnl = minNoteLen / 1000. * (1. * AUDIO_SAMPLE_RATE / FFT_HOP);
-        int nFrames = frames.length;
-        int nFreqs = frames[0].length;
+        int nFrames = frames.length / nFreqs;
 
         // zero out activations above or below the max/min frequencies
         if (maxFreq != -1) {
-            int maxFreqIdx = Math.round(freqToMidi(maxFreq) - MIDI_OFFSET);
+            int maxFreqIdx = Math.max(0, Math.round(freqToMidi(maxFreq) - MIDI_OFFSET));
             for (int i = 0; i < nFrames; i++) {
+                int row = i * nFreqs;
                 for (int j = maxFreqIdx; j < nFreqs; j++) {
-                    onsets[i][j] = 0;
-                    frames[i][j] = 0;
+                    onsets[row + j] = 0;
+                    frames[row + j] = 0;
                 }
             }
         }
         if (minFreq != -1) {
-            int minFreqIdx = Math.round(freqToMidi(minFreq) - MIDI_OFFSET);
+            int minFreqIdx = Math.min(nFreqs, Math.round(freqToMidi(minFreq) - MIDI_OFFSET));
             for (int i = 0; i < nFrames; i++) {
+                int row = i * nFreqs;
                 for (int j = 0; j < minFreqIdx; j++) {
-                    onsets[i][j] = 0;
-                    frames[i][j] = 0;
+                    onsets[row + j] = 0;
+                    frames[row + j] = 0;
                 }
             }
         }
 
         // use onsets inferred from frames in addition to the predicted onsets
         if (inferOnsets) {
-            onsets = getInferedOnsets(onsets, frames);
+            inferOnsets(onsets, frames, nFreqs);
         }
 
-        // get the onsets
-        double[][] remainingEnergy = new double[nFrames][nFreqs];
-        for (int i = 0; i < nFrames; i++) {
-            for (int j = 0; j < nFreqs; j++) {
-                remainingEnergy[i][j] = 0;
-            }
-        }
+        // get the onsets, i.e. the peaks of the onset activations over time
+        float[] remainingEnergy = new float[nFrames * nFreqs];
         for (int i = 1; i < nFrames - 1; i++) {
+            int row = i * nFreqs;
             for (int j = 0; j < nFreqs; j++) {
-                if (onsets[i][j] > onsets[i - 1][j] && onsets[i][j] > onsets[i + 1][j]) {
-                    remainingEnergy[i][j] = onsets[i][j];
+                float o = onsets[row + j];
+                if (o > onsets[row - nFreqs + j] && o > onsets[row + nFreqs + j]) {
+                    remainingEnergy[row + j] = o;
                 }
             }
         }
@@ -656,7 +935,7 @@ class Transcriber {
         List<NoteEvent> notes = new ArrayList<>();
         for (int i = 0; i < nFrames; i++) {
             for (int j = 0; j < nFreqs; j++) {
-                if (remainingEnergy[i][j] >= onsetThresh) {
+                if (remainingEnergy[i * nFreqs + j] >= onsetThresh) {
                     // if we're too close to the end of the audio, continue
                     if (i >= nFrames - 1) {
                         continue;
@@ -666,7 +945,7 @@ class Transcriber {
                     int k = i + 1;
                     int l = 0; // number of frames since energy dropped below threshold
                     while (k < nFrames - 1 && l < energyTol) {
-                        if (frames[k][j] < frameThresh) {
+                        if (frames[k * nFreqs + j] < frameThresh) {
                             l++;
                         } else {
                             l = 0;
@@ -684,193 +963,491 @@ class Transcriber {
                     // add the note
                     double amplitude = 0;
                     for (int m = i; m < k; m++) {
-                        amplitude += frames[m][j];
+                        amplitude += frames[m * nFreqs + j];
                     }
                     amplitude /= (k - i);
                     notes.add(new NoteEvent(i, k, j + MIDI_OFFSET, amplitude));
 
                     // clear the activations of the extracted note
                     for (int m = k; m >= i; m--) {
-                        remainingEnergy[m][j] = 0;
-                        if (j > 0) remainingEnergy[m][j - 1] = 0;
-                        if (j < nFreqs - 1) remainingEnergy[m][j + 1] = 0;
+                        int idx = m * nFreqs + j;
+                        remainingEnergy[idx] = 0;
+                        if (j > 0) remainingEnergy[idx - 1] = 0;
+                        if (j < nFreqs - 1) remainingEnergy[idx + 1] = 0;
                     }
                 }
             }
             if (onProgress != null) onProgress.apply(1. * i / nFrames);
         }
 
-        int maxFreqIdx = Math.round(freqToMidi(maxFreq) - MIDI_OFFSET);
-
         if (melodiaTrick) {
-
             Stopwatch stopwatch = Stopwatch.createStarted();
+            int count = 0;
+            for (float e : remainingEnergy) {
+                if (e > frameThresh) {
+                    count++;
+                }
+            }
+            int[] candidates = new int[count];
+            float[] energies = new float[count];
+            count = 0;
+            for (int idx = 0; idx < remainingEnergy.length; idx++) {
+                if (remainingEnergy[idx] > frameThresh) {
+                    candidates[count] = idx;
+                    energies[count++] = remainingEnergy[idx];
+                }
+            }
+            int maxFreqIdx = Math.round(freqToMidi(maxFreq) - MIDI_OFFSET);
+            new Melodia(candidates, energies, (frame, freqIdx) -> frames[frame * nFreqs + freqIdx], nFrames, nFreqs, energyTol, mnl, maxFreqIdx).extractNotes(notes);
+            System.out.println(stopwatch.elapsed(TimeUnit.SECONDS) + "s for melodia");
+        }
+
+        Collections.sort(notes);
+
+        return notes;
+    }
 
-            double[] _reflat = Stream.of(remainingEnergy)
-                    .flatMapToDouble(DoubleStream::of)
-                    .toArray();
-            int[] _sortedIdxs = IntStream.range(0, _reflat.length)
-                    .boxed().sorted(Comparator.comparingDouble(i -> -_reflat[i]))
-                    .mapToInt(ele -> ele).toArray();
-            double[] _sortedVals = Arrays.stream(_reflat).boxed()
-                    .sorted(Collections.reverseOrder())
-                    .mapToDouble(Double::doubleValue)
-                    .toArray();
-            Map<Long, Double> frameActivations = Maps.newHashMap();
-            TreeSet<AbstractMap.SimpleEntry<Long, Double>> treeSet = new TreeSet<>(new PairComparator());
-            for (int i = 0; i < _sortedVals.length; i++) {
-                long k = _sortedIdxs[i];
-                double v = _sortedVals[i];
-                if (v > frameThresh) {
-                    treeSet.add(new AbstractMap.SimpleEntry<>(k, v));
-                    frameActivations.put(k, v);
+    /**
+     * The melodia step of the note extraction. It repeatedly takes the strongest remaining onset peak above the frame
+     * threshold, follows its pitch forward and backward in time as long as there are activations, and removes these
+     * activations (and those of the neighbouring pitches) from the candidates.
+     * <p>
+     * The candidates are ordered by their energy. Candidates of equal energy are treated as one, of which the
+     * candidate with the lowest index is the one to be picked, and removing any candidate removes the candidate
+     * of its energy. Since candidates are only ever removed, one sorted array of the distinct energies with a removal
+     * flag per energy replaces a priority queue. The pending candidates are tracked in a bit set.
+     */
+    private static class Melodia {
+        private final Activations frames;
+        private final int nFrames;
+        private final int nFreqs;
+        private final int energyTol;
+        private final double mnl;
+        private final int maxFreqIdx;
+
+        private final int[] candidates;     // the candidate indices in ascending order
+        private final float[] energies;     // the energy of each candidate
+        private final BitSet pending;       // the candidate indices not yet processed
+        private final float[] levels;       // the distinct candidate energies in descending order
+        private final int[] representatives;// for each level, the lowest candidate index with that energy
+        private final BitSet removed;       // the levels that have been removed
+
+        /**
+         * constructor
+         * @param candidates      the flat, row-major indices of the remaining onset peaks above the frame threshold, in ascending order
+         * @param energies        the remaining onset energy of each candidate
+         * @param frames          the frame activations
+         * @param nFrames
+         * @param nFreqs
+         * @param energyTol       the number of frames below threshold that end a note
+         * @param mnl             the minimum note length in frames
+         * @param maxFreqIdx      the highest frequency bin whose upper neighbour gets removed
+         */
+        private Melodia(int[] candidates, float[] energies, Activations frames, int nFrames, int nFreqs, int energyTol, double mnl, int maxFreqIdx) {
+            this.frames = frames;
+            this.nFrames = nFrames;
+            this.nFreqs = nFreqs;
+            this.energyTol = energyTol;
+            this.mnl = mnl;
+            this.maxFreqIdx = maxFreqIdx;
+            this.candidates = candidates;
+            this.energies = energies;
+            this.pending = new BitSet(nFrames * nFreqs);
+
+            // the candidates as sortable keys: energy in the upper 32 bits, the complement of the index in the lower
+            int count = candidates.length;
+            long[] keys = new long[count];
+            for (int c = 0; c < count; c++) {
+                keys[c] = ((long) sortableBits(energies[c]) << 32) | (Integer.MAX_VALUE - candidates[c]);
+                this.pending.set(candidates[c]);
+            }
+            Arrays.sort(keys);
+
+            // in descending order, the first key of each energy level has the lowest index
+            float[] levels = new float[count];
+            int[] representatives = new int[count];
+            int nLevels = 0;
+            for (int k = count - 1; k >= 0; k--) {
+                int idx = Integer.MAX_VALUE - (int) keys[k];
+                float e = energies[Arrays.binarySearch(candidates, idx)];
+                if ((nLevels == 0) || (Float.compare(levels[nLevels - 1], e) != 0)) {
+                    levels[nLevels] = e;
+                    representatives[nLevels] = idx;
+                    nLevels++;
                 }
             }
+            this.levels = Arrays.copyOf(levels, nLevels);
+            this.representatives = Arrays.copyOf(representatives, nLevels);
+            this.removed = new BitSet(nLevels);
+        }
 
-            System.out.println("got " + treeSet.size() + " elements, first is " + treeSet.first());
+        /**
+         * map a float to an int so that the int order equals Float.compare() order
+         * @param value
+         * @return
+         */
+        private static int sortableBits(float value) {
+            int bits = Float.floatToIntBits(value);
+            return bits ^ ((bits >> 31) & 0x7fffffff);
+        }
 
-            while (!treeSet.isEmpty()) {
+        /**
+         * run the melodia step
+         * @param notes the extracted notes are added to this list
+         */
+        private void extractNotes(List<NoteEvent> notes) {
+            System.out.println("got " + this.levels.length + " elements, first is " + ((this.levels.length > 0) ? (this.representatives[0] + "=" + this.levels[0]) : "none"));
 
-                AbstractMap.SimpleEntry<Long, Double> max = treeSet.pollFirst();
-                long idx = max.getKey();
-                frameActivations.remove(idx);
+            for (int level = this.removed.nextClearBit(0); level < this.levels.length; level = this.removed.nextClearBit(level + 1)) {
+                this.removed.set(level);
+                int idx = this.representatives[level];
+                this.pending.clear(idx);
 
-                int i_mid = (int) (idx / nFreqs);
-                int freqIdx = (int) (idx % nFreqs);
+                int i_mid = idx / this.nFreqs;
+                int freqIdx = idx % this.nFreqs;
 
                 // forward pass
-                long i = i_mid + 1;
+                int i = i_mid + 1;
                 int k = 0;
-
-                while (i < nFrames - 1 && k < energyTol) {
-
-                    long newIdx = i * nFreqs + freqIdx;
-                    if (!frameActivations.containsKey(newIdx)) {
+                while (i < this.nFrames - 1 && k < this.energyTol) {
+                    if (!this.pending.get(i * this.nFreqs + freqIdx)) {
                         k++;
                     } else {
                         k = 0;
                     }
-
-                    remove(i, freqIdx, treeSet, frameActivations, nFreqs);
-
-                    if (freqIdx < maxFreqIdx) {
-                        remove(i, freqIdx + 1, treeSet, frameActivations, nFreqs);
-                    }
-                    if (freqIdx > 0) {
-                        remove(i, freqIdx - 1, treeSet, frameActivations, nFreqs);
-                    }
-
+                    this.removeNeighbourhood(i, freqIdx);
                     i++;
                 }
-
-                long iEnd = i - 1 - k; // go back to frame above threshold
+                int iEnd = i - 1 - k; // go back to frame above threshold
 
                 // backward pass
-                long j = i_mid - 1;
+                int j = i_mid - 1;
                 k = 0;
-
-                while (j > 0 && k < energyTol) {
-
-                    long newIdx = j * nFreqs + freqIdx;
-                    if (!frameActivations.containsKey(newIdx)) {
+                while (j > 0 && k < this.energyTol) {
+                    if (!this.pending.get(j * this.nFreqs + freqIdx)) {
                         k++;
                     } else {
                         k = 0;
                     }
-
-                    remove(j, freqIdx, treeSet, frameActivations, nFreqs);
-
-                    if (freqIdx < maxFreqIdx) {
-                        remove(j, freqIdx + 1, treeSet, frameActivations, nFreqs);
-                    }
-                    if (freqIdx > 0) {
-                        remove(j, freqIdx - 1, treeSet, frameActivations, nFreqs);
-                    }
-
+                    this.removeNeighbourhood(j, freqIdx);
                     j--;
                 }
-
-                long iStart = j + 1 + k; // go back to frame above threshold
+                int iStart = j + 1 + k; // go back to frame above threshold
                 assert iStart >= 0;
-                assert iEnd < nFrames;
+                assert iEnd < this.nFrames;
 
-                if (iEnd - iStart <= mnl) {
+                if (iEnd - iStart <= this.mnl) {
                     // note is too short, skip it
                     continue;
                 }
 
                 // add the note
                 double amplitude = 0;
-                for (int frm = (int) iStart; frm < iEnd; frm++) {
-                    amplitude += frames[frm][freqIdx];
+                for (int frm = iStart; frm < iEnd; frm++) {
+                    amplitude += this.frames.get(frm, freqIdx);
                 }
                 amplitude = amplitude / (iEnd - iStart);
 
-                NoteEvent note = new NoteEvent((int) iStart, (int) iEnd, freqIdx + MIDI_OFFSET, amplitude);
-
-                notes.add(note);
+                notes.add(new NoteEvent(iStart, iEnd, freqIdx + MIDI_OFFSET, amplitude));
             }
+        }
 
-            System.out.println(stopwatch.elapsed(TimeUnit.SECONDS) + "s for melodia");
+        /**
+         * remove the candidates at the given frame and frequency bin and its neighbouring bins
+         * @param frame
+         * @param freqIdx
+         */
+        private void removeNeighbourhood(int frame, int freqIdx) {
+            int idx = frame * this.nFreqs + freqIdx;
+            this.remove(idx);
+            if (freqIdx < this.maxFreqIdx) {
+                this.remove(idx + 1);
+            }
+            if (freqIdx > 0) {
+                this.remove(idx - 1);
+            }
         }
 
-        Collections.sort(notes);
+        /**
+         * remove a candidate, this removes its energy level and, hence, all other candidates of the same energy from the selection
+         * @param idx
+         */
+        private void remove(int idx) {
+            float e = 0f;
+            if (this.pending.get(idx)) {
+                e = this.energies[Arrays.binarySearch(this.candidates, idx)];
+                this.pending.clear(idx);
+            }
 
-        return notes;
+            // binary search for the level in the descending array
+            int lo = 0;
+            int hi = this.levels.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = Float.compare(this.levels[mid], e);
+                if (c > 0) {
+                    lo = mid + 1;
+                } else if (c < 0) {
+                    hi = mid - 1;
+                } else {
+                    this.removed.set(mid);
+                    return;
+                }
+            }
+        }
     }
 
-    private static void remove(long i, long freqIdx, TreeSet<AbstractMap.SimpleEntry<Long, Double>> treeSet, Map<Long, Double> kv, int nFreqs) {
-        long newIdx = i * nFreqs + freqIdx;
-        double newVal = kv.getOrDefault(newIdx, 0d);
-
-        treeSet.remove(new AbstractMap.SimpleEntry<>(newIdx, newVal));
-        kv.remove(newIdx);
+    /**
+     * read access to an activation matrix
+     */
+    private interface Activations {
+        float get(int frame, int freqIdx);
     }
 
     /**
-     * Calculates the inferred onsets of a given set of onsets and frames.
-     *
-     * @param onsets the onsets to infer
-     * @param frames the frames to use for inference
-     * @return the inferred onsets
+     * An index of the note candidates in the model output, so the notes can be extracted again with other thresholds
+     * without redoing all the work. Building the index does the part of outputToNotesPolyphonic() that does not
+     * depend on the thresholds: the frequency clipping, the onset inference and the peak picking. It keeps the onset
+     * peaks sorted by frame and pitch, and per pitch sorted by frame, together with the frame activations stored
+     * pitch by pitch, so following a note through time reads contiguous memory. Note extraction visits only the peaks
+     * above the onset threshold instead of the whole activation matrices, and it gives the same notes as
+     * outputToNotesPolyphonic() for the same thresholds.
+     * <p>
+     * Activations of 0 are not indexed. So the index cannot be used with an onset threshold of 0 or less, or with a
+     * negative frame threshold.
      */
-    private static float[][] getInferedOnsets(float[][] onsets, float[][] frames) {
-        int nFrames = frames.length;
-        int nFreqs = frames[0].length;
+    static class NoteIndex {
+        private final String key;               // identifies the model output and frequency range the index was built from
+        private final int nFrames;
+        private final int nFreqs;
+        private final double maxFreq;
+        private final float[][] framesByPitch;  // framesByPitch[pitch][frame], null for pitches outside the frequency range
+        private final int[] peaks;              // the flat, row-major indices of the onset peaks in ascending order
+        private final float[] peakEnergies;     // the onset energy of each peak
+        private final int[][] peaksByPitch;     // for each pitch, the positions of its peaks in peaks, i.e. ascending by frame
 
-        float[][] maxOnsetsDiff = new float[nFrames][nFreqs];
-        for (int i = 0; i < nFrames; i++) {
-            for (int j = 0; j < nFreqs; j++) {
-                maxOnsetsDiff[i][j] = 0;
+        /**
+         * constructor
+         * @param key         identifies the model output and frequency range
+         * @param frameMatrix the frame activations
+         * @param onsetMatrix the onset activations
+         * @param inferOnsets whether or not to infer onsets from the frames
+         * @param maxFreq     the maximum frequency of a note or -1
+         * @param minFreq     the minimum frequency of a note or -1
+         */
+        NoteIndex(String key, FloatMatrix frameMatrix, FloatMatrix onsetMatrix, boolean inferOnsets, double maxFreq, double minFreq) {
+            this.key = key;
+            this.nFrames = frameMatrix.getRows();
+            this.nFreqs = frameMatrix.getColumns();
+            this.maxFreq = maxFreq;
+
+            // the pitches outside of this range are zeroed out by outputToNotesPolyphonic()
+            int fromFreqIdx = (minFreq != -1) ? Math.max(0, Math.min(this.nFreqs, Math.round(freqToMidi(minFreq) - MIDI_OFFSET))) : 0;
+            int toFreqIdx = (maxFreq != -1) ? Math.min(this.nFreqs, Math.max(0, Math.round(freqToMidi(maxFreq) - MIDI_OFFSET))) : this.nFreqs;
+
+            // transpose the activations
+            this.framesByPitch = new float[this.nFreqs][];
+            float[][] onsetsByPitch = new float[this.nFreqs][];
+            for (int j = fromFreqIdx; j < toFreqIdx; j++) {
+                this.framesByPitch[j] = new float[this.nFrames];
+                onsetsByPitch[j] = new float[this.nFrames];
+            }
+            for (int i = 0; i < this.nFrames; i++) {
+                for (int j = fromFreqIdx; j < toFreqIdx; j++) {
+                    this.framesByPitch[j][i] = frameMatrix.get(i, j);
+                    onsetsByPitch[j][i] = onsetMatrix.get(i, j);
+                }
             }
-        }
 
-        float[][] diffs = new float[2][nFrames * nFreqs];
-        for (int i = 0; i < 2; i++) {
-            for (int j = 0; j < nFrames * nFreqs; j++) {
-                diffs[i][j] = 0;
+            // infer onsets and pick the peaks, the keys hold the index in the upper and the energy in the lower 32 bits
+            long[] keys = new long[16];
+            int count = 0;
+            for (int j = fromFreqIdx; j < toFreqIdx; j++) {
+                float[] frames = this.framesByPitch[j];
+                float[] onsets = onsetsByPitch[j];
+                if (inferOnsets) {
+                    for (int i = 0; i < this.nFrames; i++) {
+                        float next = (i + 1 < this.nFrames) ? frames[i + 1] : 0f;
+                        onsets[i] = Math.max(onsets[i], frames[i] - next);
+                    }
+                }
+                for (int i = 1; i < this.nFrames - 1; i++) {
+                    float o = onsets[i];
+                    if (o > onsets[i - 1] && o > onsets[i + 1]) {
+                        if (count == keys.length) {
+                            keys = Arrays.copyOf(keys, 2 * count);
+                        }
+                        keys[count++] = ((long) (i * this.nFreqs + j) << 32) | (Float.floatToRawIntBits(o) & 0xffffffffL);
+                    }
+                }
+                onsetsByPitch[j] = null;
+            }
+            Arrays.sort(keys, 0, count);
+
+            this.peaks = new int[count];
+            this.peakEnergies = new float[count];
+            int[] peaksPerPitch = new int[this.nFreqs];
+            for (int p = 0; p < count; p++) {
+                this.peaks[p] = (int) (keys[p] >>> 32);
+                this.peakEnergies[p] = Float.intBitsToFloat((int) keys[p]);
+                peaksPerPitch[this.peaks[p] % this.nFreqs]++;
+            }
+            this.peaksByPitch = new int[this.nFreqs][];
+            for (int j = 0; j < this.nFreqs; j++) {
+                this.peaksByPitch[j] = new int[peaksPerPitch[j]];
+                peaksPerPitch[j] = 0;
+            }
+            for (int p = 0; p < count; p++) {
+                int j = this.peaks[p] % this.nFreqs;
+                this.peaksByPitch[j][peaksPerPitch[j]++] = p;
             }
         }
 
-        for (int i = 0; i < nFrames; i++) {
-            System.arraycopy(frames[i], 0, diffs[0], i * nFreqs, nFreqs);
+        /**
+         * whether the index can be used with these thresholds
+         * @param onsetThresh
+         * @param frameThresh
+         * @return
+         */
+        static boolean supports(double onsetThresh, double frameThresh) {
+            return (onsetThresh > 0) && (frameThresh >= 0);
         }
 
-        for (int i = 0; i < nFrames - 1; i++) {
-            System.arraycopy(frames[i + 1], 0, diffs[1], i * nFreqs, nFreqs);
+        private float frame(int frame, int freqIdx) {
+            float[] frames = this.framesByPitch[freqIdx];
+            return (frames == null) ? 0f : frames[frame];
         }
 
-        for (int i = 0; i < nFrames; i++) {
-            for (int j = 0; j < nFreqs; j++) {
-                maxOnsetsDiff[i][j] = Math.max(onsets[i][j], diffs[0][i * nFreqs + j] - diffs[1][i * nFreqs + j]);
+        /**
+         * Extracts the notes, see outputToNotesPolyphonic().
+         * @param onsetThresh  the threshold for an onset to be considered valid, must be greater than 0
+         * @param frameThresh  the threshold for a frame to be considered valid, must not be negative
+         * @param minNoteLen   the minimum length a note must be to be considered valid
+         * @param melodiaTrick whether or not to use the Melodia trick to improve onset detection
+         * @param onProgress   a function that is called each time the progress is updated
+         * @return a list of notes
+         */
+        List<NoteEvent> extractNotes(double onsetThresh, double frameThresh, int minNoteLen, boolean melodiaTrick, Function<Double, Void> onProgress) {
+            if (!supports(onsetThresh, frameThresh)) {
+                throw new IllegalArgumentException("The note index does not support an onset threshold of " + onsetThresh + " and a frame threshold of " + frameThresh + ".");
             }
+
+            int energyTol = 11;
+            double mnl = minNoteLen / 1000. * (1. * AUDIO_SAMPLE_RATE / FFT_HOP);
+            boolean[] cleared = new boolean[this.peaks.length];     // the peaks that have been cleared by an extracted note
+
+            // get the notes
+            List<NoteEvent> notes = new ArrayList<>();
+            for (int p = 0; p < this.peaks.length; p++) {
+                if (cleared[p] || (this.peakEnergies[p] < onsetThresh)) {
+                    continue;
+                }
+                int i = this.peaks[p] / this.nFreqs;
+                int j = this.peaks[p] % this.nFreqs;
+                float[] frames = this.framesByPitch[j];     // not null, there are no peaks outside the frequency range
+
+                // find time index at this frequency band where the frames drop below an energy threshold
+                int k = i + 1;
+                int l = 0; // number of frames since energy dropped below threshold
+                while (k < this.nFrames - 1 && l < energyTol) {
+                    if (frames[k] < frameThresh) {
+                        l++;
+                    } else {
+                        l = 0;
+                    }
+                    k++;
+                }
+
+                k -= l; // go back to frame above threshold
+
+                // if the note is too short, skip it
+                if (k - i <= mnl) {
+                    continue;
+                }
+
+                // add the note
+                double amplitude = 0;
+                for (int m = i; m < k; m++) {
+                    amplitude += frames[m];
+                }
+                amplitude /= (k - i);
+                notes.add(new NoteEvent(i, k, j + MIDI_OFFSET, amplitude));
+
+                // clear the peaks of the extracted note
+                this.clear(cleared, j, i, k);
+                if (j > 0) this.clear(cleared, j - 1, i, k);
+                if (j < this.nFreqs - 1) this.clear(cleared, j + 1, i, k);
+
+                if ((onProgress != null) && ((notes.size() & 0xff) == 0)) onProgress.apply(1. * i / this.nFrames);
+            }
+            if (onProgress != null) onProgress.apply(1.);
+
+            if (melodiaTrick) {
+                Stopwatch stopwatch = Stopwatch.createStarted();
+                int count = 0;
+                for (int p = 0; p < this.peaks.length; p++) {
+                    if (!cleared[p] && (this.peakEnergies[p] > frameThresh)) {
+                        count++;
+                    }
+                }
+                int[] candidates = new int[count];
+                float[] energies = new float[count];
+                count = 0;
+                for (int p = 0; p < this.peaks.length; p++) {
+                    if (!cleared[p] && (this.peakEnergies[p] > frameThresh)) {
+                        candidates[count] = this.peaks[p];
+                        energies[count++] = this.peakEnergies[p];
+                    }
+                }
+                int maxFreqIdx = Math.round(freqToMidi(this.maxFreq) - MIDI_OFFSET);
+                new Melodia(candidates, energies, this::frame, this.nFrames, this.nFreqs, energyTol, mnl, maxFreqIdx).extractNotes(notes);
+                System.out.println(stopwatch.elapsed(TimeUnit.SECONDS) + "s for melodia");
+            }
+
+            Collections.sort(notes);
+
+            return notes;
         }
 
-        return maxOnsetsDiff;
+        /**
+         * mark the peaks of a pitch within a frame range as cleared
+         * @param cleared
+         * @param freqIdx
+         * @param from    the first frame
+         * @param to      the last frame (inclusive)
+         */
+        private void clear(boolean[] cleared, int freqIdx, int from, int to) {
+            int[] positions = this.peaksByPitch[freqIdx];
+            int lo = 0;
+            int hi = positions.length;
+            while (lo < hi) {   // the first peak at or after frame from
+                int mid = (lo + hi) >>> 1;
+                if (this.peaks[positions[mid]] / this.nFreqs < from) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            for (int q = lo; (q < positions.length) && (this.peaks[positions[q]] / this.nFreqs <= to); q++) {
+                cleared[positions[q]] = true;
+            }
+        }
     }
 
-    private static float[][] deepCopy(float[][] matrix) {
-        return java.util.Arrays.stream(matrix).map(el -> el.clone()).toArray($ -> matrix.clone());
+    /**
+     * Combines the onsets with onsets inferred from the frames, i.e. the decrease of the frame activation to the
+     * next frame. The result is written to the onsets array.
+     *
+     * @param onsets the onsets, flat and row-major
+     * @param frames the frames, flat and row-major
+     * @param nFreqs the number of frequency bins
+     */
+    private static void inferOnsets(float[] onsets, float[] frames, int nFreqs) {
+        int n = frames.length;
+        for (int idx = 0; idx < n; idx++) {
+            float next = (idx + nFreqs < n) ? frames[idx + nFreqs] : 0f;
+            onsets[idx] = Math.max(onsets[idx], frames[idx] - next);
+        }
     }
 
     /**
@@ -888,7 +1465,7 @@ class Transcriber {
      * @return a list of notes with timestamps
      */
     private static List<NoteEventWithTime> modelOutputToNotes(
-            Map<String, float[][]> output,
+            Map<String, FloatMatrix> output,
             double onsetThresh,
             double frameThresh,
             boolean inferOnsets,
@@ -898,12 +1475,14 @@ class Transcriber {
             boolean melodiaTrick,
             Function<Double, Void> onProgress) {
 
-        float[][] frames = deepCopy(output.get("frame"));
-        float[][] onsets = deepCopy(output.get("onset"));
+        FloatMatrix frameMatrix = output.get("frame");
+        float[] frames = frameMatrix.toFlatArray();    // copies, the activations are modified during note extraction
+        float[] onsets = output.get("onset").toFlatArray();
 
         List<NoteEvent> estimatedNotes = outputToNotesPolyphonic(
                 frames,
                 onsets,
+                frameMatrix.getColumns(),
                 onsetThresh,
                 frameThresh,
                 minNoteLen,
@@ -913,7 +1492,40 @@ class Transcriber {
                 melodiaTrick,
                 onProgress);
 
-        double[] times = modelFramesToTime(frames.length);
+        return withTimes(estimatedNotes, frameMatrix.getRows());
+    }
+
+    /**
+     * Converts model output to a list of notes with timestamps, using a note index of the model output.
+     *
+     * @param index        the note index
+     * @param onsetThresh  the onset threshold, must be greater than 0
+     * @param frameThresh  the frame threshold, must not be negative
+     * @param minNoteLen   the minimum length of a note
+     * @param melodiaTrick whether to use the Melodia trick
+     * @param onProgress   a function to call on progress updates
+     * @return a list of notes with timestamps
+     */
+    private static List<NoteEventWithTime> modelOutputToNotes(
+            NoteIndex index,
+            double onsetThresh,
+            double frameThresh,
+            int minNoteLen,
+            boolean melodiaTrick,
+            Function<Double, Void> onProgress) {
+        List<NoteEvent> estimatedNotes = index.extractNotes(onsetThresh, frameThresh, minNoteLen, melodiaTrick, onProgress);
+        return withTimes(estimatedNotes, index.nFrames);
+    }
+
+    /**
+     * Converts notes with frame indices to notes with timestamps.
+     *
+     * @param estimatedNotes the notes
+     * @param nFrames        the number of model frames
+     * @return a list of notes with timestamps
+     */
+    private static List<NoteEventWithTime> withTimes(List<NoteEvent> estimatedNotes, int nFrames) {
+        double[] times = modelFramesToTime(nFrames);
         List<NoteEventWithTime> estimatedNotesTimeSeconds = new ArrayList<>();
         for (NoteEvent note : estimatedNotes) {
             estimatedNotesTimeSeconds.add(
@@ -946,4 +1558,36 @@ class Transcriber {
         return originalTimes;
     }
 
-}
\ No newline at end of file
+
+    /**
+     * An inference session and the number of inferences that use it, it must not be released while they run.
+     * The fields are accessed under the transcriber's lock.
+     */
+    private static class Session {
+        private final OrtSession ortSession;
+        private final int threads;      // the number of threads the session was created with
+        private int users = 0;          // the number of running inferences
+        private boolean closed = false; // true if the session is to be released when the last inference is done
+
+        /**
+         * constructor
+         * @param ortSession
+         * @param threads
+         */
+        private Session(OrtSession ortSession, int threads) {
+            this.ortSession = ortSession;
+            this.threads = threads;
+        }
+
+        /**
+         * release the native resources of the session
+         */
+        private void release() {
+            try {
+                this.ortSession.close();
+            } catch (OrtException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -10,25 +10,30 @@ import com.tagtraum.jipes.math.WindowFunction;
 import com.tagtraum.jipes.universal.Mapping;
 import meico.mei.Helper;
 import meico.msm.Msm;
-import meico.supplementary.KeyValue;
 import mpmToolbox.projectData.alignment.Alignment;
+import mpmToolbox.gui.Settings;
 import mpmToolbox.projectData.alignment.Note;
 import mpmToolbox.supplementary.Tools;
 import nu.xom.Attribute;
 import nu.xom.Element;
 
 import javax.imageio.ImageIO;
+import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.UnsupportedAudioFileException;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.SoftReference;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Map;
+import java.util.stream.IntStream;
 
 /**
  * This class represents audio data in an MPM Toolbox project. It extends meico's Audio class and adds some more
@@ -36,11 +41,14 @@ import java.util.Map;
  * @author Axel Berndt
  */
 public class Audio extends meico.audio.Audio {
-    protected final ArrayList<double[]> waveforms;                      // contains the waveform data for each audio channel as doubles in [-1.0, 1.0]
-    protected final ArrayList<PeakList> peakList = new ArrayList<>();   // for each channel, the list of minima and maxima in the waveform is used to accelerate waveform image rendering
+    protected final ArrayList<Waveform> waveforms;                      // contains the waveform data for each audio channel, values in [-1.0, 1.0]
+    protected final ArrayList<WaveformPyramid> pyramids = new ArrayList<>();    // for each channel, a pyramid of minima and maxima in the waveform is used to accelerate waveform image rendering
     private WaveformImage waveformImage = null;                         // the waveform image of this audio data
+    private final WaveformTileCache waveformTiles = new WaveformTileCache(this);    // the tiles that the waveform image is composed of
     private SpectrogramImage spectrogramImage = null;                   // the visualization of the above spectrogram
     private Alignment alignment;                                        // audio to MSM alignment
+    private MappedPcm mappedPcm = null;                                 // the memory-mapped audio data, if any; then the waveforms read from there and the superclass holds no audio data
+    private SoftReference<meico.audio.Audio> playbackAudio = new SoftReference<>(null); // meico's AudioPlayer needs the audio data in the heap, this copy is made from the memory mapping for playback and freed when memory gets short
 
     /**
      * constructor; use this one to load and decode MP3 files
@@ -53,9 +61,9 @@ public class Audio extends meico.audio.Audio {
     public Audio(File file, Msm msm) throws IOException, UnsupportedAudioFileException {
         super(file);
 
-        this.waveforms = convertByteArray2DoubleArray(this.getAudio(), this.getFormat());
-        for (double[] chan : this.waveforms)
-            this.peakList.add(new PeakList(chan));
+        this.waveforms = createWaveforms(this.getAudio(), this.getFormat());
+        for (Waveform chan : this.waveforms)
+            this.pyramids.add(new WaveformPyramid(chan));
 
         this.initAlignment(msm);
     }
@@ -69,9 +77,9 @@ public class Audio extends meico.audio.Audio {
     public Audio(AudioInputStream inputStream, Msm msm) throws InvalidDataException {
         super(inputStream);
 
-        this.waveforms = convertByteArray2DoubleArray(this.getAudio(), this.getFormat());
-        for (double[] chan : this.waveforms)
-            this.peakList.add(new PeakList(chan));
+        this.waveforms = createWaveforms(this.getAudio(), this.getFormat());
+        for (Waveform chan : this.waveforms)
+            this.pyramids.add(new WaveformPyramid(chan));
 
         this.initAlignment(msm);
     }
@@ -88,10 +96,106 @@ public class Audio extends meico.audio.Audio {
         super(new File(Tools.uniformPath(projectBasePath + projectAudioData.getAttributeValue("file"))));
 
         // initialize waveform visualization
-        this.waveforms = convertByteArray2DoubleArray(this.getAudio(), this.getFormat());
-        for (double[] chan : this.waveforms)
-            this.peakList.add(new PeakList(chan));
+        this.waveforms = createWaveforms(this.getAudio(), this.getFormat());
+        for (Waveform chan : this.waveforms)
+            this.pyramids.add(new WaveformPyramid(chan));
 
+        this.initProjectData(projectAudioData, projectBasePath, msm);
+    }
+
+    /**
+     * constructor; the audio data is read from a memory mapping, the superclass gets only its format
+     * @param mappedPcm
+     * @param file the audio file
+     * @throws InvalidDataException
+     */
+    private Audio(MappedPcm mappedPcm, File file) throws InvalidDataException {
+        super(new AudioInputStream(new ByteArrayInputStream(new byte[0]), mappedPcm.getFormat(), 0));
+        this.setFile(file);
+        this.mappedPcm = mappedPcm;
+
+        // initialize waveform visualization
+        this.waveforms = mappedPcm.getWaveforms();
+        for (Waveform chan : this.waveforms)
+            this.pyramids.add(new WaveformPyramid(chan));
+    }
+
+    /**
+     * Load an audio file. If memory mapping is switched on in the settings (Settings.memoryMappedAudio), the audio data
+     * is memory-mapped, see MappedPcm: WAV files directly, other files (e.g. MP3) are decoded into a PcmCache first,
+     * unless there is an up-to-date one. Otherwise, or if mapping fails, the audio file is decoded into the heap.
+     * @param file
+     * @param msm the Msm instance to be aligned with this Audio object
+     * @return
+     * @throws IOException
+     * @throws UnsupportedAudioFileException
+     */
+    public static Audio fromFile(File file, Msm msm) throws IOException, UnsupportedAudioFileException {
+        Audio audio = Audio.fromMappedPcm(file);
+        if (audio == null)
+            return new Audio(file, msm);
+
+        audio.initAlignment(msm);
+        return audio;
+    }
+
+    /**
+     * Load the audio data of an MPM Toolbox project, it is memory-mapped as in fromFile().
+     * @param projectAudioData
+     * @param projectBasePath
+     * @param msm
+     * @return
+     * @throws IOException
+     * @throws UnsupportedAudioFileException
+     */
+    public static Audio fromProject(Element projectAudioData, String projectBasePath, Msm msm) throws IOException, UnsupportedAudioFileException {
+        File file = new File(Tools.uniformPath(projectBasePath + projectAudioData.getAttributeValue("file")));
+
+        Audio audio = Audio.fromMappedPcm(file);
+        if (audio == null)
+            return new Audio(projectAudioData, projectBasePath, msm);
+
+        audio.initProjectData(projectAudioData, projectBasePath, msm);
+        return audio;
+    }
+
+    /**
+     * memory-map the audio data of an audio file, see fromFile()
+     * @param file
+     * @return the Audio object without alignment data or null if the audio data cannot be mapped
+     */
+    private static Audio fromMappedPcm(File file) {
+        if (!Settings.memoryMappedAudio)
+            return null;
+
+        MappedPcm mappedPcm = PcmCache.isWav(file) ? MappedPcm.openWav(file) : PcmCache.open(file);
+        if ((mappedPcm == null) && PcmCache.isUseful(file)) {   // decode the audio file into the cache, the decoded data in the heap is garbage after that
+            try {
+                meico.audio.Audio decoded = new meico.audio.Audio(file);
+                if (PcmCache.write(file, decoded.getAudio(), decoded.getFormat()))
+                    mappedPcm = PcmCache.open(file);
+            } catch (IOException | UnsupportedAudioFileException e) {
+                e.printStackTrace();
+            }
+        }
+        if (mappedPcm == null)
+            return null;
+
+        try {
+            return new Audio(mappedPcm, file);
+        } catch (InvalidDataException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * initialize the spectrogram and alignment data from the project data
+     * @param projectAudioData
+     * @param projectBasePath
+     * @param msm
+     */
+    private void initProjectData(Element projectAudioData, String projectBasePath, Msm msm) {
         // initialize spectrogram data
         this.spectrogramImage = SpectrogramImage.createSpectrogramImage(projectAudioData, projectBasePath);
 
@@ -166,11 +270,56 @@ public class Audio extends meico.audio.Audio {
         this.alignment.scaleOverallTiming(((double) this.getNumberOfSamples() / this.getFrameRate()) * 1000.0);    // scale the initial alignment to the milliseconds length of the audio; so all notes are visible and in a good starting position
     }
 
+    /**
+     * create the waveforms of all channels of the audio data; PCM data is read directly, so it costs no additional memory,
+     * other encodings are converted by meico and kept as floats
+     * @param audio
+     * @param format
+     * @return an ArrayList where each element is the waveform of one channel
+     */
+    private static ArrayList<Waveform> createWaveforms(byte[] audio, AudioFormat format) {
+        ArrayList<Waveform> waveforms = Waveform.fromPcm(audio, format);
+        if (waveforms != null)
+            return waveforms;
+
+        waveforms = new ArrayList<>();
+        for (double[] chan : convertByteArray2DoubleArray(audio, format))
+            waveforms.add(new FloatWaveform(chan));
+        return waveforms;
+    }
+
+    /**
+     * Get the audio data for playback with meico's AudioPlayer. It plays from the heap, so if the audio data is
+     * memory-mapped, a copy is read from the mapping. It is kept until memory gets short.
+     * @return
+     * @throws InvalidDataException
+     */
+    public meico.audio.Audio getPlaybackAudio() throws InvalidDataException {
+        if (this.mappedPcm == null)
+            return this;
+
+        meico.audio.Audio audio = this.playbackAudio.get();
+        if (audio == null) {
+            audio = new meico.audio.Audio(this.mappedPcm.getAudioInputStream());
+            audio.setFile(this.getFile());
+            this.playbackAudio = new SoftReference<>(audio);
+        }
+        return audio;
+    }
+
+    /**
+     * open a stream of the audio data, it reads from the memory mapping if there is one
+     * @return
+     */
+    public AudioInputStream getAudioInputStream() {
+        return (this.mappedPcm != null) ? this.mappedPcm.getAudioInputStream() : meico.audio.Audio.convertByteArray2AudioInputStream(this.getAudio(), this.getFormat());
+    }
+
     /**
      * a getter for the waveform data
      * @return an ArrayList where each element is the waveform of one channel
      */
-    public ArrayList<double[]> getWaveforms() {
+    public ArrayList<Waveform> getWaveforms() {
         return this.waveforms;
     }
 
@@ -180,7 +329,7 @@ public class Audio extends meico.audio.Audio {
      * @return
      */
     public int getNumberOfSamples() {
-        return this.waveforms.get(0).length;
+        return this.waveforms.get(0).size();
     }
 
     /**
@@ -206,44 +355,35 @@ public class Audio extends meico.audio.Audio {
                 && this.waveformImage.sameMetrics(channelNumber, leftmostSample, rightmostSample))
             return false;                                                                   // nothing changed
 
-        // update the waveform image
-        if (channelNumber >= 0) {                                                           // one specific Waveform/channel should be rendered
-            try {
-//                this.waveformImage = new WaveformImage(convertWaveform2Image(this.waveforms.get(channelNumber), leftmostSample, rightmostSample, width, height), channelNumber, leftmostSample, rightmostSample);
-                this.waveformImage = new WaveformImage(this.convertWaveform2Image(channelNumber, leftmostSample, rightmostSample, width, height), channelNumber, leftmostSample, rightmostSample);
-            } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
-                e.printStackTrace();
-                this.waveformImage = null;
-                return true;
-            }
-        } else {                                                                                // all channels should be rendered into one image
-            ArrayList<BufferedImage> channels = new ArrayList<>();                              // this will hold a BufferedImage for each single channel
-            int heightSubdivision = (int) Math.floor((float) height / this.waveforms.size());   // the pixel height of the sub-images
-
-            // make a horizontal slice of the image for each channel
-            for (int chan = 0; chan < this.waveforms.size(); ++chan) {
-                try {
-//                    BufferedImage img = convertWaveform2Image(this.waveforms.get(chan), leftmostSample, rightmostSample, width, heightSubdivision);  // draw the waveform to the image
-                    BufferedImage img = this.convertWaveform2Image(chan, leftmostSample, rightmostSample, width, heightSubdivision);  // draw the waveform to the image
-                    channels.add(img);
-                } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
-//                    e.printStackTrace();
-                    this.waveformImage = null;
-                    return true;
-                }
+        // update the waveform image, it is composed of tiles that lie on a grid of pixel columns beginning at the first sample, so horizontal scrolling reuses the tiles that remain in view
+        try {
+            WaveformImage image = new WaveformImage(width, height, BufferedImage.TYPE_INT_RGB, channelNumber, leftmostSample, rightmostSample);
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            int tileWidth = WaveformTileCache.TILE_WIDTH;
+
+            double samplesPerPixelColumn = (rightmostSample + 1.0 - leftmostSample) / width;   // how many samples are rendered into one pixel
+            long firstColumn = Math.round(leftmostSample / samplesPerPixelColumn);              // the column in the grid where the image begins
+            long firstTile = Math.floorDiv(firstColumn, tileWidth);
+            long lastTile = Math.floorDiv(firstColumn + width - 1, tileWidth);
+            int[][] tiles = this.waveformTiles.getTiles(channelNumber, samplesPerPixelColumn, height, firstTile, lastTile);
+
+            // copy the visible part of each tile into the image
+            for (int t = 0; t < tiles.length; ++t) {
+                int x = (int) (((firstTile + t) * tileWidth) - firstColumn);                    // where the tile begins in the image, the first one might begin left of it
+                int from = Math.max(0, -x);
+                int length = Math.min(tileWidth, width - x) - from;
+                for (int y = 0; y < height; ++y)
+                    System.arraycopy(tiles[t], (y * tileWidth) + from, pixels, (y * width) + x + from, length);
             }
+            this.waveformImage = image;
 
-            // write the waveform images into this.waveformImage
-            this.waveformImage = new WaveformImage(width, height, BufferedImage.TYPE_INT_RGB, channelNumber, leftmostSample, rightmostSample);  // we start with an empty image, all black
-            for (int channelNum = 0; channelNum < channels.size(); ++channelNum) {
-                BufferedImage img = channels.get(channelNum);
-                int yOffset = channelNum * heightSubdivision;                                   // the y pixel offset when writing the waveform into this.waveformImage
-                for (int y = 0; y < img.getHeight(); ++y) {                                     // for each pixel row
-                    for (int x = 0; x < img.getWidth(); ++x) {                                  // go through each pixel
-                        this.waveformImage.setRGB(x, y + yOffset, img.getRGB(x, y));            // set the pixel color
-                    }
-                }
-            }
+            // render the tiles of half a view width left and right of the view in the background
+            long lastTileOfAudio = Math.floorDiv((long) Math.floor((this.getNumberOfSamples() - 1) / samplesPerPixelColumn), tileWidth);
+            long margin = (lastTile - firstTile + 2) / 2;
+            this.waveformTiles.prefetch(channelNumber, samplesPerPixelColumn, height, Math.max(0, firstTile - margin), firstTile, lastTile, Math.min(lastTileOfAudio, lastTile + margin));
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            e.printStackTrace();
+            this.waveformImage = null;
         }
 
         return true;
@@ -260,70 +400,86 @@ public class Audio extends meico.audio.Audio {
      * @throws ArrayIndexOutOfBoundsException
      */
     public BufferedImage convertWaveform2Image(int channelNumber, int leftmostSample, int rightmostSample, int width, int height) throws ArrayIndexOutOfBoundsException {
-        double[] sampleArray = this.waveforms.get(channelNumber);           // the waveform of this channel
-        double numSamples = rightmostSample + 1 - leftmostSample;           // how many samples are to be displayed in the panel frame
-        double samplesPerPixelColumn = numSamples / width;                  // how many samples are rendered into one pixel
-        double[][] maxValues = new double[width][2];                        // this array collects the max and min values at each pixel column
+        BufferedImage waveform = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);  // we start with an empty image, all black
+        int[] pixels = ((DataBufferInt) waveform.getRaster().getDataBuffer()).getData();        // direct access to the pixel data, much faster than setRGB()
+        this.drawWaveform(channelNumber, leftmostSample, (rightmostSample + 1.0 - leftmostSample) / width, rightmostSample, pixels, 0, width, height);
+        return waveform;
+    }
 
-        PeakList peaks = this.peakList.get(channelNumber);                              // the peak list of this channel
-        KeyValue<Integer, Integer> firstPeak = peaks.ceilingEntry(leftmostSample + 1);  // quick search for the first entry in the peaks list after leftmostSample and before rightmostSample
-        int peakIndex = (firstPeak == null) ? peaks.size() : firstPeak.getKey();        // the index of the first peak where we will later start checking for min and max values
+    /**
+     * Draw the waveform of one channel or of all channels, one below the other, into a pixel array.
+     * The channels are independent, so they are rendered in parallel.
+     * @param channelNumber the audio channel to be rendered; -1 means all channels
+     * @param firstSample where in the audio data should we start, it may lie between two samples
+     * @param samplesPerPixelColumn how many samples are rendered into one pixel column
+     * @param rightmostSample the last sample that may be rendered
+     * @param pixels the RGB pixel data, one int per pixel, row by row with the given width
+     * @param width the width of the area in pixels, it is also the length of a pixel row
+     * @param height the height of the area in pixels
+     * @throws ArrayIndexOutOfBoundsException
+     */
+    void drawWaveforms(int channelNumber, double firstSample, double samplesPerPixelColumn, int rightmostSample, int[] pixels, int width, int height) throws ArrayIndexOutOfBoundsException {
+        if (channelNumber >= 0) {
+            this.drawWaveform(channelNumber, firstSample, samplesPerPixelColumn, rightmostSample, pixels, 0, width, height);
+            return;
+        }
 
-        BufferedImage waveform = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);  // we start with an empty image, all black
-        double yTranslationFactor = -0.5 * waveform.getHeight();                                // this value is needed several times to scale and translate the sample values (in [-1.0, 1.0]) to vertical pixel coordinates (in [waveform.getHeight(), 0])
+        int heightSubdivision = (int) Math.floor((float) height / this.waveforms.size());   // the pixel height of each channel's slice
+        IntStream.range(0, this.waveforms.size()).parallel().forEach(chan -> this.drawWaveform(chan, firstSample, samplesPerPixelColumn, rightmostSample, pixels, chan * heightSubdivision * width, width, heightSubdivision));
+    }
 
-        double[] sampleSlice = new double[] {leftmostSample, leftmostSample + samplesPerPixelColumn};   // the sample indices for the slice to be rendered into the next pixel column
+    /**
+     * Draw the waveform of a channel into a pixel array, e.g. into a horizontal slice of a TYPE_INT_RGB image's raster.
+     * @param channelNumber the audio channel to be rendered
+     * @param firstSample where in the audio data should we start, it may lie between two samples
+     * @param samplesPerPixelColumn how many samples are rendered into one pixel column
+     * @param rightmostSample the last sample that may be rendered
+     * @param pixels the RGB pixel data, one int per pixel, row by row with the given width
+     * @param offset the index of the top left pixel of the area to draw into
+     * @param width the width of the area in pixels, it is also the length of a pixel row
+     * @param height the height of the area in pixels
+     * @throws ArrayIndexOutOfBoundsException
+     */
+    private void drawWaveform(int channelNumber, double firstSample, double samplesPerPixelColumn, int rightmostSample, int[] pixels, int offset, int width, int height) throws ArrayIndexOutOfBoundsException {
+        Waveform sampleArray = this.waveforms.get(channelNumber);           // the waveform of this channel
+        WaveformPyramid pyramid = this.pyramids.get(channelNumber);         // the min/max pyramid of this channel
+        double[] minMax = new double[2];
+        double yTranslationFactor = -0.5 * height;                          // this value is needed several times to scale and translate the sample values (in [-1.0, 1.0]) to vertical pixel coordinates (in [height, 0])
+        int centerLineColor = Color.DARK_GRAY.getRGB() & 0xFFFFFF;          // the colors without alpha, as in a TYPE_INT_RGB raster
+        int waveformColor = Color.WHITE.getRGB() & 0xFFFFFF;
+
+        double[] sampleSlice = new double[] {firstSample, firstSample + samplesPerPixelColumn};   // the sample indices for the slice to be rendered into the next pixel column
         for (int x = 0; x < width; ++x) {                                   // for each pixel column
             // get integer sample indices of the slice to be rendered
             int s2 = Math.min((int) Math.floor(sampleSlice[1]), rightmostSample);
             int s1 = Math.min((int) Math.ceil(sampleSlice[0]), s2);
 
+            double max = 0.0;                                               // the max and min value in this pixel column
+            double min = 0.0;
             if (s1 == s2) {                                                 // if we have to look into one precise sample
-                double value = sampleArray[s1];                             // we read its value
+                double value = sampleArray.get(s1);                         // we read its value
                 if (value > 0.0)
-                    maxValues[x][0] = value;
+                    max = value;
                 else
-                    maxValues[x][1] = value;
-            } else {                                                        // if we have to consider more than one sample, collect all peaks int [s1, s2] and check against the values at s1 and s2
-                // check first sample in the slice
-                double v = sampleArray[s1];
-                if (maxValues[x][0] < v)
-                    maxValues[x][0] = v;
-                else if (maxValues[x][1] > v)
-                    maxValues[x][1] = v;
-
-                // check the peaks
-                for (; (peakIndex < peaks.size()) && (peaks.get(peakIndex) < s2); ++peakIndex) {
-                    if (peaks.get(peakIndex) <= s1)
-                        continue;
-                    v = sampleArray[peaks.get(peakIndex)];
-                    if (maxValues[x][0] < v)
-                        maxValues[x][0] = v;
-                    else if (maxValues[x][1] > v)
-                        maxValues[x][1] = v;
-                }
-
-                // check last sample in the slice
-                v = sampleArray[s2];
-                if (maxValues[x][0] < v)
-                    maxValues[x][0] = v;
-                else if (maxValues[x][1] > v)
-                    maxValues[x][1] = v;
+                    min = value;
+            } else {                                                        // if we have to consider more than one sample, get their min and max value from the pyramid
+                pyramid.getMinMax(s1, s2, minMax);
+                max = Math.max(0.0, minMax[1]);
+                min = Math.min(0.0, minMax[0]);
             }
 
-            // draw the amplitude line of the waveform in the BufferedImage instance
-            int yPositive = (int) Math.round((maxValues[x][0] * yTranslationFactor) - yTranslationFactor);
-            int yNegative = (int) Math.round((maxValues[x][1] * yTranslationFactor) - yTranslationFactor);
-            waveform.setRGB(x, yPositive, Color.DARK_GRAY.getRGB());        // draw a dark gray center line
-            for (int y = yPositive; y < yNegative; ++y)
-                waveform.setRGB(x, y, Color.WHITE.getRGB());
+            // draw the amplitude line of the waveform, the pixels of the column are one row length apart
+            int yPositive = Math.max(0, (int) Math.round((max * yTranslationFactor) - yTranslationFactor));
+            int yNegative = Math.min(height, (int) Math.round((min * yTranslationFactor) - yTranslationFactor));
+            if (yPositive < height)
+                pixels[offset + (yPositive * width) + x] = centerLineColor; // draw a dark gray center line
+            for (int i = offset + (yPositive * width) + x, end = offset + (yNegative * width) + x; i < end; i += width)
+                pixels[i] = waveformColor;
 
             // update limits for the next sample slice
             sampleSlice[0] = sampleSlice[1];
             sampleSlice[1] += samplesPerPixelColumn;
         }
-
-        return waveform;
     }
 
     /**
@@ -350,7 +506,7 @@ public class Audio extends meico.audio.Audio {
         long startTime = System.currentTimeMillis();                    // we measure the time that the conversion consumes
         System.out.println("\nComputing CQT spectrogram (window: " + windowFunction + ", hop size: " + hopSize + ", min freq: " + minFrequency + ", max freq: " + maxFrequency + ", bins per semitone: " + binsPerSemitone + ").");
 
-        int numSamples = this.getAudio().length / (2 * this.getChannels());
+        int numSamples = this.getNumberOfSamples();
         progressBar.setMaximum(numSamples);
         SwingUtilities.invokeLater(() -> progressBar.setText("Initializing Signal Processing Pipeline ..."));
 
@@ -375,7 +531,7 @@ public class Audio extends meico.audio.Audio {
                 }
         );
 
-        AudioSignalSource source = new AudioSignalSource(meico.audio.Audio.convertByteArray2AudioInputStream(this.getAudio(), this.getFormat()));
+        AudioSignalSource source = new AudioSignalSource(this.getAudioInputStream());
         pump.setSignalSource(source);                                   // in other dsp frameworks the pump might be called dispatcher, it delivers the audio frames
         pump.add(cqtPipeline);
         Map<Object, Object> results = pump.pump();
@@ -0,0 +1,60 @@
+package mpmToolbox.projectData.audio;
+
+/**
+ * A waveform that keeps its samples in a float array.
+ * @author Axel Berndt
+ */
+public class FloatWaveform implements Waveform {
+    private final float[] samples;
+
+    /**
+     * constructor
+     * @param samples the sample values in [-1.0, 1.0], the array is not copied
+     */
+    public FloatWaveform(float[] samples) {
+        this.samples = samples;
+    }
+
+    /**
+     * constructor
+     * @param samples the sample values in [-1.0, 1.0]
+     */
+    public FloatWaveform(double[] samples) {
+        this.samples = new float[samples.length];
+        for (int i = 0; i < samples.length; ++i)
+            this.samples[i] = (float) samples[i];
+    }
+
+    /**
+     * the number of samples
+     * @return
+     */
+    @Override
+    public int size() {
+        return this.samples.length;
+    }
+
+    /**
+     * get the value of a sample
+     * @param index
+     * @return the sample value in [-1.0, 1.0]
+     * @throws ArrayIndexOutOfBoundsException
+     */
+    @Override
+    public double get(int index) throws ArrayIndexOutOfBoundsException {
+        return this.samples[index];
+    }
+
+    /**
+     * copy a sequence of samples into a float array
+     * @param from the index of the first sample
+     * @param dst the destination array
+     * @param offset the index in the destination array where to write the first sample
+     * @param length the number of samples
+     * @throws ArrayIndexOutOfBoundsException
+     */
+    @Override
+    public void get(int from, float[] dst, int offset, int length) throws ArrayIndexOutOfBoundsException {
+        System.arraycopy(this.samples, from, dst, offset, length);
+    }
+}
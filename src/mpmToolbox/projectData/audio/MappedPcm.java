@@ -0,0 +1,167 @@
+package mpmToolbox.projectData.audio;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * PCM audio data in a file that is memory-mapped, e.g. a PcmCache or the data chunk of a WAV file. The waveforms and
+ * the audio stream read from the mapping, so the audio data does not occupy heap memory. Data beyond 1 GB is mapped in
+ * several windows of whole frames.
+ * @author Axel Berndt
+ */
+public class MappedPcm {
+    private static final long MAX_WINDOW_SIZE = 1L << 30;       // the maximum size of a memory mapping
+
+    private final AudioFormat format;                           // the format of the PCM data
+    private final long dataLength;                              // the number of bytes of PCM data
+    private final MappedByteBuffer[] windows;                   // the memory mappings of the PCM data
+    private final ArrayList<Waveform> waveforms;                // the waveforms of all channels, read from the memory mappings
+
+    /**
+     * constructor, it maps a region of a file
+     * @param file the file
+     * @param dataOffset the byte position of the PCM data in the file
+     * @param dataLength the number of bytes of PCM data, it should be a multiple of the frame size
+     * @param format the format of the PCM data, see PcmWaveform.supports()
+     * @throws IOException
+     */
+    protected MappedPcm(File file, long dataOffset, long dataLength, AudioFormat format) throws IOException {
+        this.format = format;
+        this.dataLength = dataLength - (dataLength % format.getFrameSize());   // ignore an incomplete last frame
+
+        long windowSize = (MAX_WINDOW_SIZE / format.getFrameSize()) * format.getFrameSize();
+        int windowCount = (int) ((this.dataLength + windowSize - 1) / windowSize);
+        this.windows = new MappedByteBuffer[windowCount];
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (int w = 0; w < windowCount; ++w) {
+                long position = w * windowSize;
+                this.windows[w] = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + position, Math.min(windowSize, this.dataLength - position));   // the mappings remain valid after the channel is closed
+            }
+        }
+
+        this.waveforms = new ArrayList<>();
+        for (int c = 0; c < format.getChannels(); ++c) {
+            Waveform[] channelWindows = new Waveform[windowCount];
+            for (int w = 0; w < windowCount; ++w)
+                channelWindows[w] = new PcmWaveform(this.windows[w], format, c);
+            this.waveforms.add(new WindowedWaveform(channelWindows, (int) (windowSize / format.getFrameSize())));
+        }
+    }
+
+    /**
+     * map the data chunk of a WAV file
+     * @param file
+     * @return the mapped PCM data or null if the file is not a WAV file of a supported format
+     */
+    public static MappedPcm openWav(File file) {
+        try {
+            AudioFormat format = AudioSystem.getAudioFileFormat(file).getFormat();
+            if (!PcmWaveform.supports(format))
+                return null;
+
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if ((in.readInt() != 0x52494646) || (in.skipBytes(4) != 4) || (in.readInt() != 0x57415645))   // "RIFF", chunk size, "WAVE"
+                    return null;
+
+                // find the data chunk
+                long position = 12;
+                while (true) {
+                    int id = in.readInt();
+                    long size = Integer.toUnsignedLong(Integer.reverseBytes(in.readInt()));   // little endian
+                    position += 8;
+                    if (id == 0x64617461)                       // "data"
+                        return new MappedPcm(file, position, Math.min(size, file.length() - position), format);   // the size might be unknown in files from streaming recorders
+
+                    long skip = size + (size & 1);              // chunks are padded to an even size
+                    for (long skipped = 0; skipped < skip; ) {
+                        long n = in.skip(skip - skipped);
+                        if (n <= 0)
+                            return null;                        // no data chunk
+                        skipped += n;
+                    }
+                    position += skip;
+                }
+            }
+        } catch (IOException | UnsupportedAudioFileException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * the format of the PCM data
+     * @return
+     */
+    public AudioFormat getFormat() {
+        return this.format;
+    }
+
+    /**
+     * the waveforms of all channels, they read the samples from the memory mapped file
+     * @return
+     */
+    public ArrayList<Waveform> getWaveforms() {
+        return this.waveforms;
+    }
+
+    /**
+     * open a stream of the PCM data, it reads from the memory mappings
+     * @return
+     */
+    public AudioInputStream getAudioInputStream() {
+        return new AudioInputStream(new WindowsInputStream(this.windows), this.format, this.dataLength / this.format.getFrameSize());
+    }
+
+    /**
+     * an InputStream that reads the memory mapped windows one after the other
+     */
+    private static class WindowsInputStream extends InputStream {
+        private final ByteBuffer[] windows;
+        private int current = 0;                                // the index of the window that is currently read
+
+        /**
+         * constructor
+         * @param windows
+         */
+        private WindowsInputStream(MappedByteBuffer[] windows) {
+            this.windows = new ByteBuffer[windows.length];
+            for (int w = 0; w < windows.length; ++w)
+                this.windows[w] = windows[w].duplicate();       // own positions, so several streams can read at the same time
+        }
+
+        @Override
+        public int read() {
+            byte[] b = new byte[1];
+            return (this.read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+
+            while ((this.current < this.windows.length) && !this.windows[this.current].hasRemaining())
+                ++this.current;
+            if (this.current >= this.windows.length)
+                return -1;
+
+            ByteBuffer window = this.windows[this.current];
+            int n = Math.min(len, window.remaining());
+            window.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (this.current < this.windows.length) ? this.windows[this.current].remaining() : 0;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package mpmToolbox.projectData.audio;
+
+import mpmToolbox.gui.Settings;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A file with the decoded PCM data of an audio file that is not WAV (e.g. MP3), it is stored beside the audio file.
+ * The audio file is decoded only once, afterwards the PCM data is memory-mapped from here, see MappedPcm. WAV files
+ * contain PCM data already, they are mapped directly. Switch Settings.memoryMappedAudio off to keep the audio data
+ * in the heap instead.
+ * @author Axel Berndt
+ */
+public class PcmCache {
+    private static final int MAGIC = 0x4D544243;                // "MTBC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 256;                 // the PCM data starts at this byte position
+
+    /**
+     * get the cache file of an audio file
+     * @param audioFile
+     * @return
+     */
+    public static File getCacheFile(File audioFile) {
+        return new File(audioFile.getPath() + ".pcm");
+    }
+
+    /**
+     * check if an audio file is a WAV file, it contains PCM data already
+     * @param audioFile
+     * @return
+     */
+    public static boolean isWav(File audioFile) {
+        return audioFile.getName().toLowerCase().endsWith(".wav");
+    }
+
+    /**
+     * a cache is written only if memory mapping is switched on, the audio file is not WAV and the cache can be written beside it
+     * @param audioFile
+     * @return
+     */
+    public static boolean isUseful(File audioFile) {
+        File directory = audioFile.getAbsoluteFile().getParentFile();
+        return Settings.memoryMappedAudio && !PcmCache.isWav(audioFile) && (directory != null) && directory.canWrite();
+    }
+
+    /**
+     * map the cache of an audio file; the header is checked before anything is mapped, so an outdated cache file is never mapped
+     * @param audioFile
+     * @return the mapped PCM data or null if there is no cache or it is outdated
+     */
+    public static MappedPcm open(File audioFile) {
+        File file = PcmCache.getCacheFile(audioFile);
+        if (!file.isFile() || !audioFile.isFile())
+            return null;
+
+        AudioFormat format;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            format = PcmCache.readHeader(in, audioFile, file.length());
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (format == null)
+            return null;
+
+        try {
+            return new MappedPcm(file, HEADER_SIZE, file.length() - HEADER_SIZE, format);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * read and check the header of a cache file
+     * @param stream a stream at the beginning of the cache file; after reading, it is at the beginning of the PCM data
+     * @param audioFile the audio file
+     * @param fileLength the length of the cache file
+     * @return the format of the PCM data or null if the cache is invalid or outdated
+     * @throws IOException
+     */
+    private static AudioFormat readHeader(DataInputStream stream, File audioFile, long fileLength) throws IOException {
+        if (fileLength < HEADER_SIZE)
+            return null;
+
+        byte[] header = new byte[HEADER_SIZE];
+        stream.readFully(header);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(header));
+
+        if ((in.readInt() != MAGIC) || (in.readInt() != VERSION))
+            return null;
+
+        if ((in.readLong() != audioFile.length()) || (in.readLong() != audioFile.lastModified()))   // the audio file has changed since the cache was written
+            return null;
+
+        byte[] encoding = new byte[in.readUnsignedShort()];
+        in.readFully(encoding);
+        float sampleRate = in.readFloat();
+        int sampleSizeInBits = in.readInt();
+        int channels = in.readInt();
+        int frameSize = in.readInt();
+        float frameRate = in.readFloat();
+        boolean bigEndian = in.readByte() != 0;
+        long dataLength = in.readLong();
+        AudioFormat format = new AudioFormat(new AudioFormat.Encoding(new String(encoding, "UTF-8")), sampleRate, sampleSizeInBits, channels, frameSize, frameRate, bigEndian);
+
+        if (!PcmWaveform.supports(format) || (fileLength != HEADER_SIZE + dataLength))
+            return null;
+
+        return format;
+    }
+
+    /**
+     * write the cache of an audio file; the file is not mapped here, see open()
+     * @param audioFile the audio file
+     * @param pcm its decoded PCM data
+     * @param format the format of the PCM data
+     * @return false if the format is not supported
+     * @throws IOException
+     */
+    public static boolean write(File audioFile, byte[] pcm, AudioFormat format) throws IOException {
+        byte[] encoding = format.getEncoding().toString().getBytes("UTF-8");
+        if (!PcmWaveform.supports(format) || (encoding.length > 128))  // the header must not exceed HEADER_SIZE
+            return false;
+
+        File file = PcmCache.getCacheFile(audioFile);
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(audioFile.length());
+                out.writeLong(audioFile.lastModified());
+                out.writeShort(encoding.length);
+                out.write(encoding);
+                out.writeFloat(format.getSampleRate());
+                out.writeInt(format.getSampleSizeInBits());
+                out.writeInt(format.getChannels());
+                out.writeInt(format.getFrameSize());
+                out.writeFloat(format.getFrameRate());
+                out.writeByte(format.isBigEndian() ? 1 : 0);
+                out.writeLong(pcm.length);
+                out.write(new byte[HEADER_SIZE - out.size()]);      // pad the header
+                out.write(pcm);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);  // a cache file is never incomplete; this fails on Windows if an outdated cache file is still mapped by an open project
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+
+        return true;
+    }
+}
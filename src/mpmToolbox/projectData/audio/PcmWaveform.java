@@ -0,0 +1,105 @@
+package mpmToolbox.projectData.audio;
+
+import javax.sound.sampled.AudioFormat;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A waveform that reads its samples directly from interleaved PCM data, so it needs no memory of its own.
+ * @author Axel Berndt
+ */
+public class PcmWaveform implements Waveform {
+    private final ByteBuffer data;          // the PCM data of all channels
+    private final int size;                 // the number of samples
+    private final int frameSize;            // the number of bytes per frame, i.e. one sample of each channel
+    private final int offset;               // the position of this channel's sample in a frame
+    private final int bytesPerSample;
+    private final boolean floatingPoint;    // PCM_FLOAT
+    private final boolean signed;           // PCM_SIGNED or PCM_UNSIGNED
+    private final boolean bigEndian;
+    private final double scale;             // scales integer sample values to [-1.0, 1.0]
+
+    /**
+     * constructor
+     * @param data the PCM data from position 0 to the limit of the buffer, it must not be altered afterwards
+     * @param format its format, see supports()
+     * @param channel the channel to be read
+     */
+    public PcmWaveform(ByteBuffer data, AudioFormat format, int channel) {
+        this.bigEndian = format.isBigEndian();
+        this.data = data.duplicate().order(this.bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);  // an own view, so its byte order and position do not interfere with other readers
+        this.frameSize = format.getFrameSize();
+        this.bytesPerSample = format.getSampleSizeInBits() / 8;
+        this.offset = channel * this.bytesPerSample;
+        this.size = this.data.limit() / this.frameSize;
+        this.floatingPoint = format.getEncoding().equals(AudioFormat.Encoding.PCM_FLOAT);
+        this.signed = format.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED);
+        this.scale = 1.0 / (1L << (format.getSampleSizeInBits() - 1));
+    }
+
+    /**
+     * check if the audio format can be read by this class
+     * @param format
+     * @return
+     */
+    public static boolean supports(AudioFormat format) {
+        AudioFormat.Encoding encoding = format.getEncoding();
+        int bits = format.getSampleSizeInBits();
+
+        if (encoding.equals(AudioFormat.Encoding.PCM_FLOAT))
+            return ((bits == 32) || (bits == 64)) && (format.getFrameSize() == (format.getChannels() * bits / 8));
+
+        return (encoding.equals(AudioFormat.Encoding.PCM_SIGNED) || encoding.equals(AudioFormat.Encoding.PCM_UNSIGNED))
+                && (bits >= 8) && (bits <= 32) && ((bits % 8) == 0)
+                && (format.getFrameSize() == (format.getChannels() * bits / 8));
+    }
+
+    /**
+     * the number of samples
+     * @return
+     */
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * get the value of a sample
+     * @param index
+     * @return the sample value in [-1.0, 1.0]
+     * @throws ArrayIndexOutOfBoundsException
+     */
+    @Override
+    public double get(int index) throws ArrayIndexOutOfBoundsException {
+        if ((index < 0) || (index >= this.size))
+            throw new ArrayIndexOutOfBoundsException("Index " + index + " out of bounds for length " + this.size);
+
+        int position = (index * this.frameSize) + this.offset;
+
+        if (this.floatingPoint)
+            return (this.bytesPerSample == 4) ? this.data.getFloat(position) : this.data.getDouble(position);
+
+        int value;
+        switch (this.bytesPerSample) {
+            case 1:
+                value = this.signed ? this.data.get(position) : (this.data.get(position) & 0xFF) - 0x80;
+                break;
+            case 2:
+                value = this.signed ? this.data.getShort(position) : (this.data.getShort(position) & 0xFFFF) - 0x8000;
+                break;
+            case 3:
+                value = this.bigEndian
+                        ? (this.data.get(position) << 16) | ((this.data.get(position + 1) & 0xFF) << 8) | (this.data.get(position + 2) & 0xFF)
+                        : (this.data.get(position + 2) << 16) | ((this.data.get(position + 1) & 0xFF) << 8) | (this.data.get(position) & 0xFF);
+                if (!this.signed)
+                    value = (value & 0xFFFFFF) - 0x800000;
+                break;
+            default:
+                value = this.data.getInt(position);
+                if (!this.signed)
+                    value ^= 0x80000000;    // the same as subtracting 2^31
+                break;
+        }
+        return value * this.scale;
+    }
+}
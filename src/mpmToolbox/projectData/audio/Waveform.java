@@ -0,0 +1,65 @@
+package mpmToolbox.projectData.audio;
+
+import javax.sound.sampled.AudioFormat;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Read access to the samples of one audio channel as values in [-1.0, 1.0]. The implementations store the samples
+ * compactly, e.g. as the original PCM bytes, so a channel does not cost a double per sample.
+ * @author Axel Berndt
+ */
+public interface Waveform {
+    /**
+     * the number of samples
+     * @return
+     */
+    int size();
+
+    /**
+     * get the value of a sample
+     * @param index
+     * @return the sample value in [-1.0, 1.0]
+     * @throws ArrayIndexOutOfBoundsException
+     */
+    double get(int index) throws ArrayIndexOutOfBoundsException;
+
+    /**
+     * copy a sequence of samples into a float array
+     * @param from the index of the first sample
+     * @param dst the destination array
+     * @param offset the index in the destination array where to write the first sample
+     * @param length the number of samples
+     * @throws ArrayIndexOutOfBoundsException
+     */
+    default void get(int from, float[] dst, int offset, int length) throws ArrayIndexOutOfBoundsException {
+        for (int i = 0; i < length; ++i)
+            dst[offset + i] = (float) this.get(from + i);
+    }
+
+    /**
+     * create the waveforms of all channels of the PCM audio data; they read directly from the data, so it must not be altered afterwards
+     * @param audio the audio data
+     * @param format its format
+     * @return an ArrayList with one waveform per channel or null if the format is not supported, e.g. it is not PCM
+     */
+    static ArrayList<Waveform> fromPcm(byte[] audio, AudioFormat format) {
+        return Waveform.fromPcm(ByteBuffer.wrap(audio), format);
+    }
+
+    /**
+     * create the waveforms of all channels of the PCM audio data; they read directly from the buffer, so it must not be altered afterwards
+     * @param audio the audio data from position 0 to the limit of the buffer
+     * @param format its format
+     * @return an ArrayList with one waveform per channel or null if the format is not supported, e.g. it is not PCM
+     */
+    static ArrayList<Waveform> fromPcm(ByteBuffer audio, AudioFormat format) {
+        if (!PcmWaveform.supports(format))
+            return null;
+
+        ArrayList<Waveform> waveforms = new ArrayList<>();
+        for (int channel = 0; channel < format.getChannels(); ++channel)
+            waveforms.add(new PcmWaveform(audio, format, channel));
+        return waveforms;
+    }
+}
@@ -0,0 +1,125 @@
+package mpmToolbox.projectData.audio;
+
+/**
+ * The minimum and maximum sample values of a waveform in blocks of 2^k samples for all k from BASE_LEVEL up to one
+ * block that covers the whole waveform. The minimum and maximum of any range of samples can be found from a few
+ * blocks, so the waveform can be rendered at any zoom level in O(width * log(samples)) time. The samples at the
+ * borders of the range, that do not fill a block of the base level, are read from the waveform itself.
+ * @author Axel Berndt
+ */
+public class WaveformPyramid {
+    private static final int BASE_LEVEL = 4;    // the smallest blocks have 2^BASE_LEVEL samples, so the pyramid needs less memory than the waveform
+    private final Waveform waveform;
+    private final int size;                     // the number of samples
+    private final int maxLevel;                 // the level where one block covers the whole waveform
+    private final float[][] minima;             // minima[k - BASE_LEVEL][b] is the minimum of samples [b * 2^k, (b + 1) * 2^k - 1]
+    private final float[][] maxima;             // the same for the maxima
+
+    /**
+     * constructor
+     * @param waveform
+     */
+    public WaveformPyramid(Waveform waveform) {
+        this.waveform = waveform;
+        this.size = waveform.size();
+
+        int maxLevel = BASE_LEVEL;
+        while ((1L << maxLevel) < this.size)
+            ++maxLevel;
+        this.maxLevel = maxLevel;
+        this.minima = new float[maxLevel - BASE_LEVEL + 1][];
+        this.maxima = new float[maxLevel - BASE_LEVEL + 1][];
+
+        // the base level is computed from the samples
+        int blockSize = 1 << BASE_LEVEL;
+        int blocks = (int) ((this.size + blockSize - 1L) / blockSize);
+        float[] min = new float[blocks];
+        float[] max = new float[blocks];
+        for (int b = 0; b < blocks; ++b) {
+            int first = b * blockSize;
+            int last = Math.min(first + blockSize, this.size);
+            float blockMin = Float.POSITIVE_INFINITY;
+            float blockMax = Float.NEGATIVE_INFINITY;
+            for (int i = first; i < last; ++i) {
+                float v = (float) waveform.get(i);
+                if (v < blockMin)
+                    blockMin = v;
+                if (v > blockMax)
+                    blockMax = v;
+            }
+            min[b] = blockMin;
+            max[b] = blockMax;
+        }
+        this.minima[0] = min;
+        this.maxima[0] = max;
+
+        // each further level is computed from the level below
+        for (int level = 1; level < this.minima.length; ++level) {
+            float[] lowerMin = this.minima[level - 1];
+            float[] lowerMax = this.maxima[level - 1];
+            blocks = (lowerMin.length + 1) / 2;
+            min = new float[blocks];
+            max = new float[blocks];
+            for (int b = 0; b < blocks; ++b) {
+                int l = b * 2;
+                int r = Math.min(l + 1, lowerMin.length - 1);   // the last block may have only one child
+                min[b] = Math.min(lowerMin[l], lowerMin[r]);
+                max[b] = Math.max(lowerMax[l], lowerMax[r]);
+            }
+            this.minima[level] = min;
+            this.maxima[level] = max;
+        }
+    }
+
+    /**
+     * the number of samples
+     * @return
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * find the minimum and maximum sample value in the specified range of samples
+     * @param from the index of the first sample
+     * @param to the index of the last sample (inclusive)
+     * @param minMax an array of at least 2 entries to be filled with the minimum at index 0 and the maximum at index 1
+     * @throws ArrayIndexOutOfBoundsException
+     */
+    public void getMinMax(int from, int to, double[] minMax) throws ArrayIndexOutOfBoundsException {
+        if ((from < 0) || (to >= this.size) || (from > to))
+            throw new ArrayIndexOutOfBoundsException("Range [" + from + ", " + to + "] out of bounds for length " + this.size);
+
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        int i = from;
+        while (i <= to) {
+            // the largest block that starts at i and does not exceed the range
+            int level = (i == 0) ? this.maxLevel : Math.min(this.maxLevel, Integer.numberOfTrailingZeros(i));
+            while ((level >= BASE_LEVEL) && (Math.min(i + (1L << level), this.size) - 1 > to))
+                --level;
+
+            if (level < BASE_LEVEL) {           // no block fits, read the sample
+                double v = this.waveform.get(i);
+                if (v < min)
+                    min = v;
+                if (v > max)
+                    max = v;
+                ++i;
+                continue;
+            }
+
+            int block = i >> level;
+            float[] levelMin = this.minima[level - BASE_LEVEL];
+            float[] levelMax = this.maxima[level - BASE_LEVEL];
+            if (levelMin[block] < min)
+                min = levelMin[block];
+            if (levelMax[block] > max)
+                max = levelMax[block];
+            i = (int) Math.min(i + (1L << level), Integer.MAX_VALUE);
+        }
+
+        minMax[0] = min;
+        minMax[1] = max;
+    }
+}
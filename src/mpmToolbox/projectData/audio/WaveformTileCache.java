@@ -0,0 +1,172 @@
+package mpmToolbox.projectData.audio;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+
+/**
+ * The waveform image is composed of tiles of a fixed width. The tiles lie on a grid of pixel columns that starts at the
+ * first sample of the audio, so a tile is the same wherever the view begins, as long as the zoom level (samples per pixel
+ * column), the channel and the height do not change. When the view is scrolled, only the newly exposed tiles have to be
+ * rendered. The tiles are kept in an LRU cache with a memory budget, and the tiles beside the view are rendered in a
+ * background thread so they are ready when the view scrolls on.
+ * @author Axel Berndt
+ */
+class WaveformTileCache {
+    protected static final int TILE_WIDTH = 256;                    // the width of a tile in pixels
+    private static final long MEMORY_BUDGET = 64L * 1024 * 1024;    // the maximum number of bytes in the cached tiles' pixel data
+
+    private final Audio audio;
+    private final LinkedHashMap<Key, int[]> tiles = new LinkedHashMap<>(64, 0.75f, true);  // the tiles' RGB pixel data in the order of access, the least recently used first
+    private long bytes = 0;                                         // the memory occupied by the cached tiles
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "waveform tile prefetching");
+        thread.setDaemon(true);                                     // do not keep the application alive
+        thread.setPriority(Thread.MIN_PRIORITY);                    // the tiles of the view come first
+        return thread;
+    });
+    private volatile long prefetchRequest = 0;                      // the number of the latest prefetch request, older requests are abandoned
+
+    /**
+     * constructor
+     * @param audio the audio data to be rendered
+     */
+    protected WaveformTileCache(Audio audio) {
+        this.audio = audio;
+        this.executor.allowCoreThreadTimeOut(true);                 // the thread ends when there is nothing to prefetch, so the audio data of an idle view does not occupy a thread
+    }
+
+    /**
+     * get the tiles from firstIndex to lastIndex, the ones that are not in the cache are rendered in parallel
+     * @param channelNumber the audio channel to be rendered; -1 means all channels
+     * @param samplesPerPixelColumn the zoom level
+     * @param height the height of the tiles in pixels
+     * @param firstIndex
+     * @param lastIndex
+     * @return the tiles' RGB pixel data, TILE_WIDTH ints per row
+     * @throws ArrayIndexOutOfBoundsException
+     */
+    protected int[][] getTiles(int channelNumber, double samplesPerPixelColumn, int height, long firstIndex, long lastIndex) throws ArrayIndexOutOfBoundsException {
+        return LongStream.rangeClosed(firstIndex, lastIndex).parallel().mapToObj(index -> this.getTile(new Key(channelNumber, samplesPerPixelColumn, height, index))).toArray(int[][]::new);
+    }
+
+    /**
+     * render the tiles from firstIndex to lastIndex in the background, beginning with those next to the view;
+     * a pending prefetch request is abandoned
+     * @param channelNumber the audio channel to be rendered; -1 means all channels
+     * @param samplesPerPixelColumn the zoom level
+     * @param height the height of the tiles in pixels
+     * @param firstIndex
+     * @param firstVisibleIndex the first tile in the view
+     * @param lastVisibleIndex the last tile in the view
+     * @param lastIndex
+     */
+    protected void prefetch(int channelNumber, double samplesPerPixelColumn, int height, long firstIndex, long firstVisibleIndex, long lastVisibleIndex, long lastIndex) {
+        long request = ++this.prefetchRequest;                      // only the Event Dispatch Thread requests prefetching, so this is no race
+
+        this.executor.submit(() -> {
+            for (long distance = 1; ; ++distance) {                 // alternate between the left and right side, moving away from the view
+                long left = firstVisibleIndex - distance;
+                long right = lastVisibleIndex + distance;
+                if ((left < firstIndex) && (right > lastIndex))     // all done
+                    return;
+
+                for (long index : new long[] {left, right}) {
+                    if ((index < firstIndex) || (index > lastIndex))
+                        continue;
+                    if (request != this.prefetchRequest)            // the view has moved on, these tiles might not be needed anymore
+                        return;
+                    try {
+                        this.getTile(new Key(channelNumber, samplesPerPixelColumn, height, index));
+                    } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                        e.printStackTrace();
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * get a tile from the cache or render it
+     * @param key
+     * @return the tile's RGB pixel data
+     * @throws ArrayIndexOutOfBoundsException
+     */
+    private int[] getTile(Key key) throws ArrayIndexOutOfBoundsException {
+        synchronized (this.tiles) {
+            int[] tile = this.tiles.get(key);
+            if (tile != null)
+                return tile;
+        }
+
+        // render the tile outside the lock, so other tiles can be rendered and read meanwhile
+        int[] tile = new int[TILE_WIDTH * key.height];
+        double firstSample = key.index * TILE_WIDTH * key.samplesPerPixelColumn;
+        this.audio.drawWaveforms(key.channelNumber, firstSample, key.samplesPerPixelColumn, this.audio.getNumberOfSamples() - 1, tile, TILE_WIDTH, key.height);
+
+        synchronized (this.tiles) {
+            int[] other = this.tiles.get(key);                      // another thread might have rendered it meanwhile
+            if (other != null)
+                return other;
+
+            this.tiles.put(key, tile);
+            this.bytes += 4L * tile.length;
+
+            // evict the least recently used tiles until the cache is within the memory budget again, the new tile is kept anyway
+            for (Iterator<Map.Entry<Key, int[]>> i = this.tiles.entrySet().iterator(); (this.bytes > MEMORY_BUDGET) && (this.tiles.size() > 1); ) {
+                this.bytes -= 4L * i.next().getValue().length;
+                i.remove();
+            }
+        }
+        return tile;
+    }
+
+    /**
+     * The key of a tile in the cache.
+     */
+    private static class Key {
+        private final int channelNumber;
+        private final double samplesPerPixelColumn;
+        private final int height;
+        private final long index;                                   // the tile's position in the grid, tile index * TILE_WIDTH is its first pixel column
+
+        /**
+         * constructor
+         * @param channelNumber
+         * @param samplesPerPixelColumn
+         * @param height
+         * @param index
+         */
+        private Key(int channelNumber, double samplesPerPixelColumn, int height, long index) {
+            this.channelNumber = channelNumber;
+            this.samplesPerPixelColumn = samplesPerPixelColumn;
+            this.height = height;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return (this.channelNumber == key.channelNumber)
+                    && (Double.compare(this.samplesPerPixelColumn, key.samplesPerPixelColumn) == 0)
+                    && (this.height == key.height)
+                    && (this.index == key.index);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = Integer.hashCode(this.channelNumber);
+            hash = (31 * hash) + Double.hashCode(this.samplesPerPixelColumn);
+            hash = (31 * hash) + Integer.hashCode(this.height);
+            hash = (31 * hash) + Long.hashCode(this.index);
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package mpmToolbox.projectData.audio;
+
+/**
+ * A waveform that is composed of a sequence of windows, e.g. the memory mapped regions of a file that is too large
+ * to be mapped at once. All windows but the last must have the same number of samples.
+ * @author Axel Berndt
+ */
+public class WindowedWaveform implements Waveform {
+    private final Waveform[] windows;
+    private final int samplesPerWindow;
+    private final int size;
+
+    /**
+     * constructor
+     * @param windows the windows in the order of the samples
+     * @param samplesPerWindow the number of samples in each window but the last
+     */
+    public WindowedWaveform(Waveform[] windows, int samplesPerWindow) {
+        this.windows = windows;
+        this.samplesPerWindow = samplesPerWindow;
+        this.size = (windows.length == 0) ? 0 : ((windows.length - 1) * samplesPerWindow) + windows[windows.length - 1].size();
+    }
+
+    /**
+     * the number of samples
+     * @return
+     */
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * get the value of a sample
+     * @param index
+     * @return the sample value in [-1.0, 1.0]
+     * @throws ArrayIndexOutOfBoundsException
+     */
+    @Override
+    public double get(int index) throws ArrayIndexOutOfBoundsException {
+        if ((index < 0) || (index >= this.size))
+            throw new ArrayIndexOutOfBoundsException("Index " + index + " out of bounds for length " + this.size);
+        return this.windows[index / this.samplesPerWindow].get(index % this.samplesPerWindow);
+    }
+}
@@ -0,0 +1,282 @@
+package mpmToolbox.projectData.alignment.basicPitchLcsAligner;
+
+import java.util.*;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * The note extraction of the Transcriber before it was rewritten on primitive arrays (outputToNotesPolyphonic() on
+ * float[][] activations, boxed sort, HashMap and TreeSet in the melodia step). It is kept as the reference that the
+ * current implementation must reproduce exactly, see NoteExtractionTest. The code is unaltered except that the notes
+ * are returned as arrays {startTime, endTime, pitchMidi, amplitude} and the console output is removed.
+ * @author Vladimir Viro
+ */
+class NoteExtractionReference {
+    private static final int FFT_HOP = 256;
+    private static final float ANNOTATIONS_BASE_FREQUENCY = 27.5f;
+    private static final int AUDIO_SAMPLE_RATE = 22050;
+    private static final int MIDI_OFFSET = 21;
+
+    private static int freqToMidi(double freq) {
+        return (int) Math.round(12.0 * Math.log(freq / ANNOTATIONS_BASE_FREQUENCY) / Math.log(2.0) + MIDI_OFFSET);
+    }
+
+    static class PairComparator implements Comparator<AbstractMap.SimpleEntry<Long, Double>> {
+        @Override
+        public int compare(AbstractMap.SimpleEntry<Long, Double> o1, AbstractMap.SimpleEntry<Long, Double> o2) {
+            return Double.compare(o2.getValue(), o1.getValue());
+        }
+    }
+
+    /**
+     * Converts the output of the neural network into a list of notes.
+     *
+     * @param frames       the frames output by the neural network, they are modified
+     * @param onsets       the onsets output by the neural network, they are modified
+     * @param onsetThresh  the threshold for an onset to be considered valid
+     * @param frameThresh  the threshold for a frame to be considered valid
+     * @param minNoteLen   the minimum length a note must be to be considered valid
+     * @param inferOnsets  whether or not to infer onsets from the frames
+     * @param maxFreq      the maximum frequency of a note
+     * @param minFreq      the minimum frequency of a note
+     * @param melodiaTrick whether or not to use the Melodia trick to improve onset detection
+     * @return a list of notes, each as {startTime, endTime, pitchMidi, amplitude}, sorted by start time
+     */
+    static List<double[]> outputToNotesPolyphonic(float[][] frames, float[][] onsets, double onsetThresh,
+                                                  double frameThresh, int minNoteLen, boolean inferOnsets,
+                                                  double maxFreq, double minFreq, boolean melodiaTrick) {
+        int energyTol = 11;
+        double mnl = minNoteLen / 1000. * (1. * AUDIO_SAMPLE_RATE / FFT_HOP);
+        int nFrames = frames.length;
+        int nFreqs = frames[0].length;
+
+        // zero out activations above or below the max/min frequencies
+        if (maxFreq != -1) {
+            int maxFreqIdx = Math.round(freqToMidi(maxFreq) - MIDI_OFFSET);
+            for (int i = 0; i < nFrames; i++) {
+                for (int j = maxFreqIdx; j < nFreqs; j++) {
+                    onsets[i][j] = 0;
+                    frames[i][j] = 0;
+                }
+            }
+        }
+        if (minFreq != -1) {
+            int minFreqIdx = Math.round(freqToMidi(minFreq) - MIDI_OFFSET);
+            for (int i = 0; i < nFrames; i++) {
+                for (int j = 0; j < minFreqIdx; j++) {
+                    onsets[i][j] = 0;
+                    frames[i][j] = 0;
+                }
+            }
+        }
+
+        // use onsets inferred from frames in addition to the predicted onsets
+        if (inferOnsets) {
+            onsets = getInferedOnsets(onsets, frames);
+        }
+
+        // get the onsets
+        double[][] remainingEnergy = new double[nFrames][nFreqs];
+        for (int i = 1; i < nFrames - 1; i++) {
+            for (int j = 0; j < nFreqs; j++) {
+                if (onsets[i][j] > onsets[i - 1][j] && onsets[i][j] > onsets[i + 1][j]) {
+                    remainingEnergy[i][j] = onsets[i][j];
+                }
+            }
+        }
+
+        // get the notes
+        List<double[]> notes = new ArrayList<>();
+        for (int i = 0; i < nFrames; i++) {
+            for (int j = 0; j < nFreqs; j++) {
+                if (remainingEnergy[i][j] >= onsetThresh) {
+                    // if we're too close to the end of the audio, continue
+                    if (i >= nFrames - 1) {
+                        continue;
+                    }
+
+                    // find time index at this frequency band where the frames drop below an energy threshold
+                    int k = i + 1;
+                    int l = 0; // number of frames since energy dropped below threshold
+                    while (k < nFrames - 1 && l < energyTol) {
+                        if (frames[k][j] < frameThresh) {
+                            l++;
+                        } else {
+                            l = 0;
+                        }
+                        k++;
+                    }
+
+                    k -= l; // go back to frame above threshold
+
+                    // if the note is too short, skip it
+                    if (k - i <= mnl) {
+                        continue;
+                    }
+
+                    // add the note
+                    double amplitude = 0;
+                    for (int m = i; m < k; m++) {
+                        amplitude += frames[m][j];
+                    }
+                    amplitude /= (k - i);
+                    notes.add(new double[]{i, k, j + MIDI_OFFSET, amplitude});
+
+                    // clear the activations of the extracted note
+                    for (int m = k; m >= i; m--) {
+                        remainingEnergy[m][j] = 0;
+                        if (j > 0) remainingEnergy[m][j - 1] = 0;
+                        if (j < nFreqs - 1) remainingEnergy[m][j + 1] = 0;
+                    }
+                }
+            }
+        }
+
+        int maxFreqIdx = Math.round(freqToMidi(maxFreq) - MIDI_OFFSET);
+
+        if (melodiaTrick) {
+            double[] _reflat = Stream.of(remainingEnergy)
+                    .flatMapToDouble(DoubleStream::of)
+                    .toArray();
+            int[] _sortedIdxs = IntStream.range(0, _reflat.length)
+                    .boxed().sorted(Comparator.comparingDouble(i -> -_reflat[i]))
+                    .mapToInt(ele -> ele).toArray();
+            double[] _sortedVals = Arrays.stream(_reflat).boxed()
+                    .sorted(Collections.reverseOrder())
+                    .mapToDouble(Double::doubleValue)
+                    .toArray();
+            Map<Long, Double> frameActivations = new HashMap<>();
+            TreeSet<AbstractMap.SimpleEntry<Long, Double>> treeSet = new TreeSet<>(new PairComparator());
+            for (int i = 0; i < _sortedVals.length; i++) {
+                long k = _sortedIdxs[i];
+                double v = _sortedVals[i];
+                if (v > frameThresh) {
+                    treeSet.add(new AbstractMap.SimpleEntry<>(k, v));
+                    frameActivations.put(k, v);
+                }
+            }
+
+            while (!treeSet.isEmpty()) {
+
+                AbstractMap.SimpleEntry<Long, Double> max = treeSet.pollFirst();
+                long idx = max.getKey();
+                frameActivations.remove(idx);
+
+                int i_mid = (int) (idx / nFreqs);
+                int freqIdx = (int) (idx % nFreqs);
+
+                // forward pass
+                long i = i_mid + 1;
+                int k = 0;
+
+                while (i < nFrames - 1 && k < energyTol) {
+
+                    long newIdx = i * nFreqs + freqIdx;
+                    if (!frameActivations.containsKey(newIdx)) {
+                        k++;
+                    } else {
+                        k = 0;
+                    }
+
+                    remove(i, freqIdx, treeSet, frameActivations, nFreqs);
+
+                    if (freqIdx < maxFreqIdx) {
+                        remove(i, freqIdx + 1, treeSet, frameActivations, nFreqs);
+                    }
+                    if (freqIdx > 0) {
+                        remove(i, freqIdx - 1, treeSet, frameActivations, nFreqs);
+                    }
+
+                    i++;
+                }
+
+                long iEnd = i - 1 - k; // go back to frame above threshold
+
+                // backward pass
+                long j = i_mid - 1;
+                k = 0;
+
+                while (j > 0 && k < energyTol) {
+
+                    long newIdx = j * nFreqs + freqIdx;
+                    if (!frameActivations.containsKey(newIdx)) {
+                        k++;
+                    } else {
+                        k = 0;
+                    }
+
+                    remove(j, freqIdx, treeSet, frameActivations, nFreqs);
+
+                    if (freqIdx < maxFreqIdx) {
+                        remove(j, freqIdx + 1, treeSet, frameActivations, nFreqs);
+                    }
+                    if (freqIdx > 0) {
+                        remove(j, freqIdx - 1, treeSet, frameActivations, nFreqs);
+                    }
+
+                    j--;
+                }
+
+                long iStart = j + 1 + k; // go back to frame above threshold
+
+                if (iEnd - iStart <= mnl) {
+                    // note is too short, skip it
+                    continue;
+                }
+
+                // add the note
+                double amplitude = 0;
+                for (int frm = (int) iStart; frm < iEnd; frm++) {
+                    amplitude += frames[frm][freqIdx];
+                }
+                amplitude = amplitude / (iEnd - iStart);
+
+                notes.add(new double[]{iStart, iEnd, freqIdx + MIDI_OFFSET, amplitude});
+            }
+        }
+
+        notes.sort(Comparator.comparingDouble(note -> note[0]));   // stable like Collections.sort() of the NoteEvents, which compared the start times
+
+        return notes;
+    }
+
+    private static void remove(long i, long freqIdx, TreeSet<AbstractMap.SimpleEntry<Long, Double>> treeSet, Map<Long, Double> kv, int nFreqs) {
+        long newIdx = i * nFreqs + freqIdx;
+        double newVal = kv.getOrDefault(newIdx, 0d);
+
+        treeSet.remove(new AbstractMap.SimpleEntry<>(newIdx, newVal));
+        kv.remove(newIdx);
+    }
+
+    /**
+     * Calculates the inferred onsets of a given set of onsets and frames.
+     *
+     * @param onsets the onsets to infer
+     * @param frames the frames to use for inference
+     * @return the inferred onsets
+     */
+    private static float[][] getInferedOnsets(float[][] onsets, float[][] frames) {
+        int nFrames = frames.length;
+        int nFreqs = frames[0].length;
+
+        float[][] maxOnsetsDiff = new float[nFrames][nFreqs];
+        float[][] diffs = new float[2][nFrames * nFreqs];
+
+        for (int i = 0; i < nFrames; i++) {
+            System.arraycopy(frames[i], 0, diffs[0], i * nFreqs, nFreqs);
+        }
+
+        for (int i = 0; i < nFrames - 1; i++) {
+            System.arraycopy(frames[i + 1], 0, diffs[1], i * nFreqs, nFreqs);
+        }
+
+        for (int i = 0; i < nFrames; i++) {
+            for (int j = 0; j < nFreqs; j++) {
+                maxOnsetsDiff[i][j] = Math.max(onsets[i][j], diffs[0][i * nFreqs + j] - diffs[1][i * nFreqs + j]);
+            }
+        }
+
+        return maxOnsetsDiff;
+    }
+}
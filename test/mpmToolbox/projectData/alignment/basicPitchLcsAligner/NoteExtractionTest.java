@@ -0,0 +1,168 @@
+package mpmToolbox.projectData.alignment.basicPitchLcsAligner;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Regression test of the note extraction: Transcriber.outputToNotesPolyphonic() and the extraction from a
+ * Transcriber.NoteIndex must produce the same note lists as the implementation they replaced, see NoteExtractionReference.
+ * @author Vladimir Viro
+ */
+class NoteExtractionTest {
+    private static final int N_FRAMES = 1200;
+    private static final int N_FREQS = 88;
+
+    @Test
+    void sameNotesAsReference() {
+        this.assertSameNotes(false);
+    }
+
+    /**
+     * quantized activations give many candidates of equal energy in the melodia step, where the reference collapsed
+     * equal energies into one element of its TreeSet
+     */
+    @Test
+    void sameNotesAsReferenceWithTies() {
+        this.assertSameNotes(true);
+    }
+
+    /**
+     * one index is built per frequency range and reused for all thresholds, as the transcriber does when only the thresholds change
+     */
+    @Test
+    void sameNotesFromIndexAsReference() {
+        for (boolean quantized : new boolean[]{false, true}) {
+            float[][][] fixture = fixture(quantized);
+            float[][] frames = fixture[0];
+            float[][] onsets = fixture[1];
+
+            for (double[] range : new double[][]{{60.0, 3000.0}, {100.0, 1000.0}}) {
+                Transcriber.NoteIndex index = new Transcriber.NoteIndex("fixture", new FloatMatrix(flatten(frames), N_FRAMES, N_FREQS), new FloatMatrix(flatten(onsets), N_FRAMES, N_FREQS), true, range[1], range[0]);
+
+                for (double onsetThresh : new double[]{0.3, 0.5, 0.7}) {
+                    for (double frameThresh : new double[]{0.1, 0.3, 0.5}) {
+                        for (boolean melodiaTrick : new boolean[]{false, true}) {
+                            String options = "quantized=" + quantized + ", onsetThresh=" + onsetThresh + ", frameThresh=" + frameThresh + ", melodiaTrick=" + melodiaTrick + ", minFreq=" + range[0] + ", maxFreq=" + range[1];
+                            assertTrue(Transcriber.NoteIndex.supports(onsetThresh, frameThresh), options);
+
+                            List<double[]> expected = NoteExtractionReference.outputToNotesPolyphonic(copy(frames), copy(onsets), onsetThresh, frameThresh, 58, true, range[1], range[0], melodiaTrick);
+                            List<Transcriber.NoteEvent> actual = index.extractNotes(onsetThresh, frameThresh, 58, melodiaTrick, null);
+                            assertSameNotes(expected, actual, options);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * run both implementations on the fixture with all combinations of the options
+     * @param quantized
+     */
+    private void assertSameNotes(boolean quantized) {
+        float[][][] fixture = fixture(quantized);
+        float[][] frames = fixture[0];
+        float[][] onsets = fixture[1];
+
+        for (boolean inferOnsets : new boolean[]{false, true}) {
+            for (boolean melodiaTrick : new boolean[]{false, true}) {
+                for (double[] range : new double[][]{{-1, -1}, {60.0, 3000.0}}) {
+                    String options = "inferOnsets=" + inferOnsets + ", melodiaTrick=" + melodiaTrick + ", minFreq=" + range[0] + ", maxFreq=" + range[1];
+
+                    List<double[]> expected = NoteExtractionReference.outputToNotesPolyphonic(copy(frames), copy(onsets), 0.5, 0.3, 58, inferOnsets, range[1], range[0], melodiaTrick);
+                    List<Transcriber.NoteEvent> actual = Transcriber.outputToNotesPolyphonic(flatten(frames), flatten(onsets), N_FREQS, 0.5, 0.3, 58, inferOnsets, range[1], range[0], melodiaTrick, null);
+
+                    assertSameNotes(expected, actual, options);
+                }
+            }
+        }
+    }
+
+    /**
+     * compare the notes of an implementation with those of the reference
+     * @param expected the notes of the reference
+     * @param actual the notes of the implementation
+     * @param options describes the options for the failure messages
+     */
+    private static void assertSameNotes(List<double[]> expected, List<Transcriber.NoteEvent> actual, String options) {
+        assertFalse(expected.isEmpty(), "the fixture yields no notes, " + options);
+        assertEquals(expected.size(), actual.size(), "number of notes, " + options);
+        for (int i = 0; i < expected.size(); ++i) {
+            double[] e = expected.get(i);
+            Transcriber.NoteEvent a = actual.get(i);
+            String note = "note " + i + ", " + options;
+            assertEquals((int) e[0], a.getStartTime(), note);
+            assertEquals((int) e[1], a.getEndTime(), note);
+            assertEquals((int) e[2], a.getPitchMidi(), note);
+            assertEquals(e[3], a.getAmplitude(), note);
+        }
+    }
+
+    /**
+     * A fixed model output: weak noise plus notes with an onset peak and decaying frame activations that leak into
+     * the neighbouring pitches. The pseudo random numbers come from a fixed seed, so the fixture is always the same.
+     * @param quantized if true, the activations are rounded to multiples of 1/16
+     * @return {frames, onsets}, each N_FRAMES x N_FREQS
+     */
+    private static float[][][] fixture(boolean quantized) {
+        Random random = new Random(20240117L);
+        float[][] frames = new float[N_FRAMES][N_FREQS];
+        float[][] onsets = new float[N_FRAMES][N_FREQS];
+
+        for (int i = 0; i < N_FRAMES; ++i) {
+            for (int j = 0; j < N_FREQS; ++j) {
+                frames[i][j] = 0.25f * random.nextFloat();
+                onsets[i][j] = 0.2f * random.nextFloat();
+            }
+        }
+
+        for (int n = 0; n < 150; ++n) {
+            int start = random.nextInt(N_FRAMES - 2);
+            int length = 3 + random.nextInt(80);
+            int pitch = random.nextInt(N_FREQS);
+            float velocity = 0.5f + (0.5f * random.nextFloat());
+
+            onsets[start][pitch] = Math.max(onsets[start][pitch], velocity);
+            for (int i = start; (i < start + length) && (i < N_FRAMES); ++i) {
+                float level = velocity * (1f - ((0.6f * (i - start)) / length));
+                frames[i][pitch] = Math.max(frames[i][pitch], level);
+                if (pitch > 0)
+                    frames[i][pitch - 1] = Math.max(frames[i][pitch - 1], 0.4f * level);
+                if (pitch < N_FREQS - 1)
+                    frames[i][pitch + 1] = Math.max(frames[i][pitch + 1], 0.4f * level);
+            }
+        }
+
+        if (quantized) {
+            for (int i = 0; i < N_FRAMES; ++i) {
+                for (int j = 0; j < N_FREQS; ++j) {
+                    frames[i][j] = Math.round(frames[i][j] * 16f) / 16f;
+                    onsets[i][j] = Math.round(onsets[i][j] * 16f) / 16f;
+                }
+            }
+        }
+
+        return new float[][][]{frames, onsets};
+    }
+
+    private static float[][] copy(float[][] matrix) {
+        float[][] copy = new float[matrix.length][];
+        for (int i = 0; i < matrix.length; ++i)
+            copy[i] = matrix[i].clone();
+        return copy;
+    }
+
+    private static float[] flatten(float[][] matrix) {
+        int nFreqs = matrix[0].length;
+        float[] flat = new float[matrix.length * nFreqs];
+        for (int i = 0; i < matrix.length; ++i)
+            System.arraycopy(matrix[i], 0, flat, i * nFreqs, nFreqs);
+        return flat;
+    }
+}
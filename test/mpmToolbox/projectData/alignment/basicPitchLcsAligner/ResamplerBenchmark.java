@@ -0,0 +1,76 @@
+package mpmToolbox.projectData.alignment.basicPitchLcsAligner;
+
+/**
+ * Compares the polyphase Resampler with the nearest neighbour resampling that the Transcriber used before.
+ * The test signal is a 1 kHz sine plus a 15 kHz sine of the same amplitude. After conversion to 22050 Hz only the
+ * 1 kHz component should remain; the 15 kHz component lies above the output Nyquist frequency. The error is the
+ * RMS difference between the output and the ideal 1 kHz sine, relative to the RMS of that sine.
+ * <p>
+ * Run it with: java mpmToolbox.projectData.alignment.basicPitchLcsAligner.ResamplerBenchmark [seconds of audio]
+ * @author Vladimir Viro
+ */
+class ResamplerBenchmark {
+    private static final int TARGET_RATE = 22050;
+
+    public static void main(String[] args) {
+        int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 60;
+
+        for (int inputRate : new int[]{44100, 48000, 96000}) {
+            float[] input = new float[inputRate * seconds];
+            for (int i = 0; i < input.length; ++i) {
+                double t = (double) i / inputRate;
+                input[i] = (float) (0.5 * Math.sin(2.0 * Math.PI * 1000.0 * t) + 0.5 * Math.sin(2.0 * Math.PI * 15000.0 * t));
+            }
+
+            Resampler resampler = new Resampler(inputRate, TARGET_RATE);
+            float[] nearest = null;
+            float[] polyphase = null;
+            long nearestTime = Long.MAX_VALUE;
+            long polyphaseTime = Long.MAX_VALUE;
+            for (int run = 0; run < 5; ++run) {     // the first runs warm up the JIT, take the best time
+                long start = System.nanoTime();
+                nearest = nearestNeighbour(input, inputRate, TARGET_RATE);
+                nearestTime = Math.min(nearestTime, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                polyphase = resampler.process(input);
+                polyphaseTime = Math.min(polyphaseTime, System.nanoTime() - start);
+            }
+
+            System.out.println(inputRate + " Hz -> " + TARGET_RATE + " Hz, " + seconds + " s of audio");
+            System.out.println("  nearest neighbour: " + (nearestTime / 1000000) + " ms, relative error " + relativeError(nearest));
+            System.out.println("  polyphase:         " + (polyphaseTime / 1000000) + " ms, relative error " + relativeError(polyphase));
+        }
+    }
+
+    /**
+     * the resampling method that the Transcriber used before
+     * @param samples
+     * @param oldSamplingRate
+     * @param newSamplingRate
+     * @return
+     */
+    private static float[] nearestNeighbour(float[] samples, int oldSamplingRate, int newSamplingRate) {
+        float[] resampled = new float[(int) Math.ceil(samples.length * ((double) newSamplingRate / (double) oldSamplingRate))];
+        for (int i = 0; i < resampled.length; i++) {
+            resampled[i] = samples[(int) Math.floor(i * ((double) oldSamplingRate / (double) newSamplingRate))];
+        }
+        return resampled;
+    }
+
+    /**
+     * RMS error relative to the ideal 1 kHz sine, the borders (filter run-in) are ignored
+     * @param output
+     * @return
+     */
+    private static double relativeError(float[] output) {
+        double error = 0.0;
+        double reference = 0.0;
+        for (int i = TARGET_RATE; i < output.length - TARGET_RATE; ++i) {
+            double ideal = 0.5 * Math.sin(2.0 * Math.PI * 1000.0 * i / TARGET_RATE);
+            error += (output[i] - ideal) * (output[i] - ideal);
+            reference += ideal * ideal;
+        }
+        return Math.sqrt(error / reference);
+    }
+}